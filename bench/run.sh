@@ -0,0 +1,28 @@
+#!/bin/sh
+# Compiles PC Server and its JMH benchmarks, then runs the benchmarks.
+#
+# Usage: JMH_LIB=/path/to/jmh/jars bench/run.sh [JMH options]
+#
+# JMH_LIB must hold jmh-core, jmh-generator-annprocess, jopt-simple and
+# commons-math3. EXTRA_CP, if set, is put first on the class path. Any options
+# are passed straight to JMH, for example: bench/run.sh RespondBenchmark -f 1
+set -e
+
+cd "$(dirname "$0")/.."
+
+if [ -z "$JMH_LIB" ]; then
+	echo "Set JMH_LIB to a directory holding the JMH jars" >&2
+	exit 1
+fi
+
+JMH_CP=$(ls "$JMH_LIB"/*.jar | tr '\n' ':')
+LIB_CP=$(ls lib/*.jar | tr '\n' ':')
+CP="${EXTRA_CP:+$EXTRA_CP:}$LIB_CP$JMH_CP"
+
+rm -rf bench/target
+mkdir -p bench/target/classes
+javac -nowarn -d bench/target/classes -cp "$CP" src/*.java
+javac -nowarn -d bench/target/classes -cp "bench/target/classes:$CP" -processorpath "$JMH_CP" \
+	$(find bench/src -name '*.java')
+
+java -cp "bench/target/classes:$CP" org.openjdk.jmh.Main "$@"
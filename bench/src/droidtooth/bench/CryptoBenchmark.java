@@ -0,0 +1,68 @@
+package droidtooth.bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of StartServer.encrypt and StartServer.decrypt, which protect the TLD
+ * and UDA files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBenchmark {
+
+	private static String PLAIN_TEXT = "/home/user/Documents/DroidTooth TLD";
+
+	private File keyFile;
+	private MethodHandle encrypt;
+	private MethodHandle decrypt;
+	private String cipherText;
+
+	@Setup
+	public void setUp() throws Throwable {
+
+		keyFile = File.createTempFile("droidtooth-bench-key", ".txt");
+		Files.write(keyFile.toPath(), "0123456789abcdef".getBytes());
+
+		Class<?> startServer = Targets.load("StartServer");
+		Targets.setStatic(startServer, "KEY_FILE", keyFile);
+		encrypt = Targets.statik(startServer, "encrypt", String.class, String.class);
+		decrypt = Targets.statik(startServer, "decrypt", String.class, String.class);
+		cipherText = (String) encrypt.invoke(PLAIN_TEXT);
+
+	}
+
+	@TearDown
+	public void tearDown() {
+
+		keyFile.delete();
+
+	}
+
+	@Benchmark
+	public String encrypt() throws Throwable {
+
+		return (String) encrypt.invoke(PLAIN_TEXT);
+
+	}
+
+	@Benchmark
+	public String decrypt() throws Throwable {
+
+		return (String) decrypt.invoke(cipherText);
+
+	}
+
+}
@@ -0,0 +1,76 @@
+package droidtooth.bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of answering "ls": a full walk of TLD through PCServer.getAllFileNames,
+ * and the same listing served from an already built FileCatalog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileListingBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int files;
+
+	private File tree;
+	private Object server;
+	private MethodHandle getAllFileNames;
+	private Object catalog;
+	private MethodHandle getFileNames;
+
+	@Setup
+	public void setUp() throws Throwable {
+
+		tree = TreeFixture.createTree(files);
+
+		Class<?> pcServer = Targets.load("PCServer");
+		server = Targets.create("PCServer", new Class<?>[0]);
+		getAllFileNames = Targets.virtual(pcServer, "getAllFileNames", java.util.ArrayList.class, File.class);
+
+		Class<?> walker = Targets.load("ParallelDirectoryWalker");
+		catalog = Targets.create("FileCatalog", new Class<?>[] { File.class, walker }, tree,
+				Targets.create("ParallelDirectoryWalker", new Class<?>[0]));
+		Targets.virtual(catalog.getClass(), "start", void.class).invoke(catalog);
+		getFileNames = Targets.virtual(catalog.getClass(), "getFileNames", java.util.ArrayList.class);
+		getFileNames.invoke(catalog); // Wait for the initial scan.
+
+	}
+
+	@TearDown
+	public void tearDown() throws Throwable {
+
+		Targets.virtual(catalog.getClass(), "stop", void.class).invoke(catalog);
+		TreeFixture.delete(tree);
+
+	}
+
+	@Benchmark
+	public int fullWalk() throws Throwable {
+
+		return ((List<?>) getAllFileNames.invoke(server, tree)).size();
+
+	}
+
+	@Benchmark
+	public int catalogListing() throws Throwable {
+
+		return ((List<?>) getFileNames.invoke(catalog)).size();
+
+	}
+
+}
@@ -0,0 +1,149 @@
+package droidtooth.bench;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import cloudtoothpackage.CloudToothMessage;
+
+/**
+ * Cost of writing CloudToothMessages through an ObjectOutputStream, the way
+ * the legacy protocol writes every message, compared with BinaryMessageWriter
+ * frames, into a stream which discards the bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageSerializationBenchmark {
+
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public int payloadSize;
+
+	private byte[] payload;
+	private ArrayList<String> listing;
+	private CountingOutputStream sink;
+	private ObjectOutputStream objectOutputStream;
+
+	private Object binaryWriter;
+	private Object compressingWriter;
+	private byte[] textPayload;
+	private MethodHandle writeFileChunk;
+	private MethodHandle writeListing;
+
+	/**
+	 * OutputStream which only counts the bytes written to it.
+	 */
+	static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+	}
+
+	@Setup
+	public void setUp() throws Throwable {
+
+		payload = new byte[payloadSize];
+		new java.util.Random(payloadSize).nextBytes(payload);
+
+		// One path per 100 payload bytes, shaped like the entries of "ls".
+		listing = new ArrayList<String>();
+		for (int i = 0; i < payloadSize / 100; i++) {
+			listing.add("\n/home/user/TLD/d" + (i % 10) + "/leaf" + (i / 100) + "/file" + i + ".txt");
+		}
+
+		sink = new CountingOutputStream();
+		objectOutputStream = new ObjectOutputStream(sink);
+
+		binaryWriter = Targets.create("BinaryMessageWriter", new Class<?>[] { OutputStream.class }, sink);
+		Class<?> writerClass = binaryWriter.getClass();
+		writeFileChunk = Targets.virtual(writerClass, "writeFileChunk", void.class, String.class, byte[].class,
+				int.class, long.class);
+		writeListing = Targets.virtual(writerClass, "writeListing", void.class, List.class);
+
+		// Same writer with compression on, fed both random and text-like chunks.
+		compressingWriter = Targets.create("BinaryMessageWriter", new Class<?>[] { OutputStream.class }, sink);
+		Targets.virtual(writerClass, "setCompression", void.class, boolean.class).invoke(compressingWriter, true);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < payloadSize; i++) {
+			text.append("line ").append(i).append(" of a plain text file in the TLD\n");
+		}
+		textPayload = text.substring(0, payloadSize).getBytes();
+
+	}
+
+	@Benchmark
+	public long fileChunk() throws IOException {
+
+		objectOutputStream.writeObject(
+				new CloudToothMessage(CloudToothMessage.FILE_BEGIN, "/home/user/TLD/payload.bin", payload, payloadSize));
+		objectOutputStream.flush();
+		objectOutputStream.reset();
+		return sink.count;
+
+	}
+
+	@Benchmark
+	public long fileListing() throws IOException {
+
+		objectOutputStream.writeObject(new CloudToothMessage(CloudToothMessage.FILE_LISTING, listing));
+		objectOutputStream.flush();
+		objectOutputStream.reset();
+		return sink.count;
+
+	}
+
+	@Benchmark
+	public long binaryFileChunk() throws Throwable {
+
+		writeFileChunk.invoke(binaryWriter, "/home/user/TLD/payload.bin", payload, payloadSize, (long) payloadSize);
+		return sink.count;
+
+	}
+
+	@Benchmark
+	public long binaryFileListing() throws Throwable {
+
+		writeListing.invoke(binaryWriter, (List<String>) listing);
+		return sink.count;
+
+	}
+
+	@Benchmark
+	public long compressedRandomChunk() throws Throwable {
+
+		writeFileChunk.invoke(compressingWriter, "/home/user/TLD/payload.bin", payload, payloadSize, (long) payloadSize);
+		return sink.count;
+
+	}
+
+	@Benchmark
+	public long compressedTextChunk() throws Throwable {
+
+		writeFileChunk.invoke(compressingWriter, "/home/user/TLD/payload.txt", textPayload, payloadSize,
+				(long) payloadSize);
+		return sink.count;
+
+	}
+
+}
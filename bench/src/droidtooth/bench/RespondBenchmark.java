@@ -0,0 +1,110 @@
+package droidtooth.bench;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import cloudtoothpackage.CloudToothMessage;
+
+/**
+ * End-to-end cost of a file request: the request line is written to a
+ * PCServer listening on a PipeTransport, and every message is read back until
+ * FILE_END arrives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RespondBenchmark {
+
+	@Param({ "4096", "1048576", "16777216" })
+	public int fileSize;
+
+	private File file;
+	private Object transport;
+	private Object connection;
+	private ObjectInputStream in;
+	private Writer out;
+
+	@Setup
+	public void setUp() throws Throwable {
+
+		file = TreeFixture.createFile(fileSize);
+
+		Class<?> transportInterface = Targets.load("Transport");
+		transport = Targets.create("PipeTransport", new Class<?>[0]);
+		final Object server = Targets.create("PCServer",
+				new Class<?>[] { String.class, String.class, transportInterface },
+				file.getParentFile().getAbsolutePath(), "PIPE", transport);
+
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Targets.virtual(server.getClass(), "begin", boolean.class).invoke(server);
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "PCServer");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// Connect once the transport is open.
+		Class<?> connectionInterface = Targets.load("TransportConnection");
+		while (connection == null) {
+			try {
+				connection = Targets.virtual(transport.getClass(), "connect", connectionInterface).invoke(transport);
+			} catch (java.io.IOException e) {
+				if (!serverThread.isAlive())
+					throw new IllegalStateException("PCServer stopped before accepting a connection", e);
+				Thread.sleep(10);
+			}
+		}
+		in = new ObjectInputStream(
+				(InputStream) Targets.virtual(connectionInterface, "openInputStream", InputStream.class).invoke(connection));
+		out = new OutputStreamWriter(
+				(OutputStream) Targets.virtual(connectionInterface, "openOutputStream", OutputStream.class).invoke(connection));
+		in.readObject(); // Hello message.
+
+	}
+
+	@TearDown
+	public void tearDown() throws Throwable {
+
+		out.write("exit\n");
+		out.flush();
+		Targets.virtual(transport.getClass(), "close", void.class).invoke(transport);
+		TreeFixture.delete(file.getParentFile());
+
+	}
+
+	@Benchmark
+	public int requestFile() throws Exception {
+
+		out.write(file.getAbsolutePath() + "\n");
+		out.flush();
+		int messages = 0;
+		while (true) {
+			Object message = in.readObject();
+			messages++;
+			if (message instanceof CloudToothMessage
+					&& ((CloudToothMessage) message).getMessageType() == CloudToothMessage.FILE_END)
+				return messages;
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+package droidtooth.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+
+/**
+ * PC Server lives in the default package, which classes in a named package
+ * cannot refer to, while JMH refuses benchmarks in the default package. The
+ * benchmarks therefore reach PC Server classes through method handles looked
+ * up once during setup.
+ */
+final class Targets {
+
+	private static MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+	private Targets() {
+
+	}
+
+	/**
+	 * Loads a PC Server class by name.
+	 * 
+	 * @param name
+	 *            String storing name of the class.
+	 * @return Class<?> storing the loaded class.
+	 */
+	static Class<?> load(String name) {
+
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("PC Server classes are not on the classpath: " + name, e);
+		}
+
+	}
+
+	/**
+	 * Creates an instance of a PC Server class through its public constructor.
+	 * 
+	 * @param className
+	 *            String storing name of the class.
+	 * @param types
+	 *            Class<?>[] storing parameter types of the constructor.
+	 * @param args
+	 *            Object[] storing constructor arguments.
+	 * @return Object storing the new instance.
+	 */
+	static Object create(String className, Class<?>[] types, Object... args) {
+
+		try {
+			Constructor<?> constructor = load(className).getConstructor(types);
+			return constructor.newInstance(args);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create " + className, e);
+		}
+
+	}
+
+	/**
+	 * Looks up a public instance method.
+	 * 
+	 * @param owner
+	 *            Class<?> declaring the method.
+	 * @param name
+	 *            String storing name of the method.
+	 * @param returnType
+	 *            Class<?> storing return type of the method.
+	 * @param parameterTypes
+	 *            Class<?>[] storing parameter types of the method.
+	 * @return MethodHandle taking the receiver followed by the parameters.
+	 */
+	static MethodHandle virtual(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+
+		try {
+			return lookup.findVirtual(owner, name, MethodType.methodType(returnType, parameterTypes));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot find " + owner.getName() + "." + name, e);
+		}
+
+	}
+
+	/**
+	 * Looks up a public static method.
+	 * 
+	 * @param owner
+	 *            Class<?> declaring the method.
+	 * @param name
+	 *            String storing name of the method.
+	 * @param returnType
+	 *            Class<?> storing return type of the method.
+	 * @param parameterTypes
+	 *            Class<?>[] storing parameter types of the method.
+	 * @return MethodHandle taking the parameters.
+	 */
+	static MethodHandle statik(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+
+		try {
+			return lookup.findStatic(owner, name, MethodType.methodType(returnType, parameterTypes));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot find " + owner.getName() + "." + name, e);
+		}
+
+	}
+
+	/**
+	 * Sets a static field, even a private one.
+	 * 
+	 * @param owner
+	 *            Class<?> declaring the field.
+	 * @param name
+	 *            String storing name of the field.
+	 * @param value
+	 *            Object storing new value of the field.
+	 */
+	static void setStatic(Class<?> owner, String name, Object value) {
+
+		try {
+			Field field = owner.getDeclaredField(name);
+			field.setAccessible(true);
+			field.set(null, value);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot set " + owner.getName() + "." + name, e);
+		}
+
+	}
+
+}
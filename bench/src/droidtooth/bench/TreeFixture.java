@@ -0,0 +1,100 @@
+package droidtooth.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Creates and deletes synthetic TLD trees for the benchmarks.
+ */
+final class TreeFixture {
+
+	// Number of files in each leaf directory, and subdirectories of each inner
+	// directory.
+	private static int FILES_PER_DIRECTORY = 100;
+	private static int DIRECTORIES_PER_DIRECTORY = 10;
+
+	private TreeFixture() {
+
+	}
+
+	/**
+	 * Creates a tree of empty files, FILES_PER_DIRECTORY per leaf directory, with
+	 * leaves spread DIRECTORIES_PER_DIRECTORY wide at each level.
+	 * 
+	 * @param files
+	 *            Int storing number of files to create.
+	 * @return File storing root of the new tree.
+	 * @throws IOException
+	 *             If the tree cannot be created.
+	 */
+	static File createTree(int files) throws IOException {
+
+		Path root = Files.createTempDirectory("droidtooth-bench-tree");
+		int leaves = (files + FILES_PER_DIRECTORY - 1) / FILES_PER_DIRECTORY;
+		int created = 0;
+		for (int leaf = 0; leaf < leaves; leaf++) {
+			// Spell the leaf number out one digit per level, giving a balanced tree.
+			Path dir = root;
+			for (int rest = leaf; rest > 0 || dir == root; rest /= DIRECTORIES_PER_DIRECTORY) {
+				dir = dir.resolve("d" + (rest % DIRECTORIES_PER_DIRECTORY));
+			}
+			dir = dir.resolve("leaf" + leaf);
+			Files.createDirectories(dir);
+			for (int i = 0; i < FILES_PER_DIRECTORY && created < files; i++, created++) {
+				Files.createFile(dir.resolve("file" + i + ".txt"));
+			}
+		}
+		return root.toFile();
+
+	}
+
+	/**
+	 * Creates a TLD holding a single file of random-looking bytes.
+	 * 
+	 * @param size
+	 *            Int storing size of the file.
+	 * @return File storing the new file, inside its own new TLD.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	static File createFile(int size) throws IOException {
+
+		Path root = Files.createTempDirectory("droidtooth-bench-file");
+		byte[] contents = new byte[size];
+		new java.util.Random(size).nextBytes(contents);
+		return Files.write(root.resolve("payload.bin"), contents).toFile();
+
+	}
+
+	/**
+	 * Deletes passed-in tree.
+	 * 
+	 * @param root
+	 *            File storing root of the tree.
+	 * @throws IOException
+	 *             If the tree cannot be deleted.
+	 */
+	static void delete(File root) throws IOException {
+
+		Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+
+	}
+
+}
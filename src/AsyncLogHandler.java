@@ -0,0 +1,170 @@
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler which hands log records to a background thread through a bounded
+ * ring buffer, so threads serving requests never wait on the disk. The
+ * background thread publishes records to the wrapped handler in batches and
+ * flushes once per batch. If the buffer is full the record is dropped rather
+ * than blocking, and the number dropped is logged once there is room again.
+ * 
+ * The ServerLog context of the logging thread is captured with every record and
+ * prefixed to its message by the background thread, so the thread serving the
+ * request only stores two references.
+ */
+public class AsyncLogHandler extends Handler {
+
+	private Handler target; // Handler records are published to.
+
+	// Ring buffer of records and the context each was logged in.
+	private LogRecord[] records;
+	private String[] contexts;
+	private int head; // Index of the oldest record.
+	private int size; // Number of records in the buffer.
+	private int dropped; // Records dropped since the last batch.
+	private boolean closed;
+
+	private Thread writer; // Publishes records to target.
+
+	/**
+	 * Publishes records to passed-in handler from a background thread.
+	 * 
+	 * @param handler
+	 *            Handler to publish records to.
+	 * @param capacity
+	 *            Int storing number of records the buffer holds.
+	 */
+	public AsyncLogHandler(Handler handler, int capacity) {
+
+		target = handler;
+		records = new LogRecord[capacity];
+		contexts = new String[capacity];
+
+		writer = new Thread("AsyncLogHandler") {
+
+			public void run() {
+				drain();
+			}
+
+		};
+		writer.setDaemon(true);
+		writer.start();
+
+		// Records still buffered at exit are written before the JVM stops.
+		Runtime.getRuntime().addShutdownHook(new Thread("AsyncLogHandlerFlush") {
+
+			public void run() {
+				close();
+			}
+
+		});
+
+	}
+
+	/**
+	 * Buffers passed-in record to be published by the background thread.
+	 * 
+	 * @param record
+	 *            LogRecord to publish.
+	 */
+	public void publish(LogRecord record) {
+
+		if (!isLoggable(record))
+			return;
+		String context = ServerLog.getContext();
+		synchronized (this) {
+			if (closed || size == records.length) {
+				dropped++;
+				return;
+			}
+			int tail = (head + size) % records.length;
+			records[tail] = record;
+			contexts[tail] = context;
+			if (size++ == 0)
+				notifyAll();
+		}
+
+	}
+
+	/**
+	 * Records are flushed by the background thread after every batch.
+	 */
+	public void flush() {
+
+	}
+
+	/**
+	 * Publishes every buffered record, then closes the wrapped handler.
+	 */
+	public void close() {
+
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		target.close();
+
+	}
+
+	/**
+	 * Publishes batches of buffered records until closed and empty. Runs on the
+	 * background thread.
+	 */
+	private void drain() {
+
+		LogRecord[] batch = new LogRecord[records.length];
+		String[] batchContexts = new String[records.length];
+		while (true) {
+			int n;
+			int droppedBefore;
+			synchronized (this) {
+				while (size == 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						closed = true;
+					}
+				}
+				if (size == 0)
+					return;
+				n = size;
+				for (int i = 0; i < n; i++) {
+					int index = (head + i) % records.length;
+					batch[i] = records[index];
+					batchContexts[i] = contexts[index];
+					records[index] = null;
+					contexts[index] = null;
+				}
+				head = (head + n) % records.length;
+				size = 0;
+				droppedBefore = dropped;
+				dropped = 0;
+			}
+
+			try {
+				for (int i = 0; i < n; i++) {
+					if (batchContexts[i] != null)
+						batch[i].setMessage("[" + batchContexts[i] + "] " + batch[i].getMessage());
+					target.publish(batch[i]);
+					batch[i] = null;
+				}
+				if (droppedBefore > 0)
+					target.publish(new LogRecord(Level.WARNING, droppedBefore + " log records dropped, buffer full"));
+				target.flush();
+			} catch (RuntimeException e) {
+				reportError("Error publishing log records", e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,690 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Implementation of MessageWriter which writes length-prefixed frames as
+ * described in WireProtocol, all with the same stream id, through a
+ * FrameWriter shared by every stream of the connection. The buffer text is
+ * encoded into is reused for every frame, and file chunks are written straight
+ * from the caller's buffer, so sending a file allocates nothing per chunk.
+ * 
+ * When compression is turned on, listings and file chunks are deflated and
+ * sent compressed only if that saves at least an eighth of their size. Chunks
+ * of media and archives rarely shrink, so after several misses in a row the
+ * rest of the file is sent raw, with an occasional chunk tried again in case
+ * the file changes character.
+ */
+public class BinaryMessageWriter implements MessageWriter {
+
+	private FrameWriter frames; // Writes frames to the Android Server.
+
+	// Size of a new payload buffer.
+	private static int PAYLOAD_SIZE = 8192;
+
+	// Payload buffers grown past this size are dropped once their frame is written,
+	// so one large listing does not pin its buffer for the rest of the session.
+	private static int MAX_RETAINED_PAYLOAD = 1048576;
+
+	// Reused payload buffer, grown whenever a payload does not fit, up to
+	// WireProtocol.MAX_PAYLOAD.
+	private ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_SIZE);
+	private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+	private int streamId; // Stream id written in every frame header.
+
+	// Compression level used once compression is turned on.
+	private static int COMPRESSION_LEVEL = ServerConfig.getInt("droidtooth.compression.level", Deflater.BEST_SPEED);
+
+	// Misses in a row after which chunks stop being compressed.
+	private static int MAX_MISSES = 3;
+
+	// Number of chunks sent raw between retries once chunks stop being compressed.
+	private static int RETRY_INTERVAL = 16;
+
+	private Deflater deflater; // Compressor, or null if not compressing.
+	private byte[] compressed = new byte[0]; // Reused compressed payload.
+	private int compressedLength; // Length of the last compressed payload.
+	// Computes the CRC32C of every file chunk, written after its payload.
+	private Checksum checksum = Crc32c.create();
+	private byte[] trailer = new byte[4];
+
+	private int misses; // Chunks in a row of the current file which did not shrink.
+	private int skipped; // Chunks sent raw since compression was last tried.
+
+	// Bytes handed to the writer and bytes put on the wire, for reporting.
+	private long bytesIn;
+	private long bytesOut;
+
+	/**
+	 * Thrown when a payload would grow past WireProtocol.MAX_PAYLOAD, the largest
+	 * frame the Android Server accepts.
+	 */
+	static class PayloadTooLargeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		PayloadTooLargeException() {
+
+			super("Payload larger than " + WireProtocol.MAX_PAYLOAD + " bytes");
+
+		}
+
+	}
+
+	/**
+	 * Writes frames of stream 0 to passed-in stream.
+	 * 
+	 * @param out
+	 *            OutputStream to the Android Server.
+	 */
+	public BinaryMessageWriter(OutputStream out) {
+
+		this(new FrameWriter(out), 0);
+
+	}
+
+	/**
+	 * Writes frames of passed-in stream through passed-in FrameWriter.
+	 * 
+	 * @param frameWriter
+	 *            FrameWriter shared by every stream of the connection.
+	 * @param id
+	 *            Int storing stream id of every frame.
+	 */
+	public BinaryMessageWriter(FrameWriter frameWriter, int id) {
+
+		frames = frameWriter;
+		streamId = id;
+
+	}
+
+	/**
+	 * Creates a writer for another stream of the same connection.
+	 * 
+	 * @param id
+	 *            Int storing stream id of every frame.
+	 * @return BinaryMessageWriter writing frames of passed-in stream.
+	 */
+	public BinaryMessageWriter forStream(int id) {
+
+		return new BinaryMessageWriter(frames, id);
+
+	}
+
+	/**
+	 * Getter method for private field streamId.
+	 * 
+	 * @return Int storing stream id of every frame.
+	 */
+	public int getStreamId() {
+
+		return streamId;
+
+	}
+
+	/**
+	 * Turns compression of listings and file chunks on or off, for every stream of
+	 * the connection.
+	 * 
+	 * @param enabled
+	 *            Boolean storing true to compress.
+	 */
+	public void setCompression(boolean enabled) {
+
+		frames.setCompression(enabled);
+
+	}
+
+	/**
+	 * Check if compression is turned on.
+	 * 
+	 * @return Boolean True if compressing; False if not.
+	 */
+	public boolean isCompressing() {
+
+		return frames.isCompressing();
+
+	}
+
+	/**
+	 * Check if file chunks can currently be sent with transferFileChunk.
+	 * 
+	 * @return Boolean True if chunks can go straight from the file; False if
+	 *         they must be read first.
+	 */
+	public boolean canTransfer() {
+
+		return frames.canTransfer();
+
+	}
+
+	/**
+	 * Releases the compressor of this stream. The writer may still be used
+	 * afterwards.
+	 */
+	public synchronized void close() {
+
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+
+	}
+
+	/**
+	 * Getter method for private field bytesIn.
+	 * 
+	 * @return Long storing number of payload bytes handed to this writer.
+	 */
+	public synchronized long getBytesIn() {
+
+		return bytesIn;
+
+	}
+
+	/**
+	 * Getter method for private field bytesOut.
+	 * 
+	 * @return Long storing number of bytes of this stream's frames written to the
+	 *         Android Server.
+	 */
+	public synchronized long getBytesOut() {
+
+		return bytesOut;
+
+	}
+
+	public synchronized void writeText(String text) throws IOException {
+
+		payload.clear();
+		putString(text);
+		writePayload(WireProtocol.TEXT);
+
+	}
+
+	public synchronized void writeError(String text) throws IOException {
+
+		payload.clear();
+		putString(text);
+		writePayload(WireProtocol.ERROR);
+
+	}
+
+	/**
+	 * A listing must fit in one frame of at most WireProtocol.MAX_PAYLOAD bytes
+	 * before compression. A larger listing is answered with an ERROR frame
+	 * instead, pointing the Android Server at the paged commands; the payload
+	 * buffer is never grown past that size.
+	 */
+	public synchronized void writeListing(List<String> entries) throws IOException {
+
+		payload.clear();
+		try {
+			ensureRemaining(4);
+			payload.putInt(entries.size());
+			for (String entry : entries) {
+				ensureRemaining(2);
+				int lengthAt = payload.position();
+				payload.putShort((short) 0);
+				putString(entry);
+				int length = payload.position() - lengthAt - 2;
+				if (length > 0xFFFF)
+					throw new IOException("Listing entry too long: " + entry);
+				payload.putShort(lengthAt, (short) length);
+				if (payload.position() > WireProtocol.MAX_PAYLOAD)
+					throw new PayloadTooLargeException();
+			}
+		} catch (PayloadTooLargeException e) {
+			payload.clear();
+			putString("Listing of " + entries.size() + " entries is too large for one frame, use lsdir or find");
+			writePayload(WireProtocol.ERROR);
+			return;
+		}
+		if (compressor() != null && compress(payload.array(), 0, payload.position())) {
+			writeCompressed(WireProtocol.LISTING, payload.position());
+			return;
+		}
+		writePayload(WireProtocol.LISTING);
+
+	}
+
+	public synchronized void writeHash(String fileName, String hash) throws IOException {
+
+		payload.clear();
+		ensureRemaining(1 + hash.length() / 2);
+		payload.put((byte) (hash.length() / 2));
+		for (int i = 0; i + 1 < hash.length(); i += 2) {
+			payload.put((byte) Integer.parseInt(hash.substring(i, i + 2), 16));
+		}
+		putString(fileName);
+		writePayload(WireProtocol.HASH);
+
+	}
+
+	public synchronized void writeNotModified(String fileName) throws IOException {
+
+		payload.clear();
+		putString(fileName);
+		writePayload(WireProtocol.NOT_MODIFIED);
+
+	}
+
+	/**
+	 * Sends PC Server's half of a key exchange, then seals every frame of the
+	 * connection written after it with passed-in session key. The connection's
+	 * FrameWriter installs the key before any other frame can be written.
+	 * 
+	 * @param publicKey
+	 *            Byte array storing X.509 encoded public key of PC Server.
+	 * @param key
+	 *            SessionCipher storing key agreed with the Android Server.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public synchronized void writeKeyExchange(byte[] publicKey, SessionCipher key) throws IOException {
+
+		frames.writeKeyExchange(streamId, publicKey, key);
+		bytesIn += publicKey.length;
+		bytesOut += WireProtocol.HEADER_SIZE + publicKey.length;
+
+	}
+
+	/**
+	 * Check if frames of the connection are sealed.
+	 * 
+	 * @return Boolean True if encrypted; False if not.
+	 */
+	public boolean isEncrypting() {
+
+		return frames.isEncrypting();
+
+	}
+
+	public synchronized void writeFileBegin(String fileName, long fileSize) throws IOException {
+
+		payload.clear();
+		ensureRemaining(8);
+		payload.putLong(fileSize);
+		putString(fileName);
+		writePayload(WireProtocol.FILE_BEGIN);
+		misses = 0;
+		skipped = 0;
+
+	}
+
+	/**
+	 * Announces that chunks of part of a file follow.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param fileSize
+	 *            Long storing total size of the file.
+	 * @param lastModified
+	 *            Long storing time the file was last modified, so a resuming
+	 *            client can tell whether it changed.
+	 * @param offset
+	 *            Long storing position of the first byte of the range.
+	 * @param length
+	 *            Long storing number of bytes in the range.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public synchronized void writeRangeBegin(String fileName, long fileSize, long lastModified, long offset,
+			long length) throws IOException {
+
+		payload.clear();
+		ensureRemaining(32);
+		payload.putLong(fileSize);
+		payload.putLong(lastModified);
+		payload.putLong(offset);
+		payload.putLong(length);
+		putString(fileName);
+		writePayload(WireProtocol.RANGE_BEGIN);
+		misses = 0;
+		skipped = 0;
+
+	}
+
+	public void writeFileChunk(String fileName, byte[] chunk, int length, long fileSize) throws IOException {
+
+		writeFileChunk(fileName, chunk, 0, length, fileSize);
+
+	}
+
+	/**
+	 * Announces that a file follows as the difference from the Android Server's
+	 * old copy.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param fileSize
+	 *            Long storing total size of the file.
+	 * @param lastModified
+	 *            Long storing time the file was last modified.
+	 * @param blockSize
+	 *            Int storing size of the blocks of the old copy.
+	 * @param blockCount
+	 *            Int storing number of blocks of the old copy.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public synchronized void writeDeltaBegin(String fileName, long fileSize, long lastModified, int blockSize,
+			int blockCount) throws IOException {
+
+		payload.clear();
+		ensureRemaining(24);
+		payload.putLong(fileSize);
+		payload.putLong(lastModified);
+		payload.putInt(blockSize);
+		payload.putInt(blockCount);
+		putString(fileName);
+		writePayload(WireProtocol.DELTA_BEGIN);
+		misses = 0;
+		skipped = 0;
+
+	}
+
+	/**
+	 * Tells the Android Server to copy a run of blocks from its old copy.
+	 * 
+	 * @param firstBlock
+	 *            Int storing index of the first block to copy.
+	 * @param blockCount
+	 *            Int storing number of consecutive blocks to copy.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public synchronized void writeDeltaCopy(int firstBlock, int blockCount) throws IOException {
+
+		payload.clear();
+		payload.putInt(firstBlock);
+		payload.putInt(blockCount);
+		writePayload(WireProtocol.DELTA_COPY);
+
+	}
+
+	/**
+	 * Writes the next chunk of a file, taken from part of passed-in buffer.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param chunk
+	 *            Byte array storing contents of the chunk.
+	 * @param offset
+	 *            Int storing index of the first byte of the chunk.
+	 * @param length
+	 *            Int storing number of bytes of chunk to send.
+	 * @param fileSize
+	 *            Long storing total size of the file.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public synchronized void writeFileChunk(String fileName, byte[] chunk, int offset, int length, long fileSize)
+			throws IOException {
+
+		int crc = Crc32c.of(checksum, chunk, offset, length);
+		trailer[0] = (byte) (crc >>> 24);
+		trailer[1] = (byte) (crc >>> 16);
+		trailer[2] = (byte) (crc >>> 8);
+		trailer[3] = (byte) crc;
+
+		byte flags = WireProtocol.FLAG_CRC32C;
+		byte[] body = chunk;
+		int bodyOffset = offset;
+		int bodyLength = length;
+		if (compressor() != null && shouldTryCompressing()) {
+			if (compress(chunk, offset, length)) {
+				misses = 0;
+				flags |= WireProtocol.FLAG_DEFLATE;
+				body = compressed;
+				bodyOffset = 0;
+				bodyLength = compressedLength;
+			} else {
+				misses++;
+			}
+		}
+
+		frames.writeFrame(WireProtocol.FILE_DATA, flags, streamId, body, bodyOffset, bodyLength, trailer, 4);
+		bytesIn += length;
+		bytesOut += WireProtocol.HEADER_SIZE + bodyLength + 4;
+
+	}
+
+	/**
+	 * Writes the next chunk of a file straight from passed-in reader to the
+	 * connection, without copying it onto the heap. The chunk is sent without a
+	 * CRC32C trailer, and never compressed.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param source
+	 *            FileChannelSender storing reader of the file, at the first byte of
+	 *            the chunk.
+	 * @param maxLength
+	 *            Int storing maximum number of bytes to send.
+	 * @param fileSize
+	 *            Long storing total size of the file.
+	 * @return Int storing number of bytes sent, 0 at the end of the file; or -1
+	 *         if nothing was sent because the chunk must be read and sent with
+	 *         writeFileChunk instead.
+	 * @throws FileChannelSender.TruncatedException
+	 *             If the file shrank partway through the chunk.
+	 * @throws IOException
+	 *             If the file cannot be read or the connection is lost.
+	 */
+	public synchronized int transferFileChunk(String fileName, FileChannelSender source, int maxLength,
+			long fileSize) throws IOException {
+
+		if (!frames.canTransfer())
+			return -1;
+		int length = (int) Math.min(maxLength, source.available());
+		if (length <= 0)
+			return 0;
+		int bytesSent = frames.transferFrame(WireProtocol.FILE_DATA, streamId, source, length);
+		if (bytesSent < 0)
+			return -1;
+		bytesIn += bytesSent;
+		bytesOut += WireProtocol.HEADER_SIZE + length;
+		if (bytesSent < length)
+			throw new FileChannelSender.TruncatedException(fileName);
+		return bytesSent;
+
+	}
+
+	public synchronized void writeFileEnd(String fileName, long fileSize) throws IOException {
+
+		payload.clear();
+		ensureRemaining(8);
+		payload.putLong(fileSize);
+		putString(fileName);
+		writePayload(WireProtocol.FILE_END);
+
+	}
+
+	/**
+	 * Writes the payload buffer as one frame of passed-in type.
+	 * 
+	 * @param type
+	 *            Byte storing frame type.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	private void writePayload(byte type) throws IOException {
+
+		frames.writeFrame(type, (byte) 0, streamId, payload.array(), 0, payload.position(), null, 0);
+		bytesIn += payload.position();
+		bytesOut += WireProtocol.HEADER_SIZE + payload.position();
+		releasePayload();
+
+	}
+
+	/**
+	 * Writes the compressed buffer as one frame of passed-in type.
+	 * 
+	 * @param type
+	 *            Byte storing frame type.
+	 * @param uncompressedLength
+	 *            Int storing length of the payload before compression.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	private void writeCompressed(byte type, int uncompressedLength) throws IOException {
+
+		frames.writeFrame(type, WireProtocol.FLAG_DEFLATE, streamId, compressed, 0, compressedLength, null, 0);
+		bytesIn += uncompressedLength;
+		bytesOut += WireProtocol.HEADER_SIZE + compressedLength;
+		releasePayload();
+		if (compressed.length > MAX_RETAINED_PAYLOAD)
+			compressed = new byte[0];
+
+	}
+
+	/**
+	 * Returns this stream's compressor if compression is turned on for the
+	 * connection, creating it when first needed.
+	 * 
+	 * @return Deflater to compress with, or null if compression is off.
+	 */
+	private Deflater compressor() {
+
+		if (frames.isCompressing()) {
+			if (deflater == null)
+				deflater = new Deflater(COMPRESSION_LEVEL);
+		} else if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		return deflater;
+
+	}
+
+	/**
+	 * Decides whether the next chunk of the current file is worth compressing,
+	 * based on how the chunks before it did.
+	 * 
+	 * @return Boolean True if the chunk should be compressed; False if not.
+	 */
+	private boolean shouldTryCompressing() {
+
+		if (misses < MAX_MISSES)
+			return true;
+		if (++skipped < RETRY_INTERVAL)
+			return false;
+		skipped = 0;
+		return true;
+
+	}
+
+	/**
+	 * Deflates passed-in part of a buffer into the compressed buffer, prefixed
+	 * with its length. Gives up as soon as the result would not save at least an
+	 * eighth of the input.
+	 * 
+	 * @param input
+	 *            Byte array storing bytes to compress.
+	 * @param offset
+	 *            Int storing index of the first byte to compress.
+	 * @param length
+	 *            Int storing number of bytes to compress.
+	 * @return Boolean True if the input shrank enough; False if it should be sent
+	 *         raw.
+	 */
+	private boolean compress(byte[] input, int offset, int length) {
+
+		int limit = length - length / 8;
+		if (limit <= 4)
+			return false;
+		if (compressed.length < limit)
+			compressed = new byte[limit];
+
+		compressed[0] = (byte) (length >>> 24);
+		compressed[1] = (byte) (length >>> 16);
+		compressed[2] = (byte) (length >>> 8);
+		compressed[3] = (byte) length;
+
+		deflater.reset();
+		deflater.setInput(input, offset, length);
+		deflater.finish();
+		compressedLength = 4 + deflater.deflate(compressed, 4, limit - 4);
+		return deflater.finished();
+
+	}
+
+	/**
+	 * Appends passed-in string to the payload buffer as UTF-8.
+	 * 
+	 * @param s
+	 *            String to append.
+	 * @throws CharacterCodingException
+	 *             If the string is not valid UTF-16, such as a lone surrogate.
+	 * @throws PayloadTooLargeException
+	 *             If the payload would grow past WireProtocol.MAX_PAYLOAD.
+	 */
+	private void putString(String s) throws CharacterCodingException, PayloadTooLargeException {
+
+		CharBuffer chars = CharBuffer.wrap(s);
+		encoder.reset();
+		while (true) {
+			CoderResult result = encoder.encode(chars, payload, true);
+			if (result.isError())
+				result.throwException();
+			if (result.isOverflow()) {
+				ensureRemaining(Math.max(64, chars.remaining() * 3));
+				continue;
+			}
+			result = encoder.flush(payload);
+			if (result.isOverflow()) {
+				ensureRemaining(64);
+				continue;
+			}
+			return;
+		}
+
+	}
+
+	/**
+	 * Grows the payload buffer so at least passed-in number of bytes fit after its
+	 * position.
+	 * 
+	 * @param bytes
+	 *            Int storing number of bytes needed.
+	 * @throws PayloadTooLargeException
+	 *             If the payload would grow past WireProtocol.MAX_PAYLOAD, in which
+	 *             case the buffer is left as it is.
+	 */
+	private void ensureRemaining(int bytes) throws PayloadTooLargeException {
+
+		if (payload.remaining() >= bytes)
+			return;
+		long needed = (long) payload.position() + bytes;
+		if (needed > WireProtocol.MAX_PAYLOAD)
+			throw new PayloadTooLargeException();
+		int capacity = (int) Math.min(Math.max(payload.capacity() * 2L, needed), WireProtocol.MAX_PAYLOAD);
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		payload.flip();
+		grown.put(payload);
+		payload = grown;
+
+	}
+
+	/**
+	 * Drops the payload buffer if it has grown past MAX_RETAINED_PAYLOAD, once its
+	 * frame has been written.
+	 */
+	private void releasePayload() {
+
+		if (payload.capacity() > MAX_RETAINED_PAYLOAD)
+			payload = ByteBuffer.allocate(PAYLOAD_SIZE);
+
+	}
+
+}
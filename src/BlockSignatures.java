@@ -0,0 +1,161 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Signatures of the blocks of the Android Server's old copy of a file, sent
+ * with a delta request. Each block has a weak RollingChecksum and a strong MD5
+ * hash; blocks are looked up by weak checksum first, and the strong hash is
+ * only compared for blocks whose weak checksum matches.
+ */
+public class BlockSignatures {
+
+	// Bounds of the block size a client may choose.
+	public static int MIN_BLOCK_SIZE = 512;
+	public static int MAX_BLOCK_SIZE = 1048576;
+
+	// Maximum number of blocks in one request.
+	public static int MAX_BLOCKS = ServerConfig.getInt("droidtooth.delta.maxBlocks", 262144);
+
+	// Length of each strong hash (MD5).
+	public static int STRONG_LENGTH = 16;
+
+	private int blockSize; // Size of every block.
+	private int count; // Number of blocks added so far.
+
+	private int[] weak = new int[0]; // Weak checksum of each block.
+	private byte[] strong = new byte[0]; // Strong hashes of all blocks, one after another.
+
+	// Index of the first block with each weak checksum, and of the next block with
+	// the same weak checksum as each block.
+	private Map<Integer, Integer> firstWithWeak = new HashMap<Integer, Integer>();
+	private int[] nextWithWeak = new int[0];
+
+	/**
+	 * Creates an empty set of signatures.
+	 * 
+	 * @param size
+	 *            Int storing size of every block.
+	 */
+	public BlockSignatures(int size) {
+
+		blockSize = size;
+
+	}
+
+	/**
+	 * Getter method for private field blockSize.
+	 * 
+	 * @return Int storing size of every block.
+	 */
+	public int getBlockSize() {
+
+		return blockSize;
+
+	}
+
+	/**
+	 * Number of blocks.
+	 * 
+	 * @return Int storing number of blocks added.
+	 */
+	public int size() {
+
+		return count;
+
+	}
+
+	/**
+	 * Adds the signature of the next block.
+	 * 
+	 * @param weakChecksum
+	 *            Int storing RollingChecksum of the block.
+	 * @param strongHash
+	 *            Byte array storing MD5 of the block.
+	 */
+	public void add(int weakChecksum, byte[] strongHash) {
+
+		if (count == nextWithWeak.length) {
+			int capacity = Math.max(16, count * 2);
+			int[] grownNext = new int[capacity];
+			System.arraycopy(nextWithWeak, 0, grownNext, 0, count);
+			nextWithWeak = grownNext;
+			int[] grownWeak = new int[capacity];
+			System.arraycopy(weak, 0, grownWeak, 0, count);
+			weak = grownWeak;
+			byte[] grownStrong = new byte[capacity * STRONG_LENGTH];
+			System.arraycopy(strong, 0, grownStrong, 0, count * STRONG_LENGTH);
+			strong = grownStrong;
+		}
+
+		weak[count] = weakChecksum;
+		System.arraycopy(strongHash, 0, strong, count * STRONG_LENGTH, STRONG_LENGTH);
+		Integer first = firstWithWeak.put(weakChecksum, count);
+		nextWithWeak[count] = first == null ? -1 : first;
+		count++;
+
+	}
+
+	/**
+	 * Checks if any block has passed-in weak checksum.
+	 * 
+	 * @param weakChecksum
+	 *            Int storing RollingChecksum to look for.
+	 * @return Boolean True if a block might match; False if none can.
+	 */
+	public boolean hasWeak(int weakChecksum) {
+
+		return firstWithWeak.containsKey(weakChecksum);
+
+	}
+
+	/**
+	 * Finds a block with passed-in checksums, preferring passed-in block so that
+	 * runs of consecutive blocks stay together. The preferred block is checked on
+	 * its own first, so a file of many identical blocks is not searched in full
+	 * for every block.
+	 * 
+	 * @param weakChecksum
+	 *            Int storing RollingChecksum to look for.
+	 * @param strongHash
+	 *            Byte array storing MD5 to look for.
+	 * @param preferred
+	 *            Int storing index of the block to prefer, or -1.
+	 * @return Int storing index of a matching block, or -1 if none matches.
+	 */
+	public int find(int weakChecksum, byte[] strongHash, int preferred) {
+
+		if (preferred >= 0 && preferred < count && weak[preferred] == weakChecksum
+				&& strongEquals(preferred, strongHash))
+			return preferred;
+		Integer first = firstWithWeak.get(weakChecksum);
+		if (first == null)
+			return -1;
+		for (int i = first; i != -1; i = nextWithWeak[i]) {
+			if (strongEquals(i, strongHash))
+				return i;
+		}
+		return -1;
+
+	}
+
+	/**
+	 * Compares the strong hash of passed-in block with passed-in hash.
+	 * 
+	 * @param index
+	 *            Int storing index of the block.
+	 * @param strongHash
+	 *            Byte array storing MD5 to compare with.
+	 * @return Boolean True if equal; False if not.
+	 */
+	private boolean strongEquals(int index, byte[] strongHash) {
+
+		int at = index * STRONG_LENGTH;
+		for (int i = 0; i < STRONG_LENGTH; i++) {
+			if (strong[at + i] != strongHash[i])
+				return false;
+		}
+		return true;
+
+	}
+
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.bluetooth.*;
+import javax.microedition.io.*;
+
+/**
+ * Implementation of Transport which accepts Bluetooth RFCOMM connections
+ * through BlueCove, advertised as "PC Server".
+ */
+public class BluetoothTransport implements Transport {
+
+	private StreamConnectionNotifier streamNotifier; // Open service, if listening.
+
+	/**
+	 * Opens the Bluetooth service.
+	 * 
+	 * @throws IOException
+	 *             If the service cannot be opened.
+	 */
+	public void open() throws IOException {
+
+		UUID uuid = new UUID("1101", true); // Create a UUID for PC Server.
+		String connectionString = "btspp://localhost:" + uuid + ";name=PC Server"; // Create the service URL.
+		streamNotifier = (StreamConnectionNotifier) Connector.open(connectionString);
+
+	}
+
+	/**
+	 * Waits for connection from Android Server.
+	 * 
+	 * @return TransportConnection storing the accepted connection.
+	 * @throws IOException
+	 *             If the service fails while waiting.
+	 */
+	public TransportConnection accept() throws IOException {
+
+		return new Connection(streamNotifier.acceptAndOpen());
+
+	}
+
+	/**
+	 * Closes the Bluetooth service.
+	 * 
+	 * @throws IOException
+	 *             If the service cannot be closed.
+	 */
+	public void close() throws IOException {
+
+		if (streamNotifier != null)
+			streamNotifier.close();
+		streamNotifier = null;
+
+	}
+
+	/**
+	 * Bluetooth connections are identified by the remote device's Bluetooth
+	 * address.
+	 * 
+	 * @return PeerAddressProvider looking up remote Bluetooth addresses.
+	 */
+	public PeerAddressProvider getDefaultPeerAddressProvider() {
+
+		return new AddressProvider();
+
+	}
+
+	/**
+	 * Bluetooth devices must be paired before they can connect, so unrecognized
+	 * devices are only counted.
+	 * 
+	 * @param peerAddress
+	 *            String storing Bluetooth address of the connected device.
+	 * @return Boolean storing true.
+	 */
+	public boolean acceptsUnrecognizedPeer(String peerAddress) {
+
+		return true;
+
+	}
+
+	/**
+	 * A single Bluetooth connection.
+	 */
+	public static class Connection implements TransportConnection {
+
+		private StreamConnection connection;
+
+		Connection(StreamConnection streamConnection) {
+
+			connection = streamConnection;
+
+		}
+
+		/**
+		 * Getter method for private field connection.
+		 * 
+		 * @return StreamConnection storing the underlying Bluetooth connection.
+		 */
+		public StreamConnection getStreamConnection() {
+
+			return connection;
+
+		}
+
+		public InputStream openInputStream() throws IOException {
+
+			return connection.openInputStream();
+
+		}
+
+		public OutputStream openOutputStream() throws IOException {
+
+			return connection.openOutputStream();
+
+		}
+
+		public void close() throws IOException {
+
+			connection.close();
+
+		}
+
+	}
+
+	/**
+	 * Implementation of PeerAddressProvider which looks up the remote device of a
+	 * Bluetooth connection.
+	 */
+	public static class AddressProvider implements PeerAddressProvider {
+
+		public String getPeerAddress(TransportConnection connection) throws IOException {
+
+			StreamConnection streamConnection = ((Connection) connection).getStreamConnection();
+			return RemoteDevice.getRemoteDevice(streamConnection).getBluetoothAddress();
+
+		}
+
+	}
+
+}
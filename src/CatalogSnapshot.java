@@ -0,0 +1,326 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of a FileCatalog saved to SNAPSHOT_FILE, so a restarted PC Server
+ * can answer listings straight away instead of walking TLD first. The snapshot
+ * holds every directory underneath TLD with the last modified time it had when
+ * it was listed, and the names of the files in it. A directory whose last
+ * modified time is unchanged still holds the same files, so only changed
+ * directories need to be listed again.
+ * 
+ * The file is a header (magic, version, TLD), the directories as paths
+ * relative to TLD with their last modified times, then the file names of each
+ * directory in turn. Strings are stored as a length followed by UTF-8 bytes. The
+ * file is read whole with one channel read and closed before it is decoded,
+ * rather than memory-mapped, since a mapped file cannot be replaced on Windows
+ * until the mapping is garbage collected.
+ */
+public class CatalogSnapshot {
+
+	// File the snapshot is saved to.
+	public static String SNAPSHOT_FILE = ServerConfig.getString("droidtooth.catalog.snapshotFile",
+			"Files" + File.separator + "CATALOG_SNAPSHOT.bin");
+
+	// Identifies snapshot files, and the version of their format.
+	private static int MAGIC = 0x44544353;
+	private static int VERSION = 1;
+
+	// Last modified time recorded for directories changed since they were listed.
+	public static long UNKNOWN_TIME = -1;
+
+	private String[] directories; // Absolute path of each directory.
+	private long[] directoryTimes; // Last modified time of each directory.
+
+	// Absolute paths of the files of directory i, from fileStarts[i] to
+	// fileStarts[i + 1].
+	private int[] fileStarts;
+	private String[] files;
+
+	private CatalogSnapshot(String[] directories, long[] directoryTimes, int[] fileStarts, String[] files) {
+
+		this.directories = directories;
+		this.directoryTimes = directoryTimes;
+		this.fileStarts = fileStarts;
+		this.files = files;
+
+	}
+
+	/**
+	 * Number of directories in the snapshot.
+	 * 
+	 * @return Int storing number of directories underneath TLD, including TLD.
+	 */
+	public int getDirectoryCount() {
+
+		return directories.length;
+
+	}
+
+	/**
+	 * Get a directory of the snapshot. Every directory comes after the directory
+	 * containing it.
+	 * 
+	 * @param i
+	 *            Int storing index of the directory.
+	 * @return String storing absolute path of the directory.
+	 */
+	public String getDirectory(int i) {
+
+		return directories[i];
+
+	}
+
+	/**
+	 * Get the last modified time a directory had when it was listed.
+	 * 
+	 * @param i
+	 *            Int storing index of the directory.
+	 * @return Long storing last modified time in milliseconds, or UNKNOWN_TIME if
+	 *         it changed after it was listed.
+	 */
+	public long getLastModified(int i) {
+
+		return directoryTimes[i];
+
+	}
+
+	/**
+	 * Get the files directly inside a directory.
+	 * 
+	 * @param i
+	 *            Int storing index of the directory.
+	 * @return ArrayList<String> storing absolute paths of the files.
+	 */
+	public ArrayList<String> getFiles(int i) {
+
+		ArrayList<String> found = new ArrayList<String>(fileStarts[i + 1] - fileStarts[i]);
+		for (int j = fileStarts[i]; j < fileStarts[i + 1]; j++) {
+			found.add(files[j]);
+		}
+		return found;
+
+	}
+
+	/**
+	 * Number of files in the snapshot.
+	 * 
+	 * @return Int storing number of files underneath TLD.
+	 */
+	public int getFileCount() {
+
+		return files.length;
+
+	}
+
+	/**
+	 * Saves passed-in catalog contents to passed-in file, through a temporary file
+	 * which is then moved over it.
+	 * 
+	 * @param f
+	 *            File the snapshot is saved to.
+	 * @param root
+	 *            Path storing absolute path of TLD.
+	 * @param directories
+	 *            Map<String, Long> storing absolute path of every directory
+	 *            underneath TLD, sorted, and its last modified time when listed.
+	 * @param files
+	 *            Collection<String> storing absolute paths of all files
+	 *            underneath TLD.
+	 * @throws IOException
+	 *             If the snapshot cannot be written.
+	 */
+	public static void write(File f, Path root, Map<String, Long> directories, Collection<String> files)
+			throws IOException {
+
+		String rootPath = root.toString();
+
+		// Group file names by directory, dropping any whose directory is not known.
+		HashMap<String, ArrayList<String>> names = new HashMap<String, ArrayList<String>>();
+		for (String path : directories.keySet()) {
+			names.put(path, new ArrayList<String>());
+		}
+		for (String path : files) {
+			int separator = path.lastIndexOf(File.separatorChar);
+			ArrayList<String> inDirectory = separator == -1 ? null : names.get(path.substring(0, separator));
+			if (inDirectory != null)
+				inDirectory.add(path.substring(separator + 1));
+		}
+
+		File dir = f.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		File temp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, rootPath);
+
+			// Keep a stable copy, since the catalog may change while it is saved.
+			ArrayList<Map.Entry<String, Long>> entries =
+					new ArrayList<Map.Entry<String, Long>>(directories.entrySet());
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Long> entry : entries) {
+				String path = entry.getKey();
+				writeString(out, path.length() > rootPath.length() ? path.substring(rootPath.length() + 1) : "");
+				out.writeLong(entry.getValue());
+			}
+			for (Map.Entry<String, Long> entry : entries) {
+				ArrayList<String> inDirectory = names.get(entry.getKey());
+				out.writeInt(inDirectory.size());
+				for (String name : inDirectory) {
+					writeString(out, name);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Reads the snapshot saved to passed-in file.
+	 * 
+	 * @param f
+	 *            File the snapshot was saved to.
+	 * @param root
+	 *            Path storing absolute path of TLD.
+	 * @return CatalogSnapshot storing saved catalog, or null if there is none, or
+	 *         it is of another TLD or format.
+	 * @throws IOException
+	 *             If the file cannot be read or is damaged.
+	 */
+	public static CatalogSnapshot read(File f, Path root) throws IOException {
+
+		if (!f.isFile())
+			return null;
+		ByteBuffer in;
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Damaged catalog snapshot");
+			in = ByteBuffer.allocate((int) channel.size());
+			while (in.hasRemaining()) {
+				if (channel.read(in) == -1)
+					break;
+			}
+			in.flip();
+		} finally {
+			file.close();
+		}
+
+		try {
+			byte[] buffer = new byte[256];
+
+			if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION)
+				return null;
+			String rootPath = root.toString();
+			if (!readString(in, buffer).equals(rootPath))
+				return null;
+
+			int directoryCount = readCount(in);
+			String[] directories = new String[directoryCount];
+			long[] directoryTimes = new long[directoryCount];
+			for (int i = 0; i < directoryCount; i++) {
+				String relative = readString(in, buffer);
+				directories[i] = relative.equals("") ? rootPath : rootPath + File.separator + relative;
+				directoryTimes[i] = in.getLong();
+			}
+
+			int[] fileStarts = new int[directoryCount + 1];
+			ArrayList<String> files = new ArrayList<String>();
+			for (int i = 0; i < directoryCount; i++) {
+				fileStarts[i] = files.size();
+				int fileCount = readCount(in);
+				String prefix = directories[i] + File.separator;
+				for (int j = 0; j < fileCount; j++) {
+					files.add(prefix + readString(in, buffer));
+				}
+			}
+			fileStarts[directoryCount] = files.size();
+			return new CatalogSnapshot(directories, directoryTimes, fileStarts, files.toArray(new String[files.size()]));
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Damaged catalog snapshot");
+		}
+
+	}
+
+	/**
+	 * Writes passed-in string as its length followed by its UTF-8 bytes.
+	 * 
+	 * @param out
+	 *            DataOutputStream to write to.
+	 * @param s
+	 *            String to write.
+	 * @throws IOException
+	 *             If the string cannot be written.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+
+	}
+
+	/**
+	 * Reads a count of directories, files or bytes, each of which takes at least a
+	 * byte of what is left.
+	 * 
+	 * @param in
+	 *            ByteBuffer to read from.
+	 * @return Int storing count read.
+	 * @throws BufferUnderflowException
+	 *             If the count is larger than what is left, or negative.
+	 */
+	private static int readCount(ByteBuffer in) {
+
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining())
+			throw new BufferUnderflowException();
+		return count;
+
+	}
+
+	/**
+	 * Reads a string written by writeString.
+	 * 
+	 * @param in
+	 *            ByteBuffer to read from.
+	 * @param buffer
+	 *            Byte array used for the bytes if it is large enough.
+	 * @return String read.
+	 */
+	private static String readString(ByteBuffer in, byte[] buffer) {
+
+		int length = readCount(in);
+		byte[] bytes = length <= buffer.length ? buffer : new byte[length];
+		in.get(bytes, 0, length);
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+
+	}
+
+}
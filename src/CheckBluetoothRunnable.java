@@ -1,12 +1,12 @@
 import javax.bluetooth.*;
 
 /**
- * Implementation of Runnable which checks if the Local Device's Bluetooth is on
- * and also checks which state PC Server is currently in. Program will exit if
+ * Implementation of Runnable which checks if the Local Device's Bluetooth is on,
+ * and listener which reacts to PC Server changing state. Program will exit if
  * Bluetooth is turned off during execution. Program will listen for a new
  * connection if current connection terminates or reaches timeout period.
  */
-public class CheckBluetoothRunnable implements Runnable {
+public class CheckBluetoothRunnable implements Runnable, ConnectionStateListener {
 
 	private PCServer server; // Instance of PC Server.
 
@@ -17,7 +17,8 @@ public class CheckBluetoothRunnable implements Runnable {
 	 */
 
 	/**
-	 * Sets private parameter to passed-in PCServer object.
+	 * Sets private parameter to passed-in PCServer object and starts listening for
+	 * its changes of state.
 	 * 
 	 * @param pc
 	 *            Current instance of PC Server.
@@ -25,32 +26,43 @@ public class CheckBluetoothRunnable implements Runnable {
 	public CheckBluetoothRunnable(PCServer pc) {
 
 		server = pc;
+		server.getStateMachine().addListener(this);
 
 	}
 
 	/**
-	 * Always checks if Local Device's Bluetooth is on, forcing program to exit if
-	 * Bluetooth is turned off during execution. Always checks current state of PC
-	 * Server and listens for a new connection if current connection terminates or
-	 * reaches timeout period.
+	 * Checks once if Local Device's Bluetooth is on, forcing program to exit if
+	 * Bluetooth is turned off during execution. Meant to be scheduled to run
+	 * periodically.
 	 */
 	public void run() {
 
-		while (true) {
-
-			if (!LocalDevice.isPowerOn()) {
-				System.out.println("Bluetooth is off, turn on and re-execute program");
-				System.exit(0);
-			}
-			if (server.isTerminated()) {
-				server.newCurrentState(-100); // Set current state to disconnected.
-			}
-			if (server.isTimedOut()) {
-				server.newCurrentState(-1); // Set current state to terminated.
-			}
-			
+		if (!LocalDevice.isPowerOn()) {
+			System.out.println("Bluetooth is off, turn on and re-execute program");
+			System.exit(0);
 		}
 
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Moves PC Server on from terminated and timed out states, so it listens for a
+	 * new connection.
+	 * 
+	 * @param oldState
+	 *            ConnectionState PC Server was in.
+	 * @param newState
+	 *            ConnectionState PC Server is now in.
+	 */
+	public void stateChanged(ConnectionState oldState, ConnectionState newState) {
+
+		if (newState == ConnectionState.TERMINATED) {
+			// Set current state to disconnected.
+			server.getStateMachine().transition(ConnectionState.TERMINATED, ConnectionState.DISCONNECTED);
+		} else if (newState == ConnectionState.TIME_OUT) {
+			// Set current state to terminated.
+			server.getStateMachine().transition(ConnectionState.TIME_OUT, ConnectionState.TERMINATED);
+		}
+
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Chooses the size of the file chunks a session sends, from the throughput
+ * and write latency it measures while files are sent. Every window of chunks,
+ * the chunk size moves one step (a factor of two) in its current direction
+ * while throughput keeps improving, and turns around once throughput drops.
+ * Chunks whose write takes longer than the target latency shrink the size
+ * straight away, since every frame of other streams waits for the chunk being
+ * written. Each chunk is flushed as one frame, so the flush size follows the
+ * chunk size.
+ */
+public class ChunkSizer {
+
+	// Bounds and starting point of the chunk size.
+	public static int MIN_CHUNK_SIZE = ServerConfig.getInt("droidtooth.chunk.min", 4096);
+	public static int MAX_CHUNK_SIZE = ServerConfig.getInt("droidtooth.chunk.max", 1048576);
+	public static int INITIAL_CHUNK_SIZE = ServerConfig.getInt("droidtooth.chunk.initial", 65536);
+
+	// Longest a single chunk write should take, in milliseconds.
+	private static long TARGET_LATENCY = ServerConfig.getLong("droidtooth.chunk.targetLatency", 250);
+
+	// Chunks measured before the size is changed.
+	private static int WINDOW_CHUNKS = 8;
+
+	// Smallest change in throughput taken as a real change rather than noise.
+	private static double TOLERANCE = 0.05;
+
+	private int chunkSize; // Size of the next chunk.
+	private boolean growing = true; // Direction of the next step.
+
+	// Bytes and nanoseconds of the chunks written in the current window.
+	private long windowBytes;
+	private long windowNanos;
+	private int windowChunks;
+
+	// Throughput of the last window, in bytes per second, or 0 before the first.
+	private double lastThroughput;
+
+	/**
+	 * Starts at passed-in chunk size, clamped to the configured bounds.
+	 * 
+	 * @param initialSize
+	 *            Int storing chunk size to start with, or 0 for the default.
+	 */
+	public ChunkSizer(int initialSize) {
+
+		chunkSize = clamp(initialSize > 0 ? initialSize : INITIAL_CHUNK_SIZE);
+
+	}
+
+	/**
+	 * Getter method for private field chunkSize.
+	 * 
+	 * @return Int storing size the next chunk should be.
+	 */
+	public synchronized int getChunkSize() {
+
+		return chunkSize;
+
+	}
+
+	/**
+	 * Records how long writing one chunk took, adjusting the chunk size when a
+	 * window is complete or the write was too slow.
+	 * 
+	 * @param length
+	 *            Int storing number of file bytes in the chunk.
+	 * @param nanos
+	 *            Long storing nanoseconds the write took.
+	 */
+	public synchronized void chunkWritten(int length, long nanos) {
+
+		// Only chunks of the current size say anything about it.
+		if (length < chunkSize)
+			return;
+
+		if (nanos > TARGET_LATENCY * 1000000 && chunkSize > MIN_CHUNK_SIZE) {
+			resize(chunkSize / 2);
+			growing = false;
+			lastThroughput = 0;
+			return;
+		}
+
+		windowBytes += length;
+		windowNanos += nanos;
+		if (++windowChunks < WINDOW_CHUNKS || windowNanos == 0)
+			return;
+
+		double throughput = windowBytes * 1e9 / windowNanos;
+		if (lastThroughput > 0 && throughput < lastThroughput * (1 - TOLERANCE))
+			growing = !growing; // The last step made things worse.
+		lastThroughput = throughput;
+		resize(growing ? chunkSize * 2 : chunkSize / 2);
+
+	}
+
+	/**
+	 * Changes the chunk size and starts a new window. At either bound the next
+	 * step turns back.
+	 * 
+	 * @param newSize
+	 *            Int storing requested chunk size.
+	 */
+	private void resize(int newSize) {
+
+		chunkSize = clamp(newSize);
+		if (chunkSize == MAX_CHUNK_SIZE)
+			growing = false;
+		else if (chunkSize == MIN_CHUNK_SIZE)
+			growing = true;
+		windowBytes = 0;
+		windowNanos = 0;
+		windowChunks = 0;
+
+	}
+
+	/**
+	 * Clamps passed-in chunk size to the configured bounds.
+	 * 
+	 * @param size
+	 *            Int storing chunk size.
+	 * @return Int storing chunk size within bounds.
+	 */
+	private static int clamp(int size) {
+
+		return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+
+	}
+
+}
@@ -0,0 +1,1458 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A single connection from an Android Server. Each session has its own
+ * streams, state and queue of files to be sent, so PC Server can serve several
+ * Android Servers at once without one slow transfer holding up the others.
+ */
+public class ClientSession implements Runnable {
+
+	// Shares the PC Server log.
+	private static Logger logger = Logger.getLogger("PCServerLog");
+
+	// Protocols to be received.
+	private static String SEND_FILE_NAMES = "ls";
+	private static String LIST_DIRECTORY = "lsdir";
+	private static String FIND = "find";
+	private static String EXIT_CONNECTION = "exit";
+	private static String SWITCH_PROTOCOL = "proto binary";
+	private static String CHUNKED = "proto chunked";
+	private static String COMPRESS = "compress";
+	private static String GET_RANGE = "get";
+	private static String RESUME = "resume";
+	private static String HASH = "hash";
+	private static String GET_IF_CHANGED = "getif";
+	private static String DELTA = "delta";
+	private static String DELTA_END = "end";
+	private static String ARCHIVE = "zip";
+	private static String ENCRYPT = "encrypt";
+
+	// Prefix of tagged requests, "#id protocol", whose responses carry the id as
+	// their stream id.
+	private static String REQUEST_TAG = "#";
+
+	// Maximum number of tagged requests served at once per session; the reader
+	// waits for one to complete before accepting more.
+	private static int MAX_PIPELINED = ServerConfig.getInt("droidtooth.pipeline.maxRequests", 4);
+
+	// True to hand file contents of plain binary sessions over TCP straight from
+	// the file to the socket with FileChannel.transferTo.
+	private static boolean TRANSFER_TO = ServerConfig.getBoolean("droidtooth.tcp.transferTo", true);
+
+	// Source of session numbers, used to tell sessions apart in output.
+	private static AtomicInteger nextId = new AtomicInteger(1);
+
+	private int id; // Number of this session.
+	private PCServer server; // Instance of PC Server which accepted the connection.
+	private TransportConnection connection; // Connection to the Android Server.
+	private String peerAddress; // Address of the Android Server.
+	private long startedAt = System.nanoTime(); // When the session was created.
+	private AtomicLong bytesSent = new AtomicLong(); // File bytes sent.
+
+	// Chooses the size of file chunks sent to the Android Server.
+	private ChunkSizer chunkSizer;
+
+	// Current state of this session, starting out connected.
+	private ConnectionStateMachine state = new ConnectionStateMachine(ConnectionState.CONNECTED);
+
+	// Streams used for input and output.
+	private InputStream inputStream;
+	private BufferedReader bReader;
+	private OutputStream outputStream;
+
+	// Writes responses in the wire format in use, starting out with
+	// CloudToothMessages.
+	private volatile MessageWriter writer;
+
+	// Queue of files to be sent, and the task which sends them.
+	private FileTransferQueue filesToSend = new FileTransferQueue();
+	private Future<?> sender;
+
+	// Writer of queued files in binary protocol. It is separate from the writer of
+	// responses, so responses are not held up behind the file being sent.
+	private volatile BinaryMessageWriter queueWriter;
+
+	// Number of files being sent at once, by the sender task and tagged requests.
+	private int filesBeingSent;
+
+	// Number of queued files the sender task has taken a writer for and not yet
+	// sent; guarded by this session's lock.
+	private int filesTaken;
+
+	// Tagged requests being served, and the slots limiting how many there are.
+	private Set<Future<?>> pipelined = Collections.synchronizedSet(new HashSet<Future<?>>());
+	private Semaphore pipelineSlots = new Semaphore(MAX_PIPELINED);
+
+	/**
+	 * Creates a session for passed-in connection.
+	 * 
+	 * @param pc
+	 *            Instance of PC Server which accepted the connection.
+	 * @param streamConnection
+	 *            TransportConnection to the Android Server.
+	 * @param address
+	 *            String storing address of the Android Server.
+	 */
+	public ClientSession(PCServer pc, TransportConnection streamConnection, String address) {
+
+		id = nextId.getAndIncrement();
+		server = pc;
+		connection = streamConnection;
+		peerAddress = address;
+		chunkSizer = new ChunkSizer(server.getPeerChunkSizes() != null ? server.getPeerChunkSizes().get(address) : 0);
+
+	}
+
+	/**
+	 * Getter method for private field id.
+	 * 
+	 * @return Int storing number of this session.
+	 */
+	public int getId() {
+
+		return id;
+
+	}
+
+	/**
+	 * Getter method for private field peerAddress.
+	 * 
+	 * @return String storing address of the Android Server.
+	 */
+	public String getPeerAddress() {
+
+		return peerAddress;
+
+	}
+
+	/**
+	 * Getter method for private field startedAt.
+	 * 
+	 * @return Long storing System.nanoTime when the session was created.
+	 */
+	public long getStartedAt() {
+
+		return startedAt;
+
+	}
+
+	/**
+	 * Getter method for private field bytesSent.
+	 * 
+	 * @return Long storing number of file bytes sent to the Android Server.
+	 */
+	public long getBytesSent() {
+
+		return bytesSent.get();
+
+	}
+
+	/**
+	 * Counts passed-in number of file bytes as sent, by this session and by PC
+	 * Server.
+	 * 
+	 * @param n
+	 *            Long storing number of bytes sent.
+	 */
+	private void recordBytesSent(long n) {
+
+		bytesSent.addAndGet(n);
+		server.getMetrics().bytesSent(n);
+
+	}
+
+	/**
+	 * Getter method for private field state.
+	 * 
+	 * @return ConnectionStateMachine storing current state of this session.
+	 */
+	public ConnectionStateMachine getStateMachine() {
+
+		return state;
+
+	}
+
+	/**
+	 * Check if this session is currently sending a file.
+	 * 
+	 * @return Boolean True if sending file; False if not.
+	 */
+	public boolean isSendingFile() {
+		return state.is(ConnectionState.SENDING_FILE);
+	}
+
+	/**
+	 * Getter method for private field filesToSend.
+	 * 
+	 * @return FileTransferQueue storing all files to be sent.
+	 */
+	public FileTransferQueue getFilesToSend() {
+
+		return filesToSend;
+
+	}
+
+	/**
+	 * Getter method for private field outputStream.
+	 * 
+	 * @return OutputStream storing output stream built on current connection.
+	 */
+	public OutputStream getOutputStream() {
+
+		return outputStream;
+
+	}
+
+	/**
+	 * Getter method for private field writer.
+	 * 
+	 * @return MessageWriter storing writer of the wire format in use.
+	 */
+	public MessageWriter getWriter() {
+
+		return writer;
+
+	}
+
+	/**
+	 * Checks if we can send the file, determined by how many requests are already
+	 * queued.
+	 * 
+	 * @return True if we can send file; False if not.
+	 */
+	public boolean canWeSendFile() {
+
+		return filesToSend.hasRoom();
+
+	}
+
+	/**
+	 * Adds passed-in file to queue of files to be sent.
+	 * 
+	 * @param f
+	 *            File to be added to queue of files to be sent.
+	 * @return True if the file was queued; False if the queue is full.
+	 */
+	public boolean addFileToQueue(File f) {
+
+		return addFileToQueue(f, f.getAbsolutePath());
+
+	}
+
+	/**
+	 * Adds passed-in file to queue of files to be sent. If the queue is full, the
+	 * file is not queued and the user is told to try again soon.
+	 * 
+	 * @param f
+	 *            File to be added to queue of files to be sent.
+	 * @param fileName
+	 *            String storing path of the file as requested by the user.
+	 * @return True if the file was queued; False if the queue is full.
+	 */
+	public boolean addFileToQueue(File f, String fileName) {
+
+		if (filesToSend.offer(f, fileName))
+			return true;
+		reportQueueFull(fileName, writer);
+		return false;
+
+	}
+
+	/**
+	 * Notifies the user that the queue is full and to try again soon.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file which was not queued.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void reportQueueFull(String fileName, MessageWriter out) {
+
+		String cannotSendFile = "Queue is full (" + filesToSend.size() + " of " + filesToSend.getMaxFiles()
+				+ " files, " + filesToSend.getQueuedBytes() + " of " + filesToSend.getMaxBytes()
+				+ " bytes queued). Please try again soon: " + fileName;
+		try {
+			out.writeText(cannotSendFile);
+		} catch (IOException e) {
+			ServerLog.console("Error sending queue is full: " + e);
+			logger.info("Error sending queue is full: " + e);
+		}
+
+	}
+
+	/**
+	 * Sends passed-in queued file. Called by the sender task.
+	 * 
+	 * @param entry
+	 *            FileTransferQueue.Entry storing file to be sent.
+	 */
+	public void sendQueuedFile(FileTransferQueue.Entry entry) {
+
+		MessageWriter out;
+		// Take the writer under the lock switchToBinary holds, so the protocol
+		// cannot change between taking it and sending with it.
+		synchronized (this) {
+			out = writer;
+			filesTaken++;
+		}
+		try {
+			if (out instanceof BinaryMessageWriter) {
+				if (queueWriter == null)
+					queueWriter = ((BinaryMessageWriter) out).forStream(0);
+				out = queueWriter;
+			}
+			server.getMetrics().queueWaited(entry.getQueuedAt());
+			sendEntry(entry, out);
+		} finally {
+			synchronized (this) {
+				filesTaken--;
+			}
+		}
+
+	}
+
+	/**
+	 * Queues passed-in entry to be sent after the files already queued, or sends
+	 * it straight away if it belongs to a tagged request, which already runs on
+	 * its own thread.
+	 * 
+	 * @param entry
+	 *            FileTransferQueue.Entry storing file to be sent.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void transfer(FileTransferQueue.Entry entry, MessageWriter out) {
+
+		if (isTagged(out))
+			sendEntry(entry, out);
+		else if (!filesToSend.offer(entry))
+			reportQueueFull(entry.getFileName(), out);
+
+	}
+
+	/**
+	 * Sends passed-in entry through passed-in writer, staying in the sending file
+	 * state while it is being sent.
+	 * 
+	 * @param entry
+	 *            FileTransferQueue.Entry storing file to be sent.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void sendEntry(FileTransferQueue.Entry entry, MessageWriter out) {
+
+		if (entry.isHashRequest()) {
+			answerHash(entry, out);
+			return;
+		}
+		if (!beginSending())
+			return; // Connection is no longer open.
+		String command;
+		try {
+			if (entry.isArchive())
+				sendArchive(entry.getFile(), entry.getFileName(), out);
+			else if (entry.getBasis() != null)
+				sendDelta(entry.getFile(), entry.getFileName(), entry.getBasis(), out);
+			else if (entry.isRange())
+				sendRange(entry.getFile(), entry.getFileName(), entry.getOffset(), entry.getSize(), out);
+			else
+				sendFile(entry.getFile(), entry.getFileName(), out);
+			// Latency is measured from the request, including any time queued.
+			if (entry.isArchive())
+				command = ARCHIVE;
+			else if (entry.getBasis() != null)
+				command = DELTA;
+			else if (entry.isRange())
+				command = GET_RANGE;
+			else
+				command = "file";
+			server.getMetrics().commandCompleted(command, entry.getQueuedAt());
+			server.getMetrics().transferCompleted();
+		} catch (IOException e) {
+			ServerLog.console("Error sending file bytes: " + e);
+			logger.info("Error sending file bytes: " + e);
+		}
+		endSending();
+
+	}
+
+	/**
+	 * Moves to the sending file state, unless a file is already being sent.
+	 * 
+	 * @return True if files can be sent; False if the connection is no longer
+	 *         open.
+	 */
+	private synchronized boolean beginSending() {
+
+		if (filesBeingSent == 0 ? !state.transition(ConnectionState.CONNECTED, ConnectionState.SENDING_FILE)
+				: !state.is(ConnectionState.SENDING_FILE))
+			return false;
+		filesBeingSent++;
+		return true;
+
+	}
+
+	/**
+	 * Moves back to the connected state once the last file being sent is done.
+	 */
+	private synchronized void endSending() {
+
+		if (--filesBeingSent == 0) {
+			ServerLog.console("Changing state to connected state...");
+			state.transition(ConnectionState.SENDING_FILE, ConnectionState.CONNECTED); // Update current state.
+		}
+
+	}
+
+	/**
+	 * Check if passed-in writer answers a tagged request rather than the session
+	 * as a whole.
+	 * 
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 * @return True if the request was tagged; False if not.
+	 */
+	private boolean isTagged(MessageWriter out) {
+
+		return out instanceof BinaryMessageWriter && ((BinaryMessageWriter) out).getStreamId() != 0;
+
+	}
+
+	/**
+	 * Session responds to protocol input.
+	 * 
+	 * @param input
+	 *            String storing user input.
+	 */
+	public void respond(String input) {
+
+		respond(input, writer);
+
+	}
+
+	/**
+	 * Session responds to protocol input, writing its responses through passed-in
+	 * writer.
+	 * 
+	 * @param input
+	 *            String storing user input.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void respond(String input, MessageWriter out) {
+
+		if (input == null || input.equals("") || input.equals("\n"))
+			return;
+
+		// Appropriately close program.
+		if (input.equals(EXIT_CONNECTION)) {
+			ServerLog.console("Changing state to terminated...");
+			state.transition(ConnectionState.TERMINATED);
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		// Send list of all files underneath TLD hierarchy.
+		if (input.equals(SEND_FILE_NAMES)) {
+			ServerLog.console("Sending a list of files...");
+			ArrayList<String> fileNames = server.getCatalog().getFileNames();
+			try {
+				out.writeListing(fileNames);
+			} catch (IOException e) {
+				ServerLog.console("Error writing file listing to Android Server: " + e);
+				logger.info("Error writing file listing to Android Server: " + e);
+			}
+			server.getMetrics().commandCompleted(SEND_FILE_NAMES, start);
+		} else if (input.equals(SWITCH_PROTOCOL)) {
+			switchToBinary();
+		} else if (input.equals(CHUNKED)) {
+			setChunked(out);
+		} else if (input.startsWith(ENCRYPT + " ")) {
+			startEncryption(input.substring(ENCRYPT.length()).trim(), out);
+		} else if (input.startsWith(COMPRESS + " ")) {
+			setCompression(input.substring(COMPRESS.length()).trim(), out);
+		} else if (input.startsWith(GET_RANGE + " ")) {
+			requestRange(input.substring(GET_RANGE.length()).trim(), false, out);
+		} else if (input.startsWith(RESUME + " ")) {
+			requestRange(input.substring(RESUME.length()).trim(), true, out);
+		} else if (input.startsWith(HASH + " ")) {
+			requestHash(input.substring(HASH.length()).trim(), null, out);
+		} else if (input.startsWith(GET_IF_CHANGED + " ")) {
+			String arguments = input.substring(GET_IF_CHANGED.length()).trim();
+			int space = arguments.indexOf(' ');
+			if (space == -1)
+				requestHash(arguments, "", out);
+			else
+				requestHash(arguments.substring(space + 1), arguments.substring(0, space), out);
+		} else if (input.equals(ARCHIVE) || input.startsWith(ARCHIVE + " ")) {
+			requestArchive(input.substring(ARCHIVE.length()).trim(), out);
+		} else if (input.startsWith(DELTA + " ")) {
+			FileTransferQueue.Entry delta = readDeltaRequest(input.substring(DELTA.length()).trim(), out);
+			if (delta != null)
+				transfer(delta, out);
+		} else if (input.equals(LIST_DIRECTORY) || input.startsWith(LIST_DIRECTORY + " ")) {
+			// Send one page of a single directory.
+			ServerLog.console("Sending a page of a directory...");
+			listDirectory(input.substring(LIST_DIRECTORY.length()).trim(), out);
+			server.getMetrics().commandCompleted(LIST_DIRECTORY, start);
+		} else if (input.startsWith(FIND + " ")) {
+			// Send the files best matching a name.
+			ServerLog.console("Finding files...");
+			findFiles(input.substring(FIND.length()).trim(), out);
+			server.getMetrics().commandCompleted(FIND, start);
+		} else { // Add the file to the queue of files to be sent.
+			ServerLog.console(input);
+			File f = server.resolveRequestableFile(input);
+			if (f != null) {
+				ServerLog.console("File request recognized");
+				transfer(new FileTransferQueue.Entry(f, input, 0, f.length(), false, null, false), out);
+			} else { // Else, send "unrecognized protocol."
+				try {
+					out.writeError("Unrecognized protocol");
+				} catch (IOException e) {
+					ServerLog.console(
+							"Error sending unrecognized protocol : " + e + "\nChanging state to connected state...");
+					logger.info("Error sending unrecognized protocol: " + e);
+					state.transition(ConnectionState.CONNECTED); // Update current state.
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Serves a tagged request, which has the form "id protocol", alongside the
+	 * requests before it. Every response to it is a frame whose stream id is the
+	 * request id, so responses may arrive in any order. Tagged requests are only
+	 * offered in binary protocol. Exit is still handled in order, and the
+	 * signatures following a delta request are read before serving it, since
+	 * they share the input stream.
+	 * 
+	 * @param input
+	 *            String storing user input after the tag.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for a free slot.
+	 */
+	private void respondTagged(String input) throws InterruptedException {
+
+		int space = input.indexOf(' ');
+		int requestId = 0;
+		try {
+			if (space != -1)
+				requestId = Integer.parseInt(input.substring(0, space));
+		} catch (NumberFormatException e) {
+			// Reported below.
+		}
+		final String request = space == -1 ? "" : input.substring(space + 1).trim();
+
+		MessageWriter current = writer;
+		try {
+			if (!(current instanceof BinaryMessageWriter)) {
+				current.writeText("Tagged requests require binary protocol");
+				return;
+			}
+			if (requestId <= 0) {
+				current.writeText("Invalid request id: " + input);
+				return;
+			}
+		} catch (IOException e) {
+			ServerLog.console("Error answering tagged request: " + e);
+			logger.info("Error answering tagged request: " + e);
+			return;
+		}
+		if (request.equals(EXIT_CONNECTION) || request.equals(SWITCH_PROTOCOL)) {
+			respond(request);
+			return;
+		}
+
+		final BinaryMessageWriter out = ((BinaryMessageWriter) current).forStream(requestId);
+		final FileTransferQueue.Entry delta = request.startsWith(DELTA + " ")
+				? readDeltaRequest(request.substring(DELTA.length()).trim(), out)
+				: null;
+		if (request.startsWith(DELTA + " ") && delta == null) {
+			out.close();
+			return;
+		}
+
+		pipelineSlots.acquire();
+		FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+
+			public void run() {
+				ServerLog.setContext("session " + id + " #" + out.getStreamId());
+				try {
+					if (delta != null)
+						transfer(delta, out);
+					else
+						respond(request, out);
+				} finally {
+					ServerLog.setContext(null);
+				}
+			}
+
+		}, null) {
+
+			protected void done() {
+				pipelined.remove(this);
+				out.close();
+				pipelineSlots.release();
+			}
+
+		};
+		pipelined.add(task);
+		server.submit(task);
+
+	}
+
+	/**
+	 * Queues part of a file. Arguments have the form "offset length path" for a
+	 * range, or "offset path" to resume, which sends everything from offset to the
+	 * end of the file. The range is sent as a RANGE_BEGIN frame, FILE_DATA frames
+	 * carrying CRC32C checksums, and a FILE_END frame, so ranges are only offered
+	 * in binary protocol.
+	 * 
+	 * @param arguments
+	 *            String storing everything after the get or resume protocol.
+	 * @param resume
+	 *            Boolean storing true if no length is given.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void requestRange(String arguments, boolean resume, MessageWriter out) {
+
+		try {
+			if (!(out instanceof BinaryMessageWriter)) {
+				out.writeText("Range requests require binary protocol");
+				return;
+			}
+
+			String[] parts = arguments.split(" ", resume ? 2 : 3);
+			if (parts.length < (resume ? 2 : 3)) {
+				out.writeText("Invalid range request: " + arguments);
+				return;
+			}
+			long offset;
+			long length;
+			try {
+				offset = Long.parseLong(parts[0]);
+				length = resume ? Long.MAX_VALUE : Long.parseLong(parts[1]);
+			} catch (NumberFormatException e) {
+				out.writeText("Invalid range request: " + arguments);
+				return;
+			}
+			String path = parts[parts.length - 1];
+
+			File f = server.resolveRequestableFile(path);
+			if (f == null) {
+				out.writeError("Unrecognized protocol");
+				return;
+			}
+			long fileSize = f.length();
+			if (offset < 0 || length < 0 || offset > fileSize) {
+				out.writeText("Range out of bounds (file is " + fileSize + " bytes): " + arguments);
+				return;
+			}
+			length = Math.min(length, fileSize - offset);
+
+			ServerLog.console("Range request recognized: %d+%d of %s", offset, length, path);
+			transfer(new FileTransferQueue.Entry(f, path, offset, length, true, null, false), out);
+		} catch (IOException e) {
+			ServerLog.console("Error answering range request: " + e);
+			logger.info("Error answering range request: " + e);
+		}
+
+	}
+
+	/**
+	 * Looks up the hash of passed-in file, computing it if it is not cached. With
+	 * no known hash, the hash is sent to the Android Server. Otherwise the file is
+	 * sent only if its hash differs from the known hash, and the Android Server is
+	 * told its copy is current if not. Untagged requests are queued like files,
+	 * so they are answered by the session's sender task in the order they came.
+	 * 
+	 * @param path
+	 *            String storing path of the file as requested by the user.
+	 * @param knownHash
+	 *            String storing hash of the Android Server's copy as hex, or null
+	 *            to only send the hash.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void requestHash(String path, String knownHash, MessageWriter out) {
+
+		File f = server.resolveRequestableFile(path);
+		if (f == null) {
+			try {
+				out.writeError("Unrecognized protocol");
+			} catch (IOException e) {
+				ServerLog.console("Error sending unrecognized protocol: " + e);
+				logger.info("Error sending unrecognized protocol: " + e);
+			}
+			return;
+		}
+		transfer(new FileTransferQueue.Entry(f, path, knownHash), out);
+
+	}
+
+	/**
+	 * Answers a hash request, sending the file instead if the Android Server's
+	 * copy differs.
+	 * 
+	 * @param entry
+	 *            FileTransferQueue.Entry storing the hash request.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void answerHash(FileTransferQueue.Entry entry, MessageWriter out) {
+
+		File f = entry.getFile();
+		String path = entry.getFileName();
+		String knownHash = entry.getKnownHash();
+		String hash = server.getHashCache().get(f);
+		if (hash == null)
+			hash = server.getHashCache().compute(f);
+		server.getMetrics().commandCompleted(knownHash == null ? HASH : GET_IF_CHANGED, entry.getQueuedAt());
+		try {
+			if (hash == null)
+				out.writeText("Error hashing file: " + path);
+			else if (knownHash == null)
+				out.writeHash(path, hash);
+			else if (hash.equalsIgnoreCase(knownHash))
+				out.writeNotModified(path);
+			else
+				sendEntry(new FileTransferQueue.Entry(f, path, 0, f.length(), false, null, false), out);
+		} catch (IOException e) {
+			ServerLog.console("Error sending hash: " + e);
+			logger.info("Error sending hash: " + e);
+		}
+
+	}
+
+	/**
+	 * Reads the block signatures following a delta request, which describe the
+	 * Android Server's old copy of the file to be sent as a difference. Arguments
+	 * have the form "blockSize path"; the signatures are read from the following
+	 * lines up to a line "end", as described in WireProtocol. Deltas are only
+	 * offered in binary protocol, but the signatures are always read so that the
+	 * next protocol is not mistaken for one.
+	 * 
+	 * @param arguments
+	 *            String storing everything after the delta protocol.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 * @return FileTransferQueue.Entry storing the file to be sent, or null if the
+	 *         request was refused.
+	 */
+	private FileTransferQueue.Entry readDeltaRequest(String arguments, MessageWriter out) {
+
+		try {
+			int space = arguments.indexOf(' ');
+			int blockSize = -1;
+			try {
+				if (space != -1)
+					blockSize = Integer.parseInt(arguments.substring(0, space));
+			} catch (NumberFormatException e) {
+				// Reported below, once the signatures have been read.
+			}
+			String path = space == -1 ? arguments : arguments.substring(space + 1);
+
+			BlockSignatures basis = new BlockSignatures(blockSize);
+			byte[] strongHash = new byte[BlockSignatures.STRONG_LENGTH];
+			String error = null;
+			String line;
+			while ((line = bReader.readLine()) != null && !line.equals(DELTA_END)) {
+				if (error != null)
+					continue;
+				if (basis.size() >= BlockSignatures.MAX_BLOCKS) {
+					error = "Too many blocks (at most " + BlockSignatures.MAX_BLOCKS + ")";
+					continue;
+				}
+				try {
+					int separator = line.indexOf(' ');
+					int weak = (int) Long.parseLong(line.substring(0, separator), 16);
+					String strong = line.substring(separator + 1).trim();
+					if (strong.length() != strongHash.length * 2)
+						throw new NumberFormatException(strong);
+					for (int i = 0; i < strongHash.length; i++) {
+						strongHash[i] = (byte) Integer.parseInt(strong.substring(i * 2, i * 2 + 2), 16);
+					}
+					basis.add(weak, strongHash);
+				} catch (RuntimeException e) {
+					error = "Invalid block signature: " + line;
+				}
+			}
+
+			if (blockSize < BlockSignatures.MIN_BLOCK_SIZE || blockSize > BlockSignatures.MAX_BLOCK_SIZE)
+				error = "Block size must be between " + BlockSignatures.MIN_BLOCK_SIZE + " and "
+						+ BlockSignatures.MAX_BLOCK_SIZE + ": " + arguments;
+			if (!(out instanceof BinaryMessageWriter))
+				error = "Delta requests require binary protocol";
+			if (error != null) {
+				out.writeText(error);
+				return null;
+			}
+			File f = server.resolveRequestableFile(path);
+			if (f == null) {
+				out.writeError("Unrecognized protocol");
+				return null;
+			}
+
+			ServerLog.console("Delta request recognized: %d blocks of %d bytes for %s", basis.size(), blockSize, path);
+			return new FileTransferQueue.Entry(f, path, 0, f.length(), false, basis, false);
+		} catch (IOException e) {
+			ServerLog.console("Error answering delta request: " + e);
+			logger.info("Error answering delta request: " + e);
+		}
+		return null;
+
+	}
+
+	/**
+	 * Queues passed-in directory to be sent as one zip archive, defaulting to TLD.
+	 * 
+	 * @param path
+	 *            String storing path of the directory as requested by the user.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void requestArchive(String path, MessageWriter out) {
+
+		// Archive the directory the path really names, refusing anything outside TLD.
+		File dir = server.resolveWithinTLD(path.equals("") ? server.getTLD().getAbsolutePath() : path);
+		try {
+			if (dir == null || !dir.isDirectory()) {
+				out.writeText("Not a directory: " + path);
+				return;
+			}
+			// A single legacy message would hold the whole archive in memory.
+			if (out instanceof LegacyMessageWriter && !((LegacyMessageWriter) out).isChunked()) {
+				out.writeText("Archives require 'proto chunked' or 'proto binary' first");
+				return;
+			}
+			ServerLog.console("Archive request recognized: %s", dir);
+			transfer(new FileTransferQueue.Entry(dir, dir.getAbsolutePath(), 0, 0, false, null, true), out);
+		} catch (IOException e) {
+			ServerLog.console("Error answering archive request: " + e);
+			logger.info("Error answering archive request: " + e);
+		}
+
+	}
+
+	/**
+	 * Sends one page of a single directory underneath TLD. Arguments have the form
+	 * "[-o offset] [-n limit] [-p prefix] [path]", where path defaults to TLD. The
+	 * page is sent as a FILE_LISTING in the form described by
+	 * DirectoryBrowser.listPage.
+	 * 
+	 * @param arguments
+	 *            String storing everything after the lsdir protocol.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	public void listDirectory(String arguments, MessageWriter out) {
+
+		int offset = 0;
+		int limit = DirectoryBrowser.DEFAULT_LIMIT;
+		String prefix = null;
+		String path = arguments;
+
+		String text = null;
+		ArrayList<String> page = null;
+		try {
+			// Read options until only the path is left.
+			while (path.startsWith("-o ") || path.startsWith("-n ") || path.startsWith("-p ")) {
+				String option = path.substring(0, 2);
+				String rest = path.substring(3).trim();
+				int end = rest.indexOf(' ');
+				String value = end == -1 ? rest : rest.substring(0, end);
+				path = end == -1 ? "" : rest.substring(end + 1).trim();
+				if (option.equals("-o"))
+					offset = Integer.parseInt(value);
+				else if (option.equals("-n"))
+					limit = Integer.parseInt(value);
+				else
+					prefix = value;
+			}
+
+			// List the directory the path really names, refusing anything outside TLD.
+			File dir = path.equals("") ? server.getTLD().getAbsoluteFile() : server.resolveWithinTLD(path);
+			if (dir != null && dir.isDirectory()) {
+				page = DirectoryBrowser.listPage(dir, offset, limit, prefix);
+			} else {
+				text = "Not a directory: " + path;
+			}
+		} catch (NumberFormatException e) {
+			text = "Invalid lsdir option: " + arguments;
+		} catch (IOException e) {
+			ServerLog.console("Error listing directory " + path + ": " + e);
+			logger.info("Error listing directory " + path + ": " + e);
+			text = "Error listing directory: " + path;
+		}
+
+		try {
+			if (page != null)
+				out.writeListing(page);
+			else
+				out.writeText(text);
+		} catch (IOException e) {
+			ServerLog.console("Error writing directory page to Android Server: " + e);
+			logger.info("Error writing directory page to Android Server: " + e);
+		}
+
+	}
+
+	/**
+	 * Sends the files underneath TLD best matching a name. Arguments have the form
+	 * "[-n limit] pattern", where pattern is a substring or glob as described in
+	 * FileNameIndex.find. The matches are sent as a FILE_LISTING in the form
+	 * described there.
+	 * 
+	 * @param arguments
+	 *            String storing everything after the find protocol.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	public void findFiles(String arguments, MessageWriter out) {
+
+		int limit = FileNameIndex.DEFAULT_LIMIT;
+		String pattern = arguments;
+
+		String text = null;
+		ArrayList<String> matches = null;
+		try {
+			if (pattern.startsWith("-n ")) {
+				String rest = pattern.substring(3).trim();
+				int end = rest.indexOf(' ');
+				limit = Integer.parseInt(end == -1 ? rest : rest.substring(0, end));
+				pattern = end == -1 ? "" : rest.substring(end + 1).trim();
+			}
+			if (pattern.equals(""))
+				text = "Nothing to find: " + arguments;
+			else
+				matches = server.getCatalog().find(pattern, limit);
+		} catch (NumberFormatException e) {
+			text = "Invalid find option: " + arguments;
+		}
+
+		try {
+			if (matches != null)
+				out.writeListing(matches);
+			else
+				out.writeText(text);
+		} catch (IOException e) {
+			ServerLog.console("Error writing matching files to Android Server: " + e);
+			logger.info("Error writing matching files to Android Server: " + e);
+		}
+
+	}
+
+	/**
+	 * Switches this session to the binary framing protocol described in
+	 * WireProtocol. The acknowledgement is the last CloudToothMessage sent; every
+	 * response after it is a frame. The switch is refused while files are queued,
+	 * taken by the sender task or being sent, so no file is split across the two
+	 * formats. The writer is switched under the lock the sender task takes it
+	 * under.
+	 */
+	private void switchToBinary() {
+
+		try {
+			if (!(writer instanceof LegacyMessageWriter)) {
+				writer.writeText("Already using binary protocol version " + WireProtocol.VERSION);
+				return;
+			}
+			LegacyMessageWriter legacy = (LegacyMessageWriter) writer;
+			synchronized (this) {
+				if (filesTaken > 0 || isSendingFile() || filesToSend.size() > 0) {
+					legacy.writeText("Cannot switch protocol while files are being sent");
+					return;
+				}
+				legacy.writeFinalText("Switching to binary protocol version " + WireProtocol.VERSION);
+				WritableByteChannel channel = null;
+				if (TRANSFER_TO && connection instanceof TcpTransport.Connection)
+					channel = ((TcpTransport.Connection) connection).getSocket().getChannel();
+				writer = new BinaryMessageWriter(new FrameWriter(outputStream, channel), 0);
+			}
+		} catch (IOException e) {
+			ServerLog.console("Error switching to binary protocol: " + e);
+			logger.info("Error switching to binary protocol: " + e);
+		}
+
+	}
+
+	/**
+	 * Agrees on a session key with the Android Server, as described in
+	 * WireProtocol, and seals every frame sent after PC Server's public key.
+	 * A session is only keyed once.
+	 * 
+	 * @param publicKey
+	 *            String storing X.509 encoded public key of the Android Server in
+	 *            base64.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private synchronized void startEncryption(String publicKey, MessageWriter out) {
+
+		try {
+			if (!(out instanceof BinaryMessageWriter)) {
+				out.writeText("Encryption requires binary protocol");
+				return;
+			}
+			BinaryMessageWriter binary = (BinaryMessageWriter) out;
+			if (binary.isEncrypting()) {
+				out.writeText("Session is already encrypted");
+				return;
+			}
+			SessionCipher key;
+			KeyPair keys;
+			try {
+				keys = SessionCipher.generateKeyPair();
+				key = new SessionCipher(keys.getPrivate(), Base64.getDecoder().decode(publicKey), true);
+			} catch (GeneralSecurityException e) {
+				out.writeText("Invalid public key: " + e.getMessage());
+				return;
+			} catch (IllegalArgumentException e) {
+				out.writeText("Invalid public key: " + e.getMessage());
+				return;
+			}
+			binary.writeKeyExchange(keys.getPublic().getEncoded(), key);
+			ServerLog.console("Session %d is now encrypted", id);
+		} catch (IOException e) {
+			ServerLog.console("Error starting encryption: " + e);
+			logger.info("Error starting encryption: " + e);
+		}
+
+	}
+
+	/**
+	 * Sends files in chunks from the next one on, for Android Servers which
+	 * read FILE_CONTINUATION messages after FILE_BEGIN. Binary protocol always does.
+	 * 
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void setChunked(MessageWriter out) {
+
+		try {
+			if (out instanceof LegacyMessageWriter) {
+				((LegacyMessageWriter) out).setChunked(true);
+				out.writeText("Files are now sent in chunks");
+			} else {
+				out.writeText("Binary protocol already sends files in chunks");
+			}
+		} catch (IOException e) {
+			ServerLog.console("Error switching to chunked files: " + e);
+			logger.info("Error switching to chunked files: " + e);
+		}
+
+	}
+
+	/**
+	 * Turns compression of listings and file chunks on ("deflate") or off ("off").
+	 * Only the binary protocol can mark frames as compressed.
+	 * 
+	 * @param method
+	 *            String storing requested compression method.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 */
+	private void setCompression(String method, MessageWriter out) {
+
+		try {
+			if (!(out instanceof BinaryMessageWriter)) {
+				out.writeText("Compression requires binary protocol");
+			} else if (method.equals("deflate")) {
+				((BinaryMessageWriter) out).setCompression(true);
+				out.writeText("Compression: deflate");
+			} else if (method.equals("off")) {
+				((BinaryMessageWriter) out).setCompression(false);
+				out.writeText("Compression: off");
+			} else {
+				out.writeText("Unsupported compression: " + method);
+			}
+		} catch (IOException e) {
+			ServerLog.console("Error setting compression: " + e);
+			logger.info("Error setting compression: " + e);
+		}
+
+	}
+
+	/**
+	 * Streams passed-in file to the Android Server through passed-in
+	 * MessageWriter, followed by a single end of file message once the whole file
+	 * has been sent. Chunks are sized by the session's ChunkSizer, which measures
+	 * every write. Only one chunk is held in memory at a time, and it is reused
+	 * until the chunk size changes, so files of any size can be sent. The file is
+	 * read through a FileChannelSender, a chunk at a time, or from PC Server's
+	 * ContentCache if it is small. In a plain binary session over TCP, chunks go
+	 * straight from the file to the socket instead, and a file which shrinks
+	 * partway through a chunk ends in an ERROR frame rather than FILE_END.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @param fileName
+	 *            String storing path of the file as requested by the user.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 * @throws IOException
+	 *             If the file cannot be read or the connection is lost.
+	 */
+	public void sendFile(File f, String fileName, MessageWriter out) throws IOException {
+
+		send(f, fileName, 0, Long.MAX_VALUE, false, out);
+
+	}
+
+	/**
+	 * Streams passed-in range of a file to the Android Server in the same way as
+	 * sendFile, announced with a RANGE_BEGIN frame. Only binary protocol can
+	 * describe ranges.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @param fileName
+	 *            String storing path of the file as requested by the user.
+	 * @param offset
+	 *            Long storing position of the first byte to be sent.
+	 * @param length
+	 *            Long storing number of bytes to be sent.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 * @throws IOException
+	 *             If the file cannot be read or the connection is lost.
+	 */
+	public void sendRange(File f, String fileName, long offset, long length, MessageWriter out)
+			throws IOException {
+
+		send(f, fileName, offset, length, true, out);
+
+	}
+
+	/**
+	 * Sends passed-in file as the difference from the Android Server's old copy,
+	 * using a DeltaEncoder. The hash of the file is cached along the way.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @param fileName
+	 *            String storing path of the file as requested by the user.
+	 * @param basis
+	 *            BlockSignatures storing blocks of the old copy.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 * @throws IOException
+	 *             If the file cannot be read or the connection is lost.
+	 */
+	public void sendDelta(File f, String fileName, BlockSignatures basis, MessageWriter out)
+			throws IOException {
+
+		long size = f.length();
+		long lastModified = f.lastModified();
+		DeltaEncoder encoder = new DeltaEncoder(basis, (BinaryMessageWriter) out, chunkSizer.getChunkSize());
+		String hash = encoder.encode(f, openFile(f), fileName);
+		recordBytesSent(encoder.getLiteralBytes());
+		if (server.getHashCache() != null)
+			server.getHashCache().put(f, size, lastModified, hash);
+		ServerLog.console("%d bytes sent, %d bytes copied from the old copy", encoder.getLiteralBytes(),
+				encoder.getCopiedBytes());
+
+	}
+
+	/**
+	 * Streams every file underneath passed-in directory to the Android Server as
+	 * one zip archive, named after the directory. Its size is not known up front,
+	 * so the archive is announced with size -1 and the end of file message carries
+	 * the actual size. If a file fails partway through being read, the archive is
+	 * ended with an error instead of an end of file message.
+	 * 
+	 * @param dir
+	 *            File storing directory to be archived.
+	 * @param dirName
+	 *            String storing path of the directory as requested by the user.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public void sendArchive(File dir, String dirName, MessageWriter out) throws IOException {
+
+		int chunkSize = chunkSizer.getChunkSize();
+		FileChunkOutputStream archive = new FileChunkOutputStream(out, dirName + ".zip", chunkSize);
+		DirectoryArchiver archiver = new DirectoryArchiver(server, chunkSize);
+		try {
+			archiver.archive(dir, archive);
+		} catch (DirectoryArchiver.ReadException e) {
+			// Raw legacy errors would corrupt the object stream mid-file.
+			String error = "Archive of " + dirName + " aborted: " + e.getMessage();
+			if (out instanceof BinaryMessageWriter)
+				out.writeError(error);
+			else
+				out.writeText(error);
+			recordBytesSent(archive.getTotal());
+			return;
+		}
+		recordBytesSent(archive.getTotal());
+		ServerLog.console("%d bytes sent as an archive of %d files", archive.getTotal(), archiver.getFilesArchived());
+
+	}
+
+	/**
+	 * Streams up to length bytes of passed-in file from offset, as described in
+	 * sendFile and sendRange.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @param fileName
+	 *            String storing path of the file as requested by the user.
+	 * @param offset
+	 *            Long storing position of the first byte to be sent.
+	 * @param length
+	 *            Long storing maximum number of bytes to be sent.
+	 * @param range
+	 *            Boolean storing true to announce the bytes as a range.
+	 * @param out
+	 *            MessageWriter storing writer of the request's responses.
+	 * @throws IOException
+	 *             If the file cannot be read or the connection is lost.
+	 */
+	private void send(File f, String fileName, long offset, long length, boolean range, MessageWriter out)
+			throws IOException {
+
+		long bytesSent = 0;
+		BinaryMessageWriter binary = out instanceof BinaryMessageWriter ? (BinaryMessageWriter) out : null;
+		boolean transferring = binary != null && binary.canTransfer();
+		byte[] chunk = null;
+
+		// Hash whole files as they are sent, unless the hash is already cached or
+		// the contents never pass through the heap.
+		HashCache hashCache = server.getHashCache();
+		long lastModified = f.lastModified();
+		MessageDigest digest = !transferring && !range && hashCache != null && hashCache.get(f) == null
+				? HashCache.newDigest() : null;
+
+		long wireStart = binary != null ? binary.getBytesOut() : 0;
+		FileChannelSender sender = openFile(f);
+		long fileSize = sender.size();
+		try {
+			// The file may have shrunk since the range was requested.
+			offset = Math.min(offset, fileSize);
+			length = Math.min(length, fileSize - offset);
+			sender.position(offset);
+			if (range)
+				binary.writeRangeBegin(fileName, fileSize, f.lastModified(), offset, length);
+			else
+				out.writeFileBegin(fileName, fileSize);
+
+			// Hand chunks straight from the file to the socket while the session allows.
+			int bytesRead = 0;
+			while (transferring && bytesSent < length) {
+				long writeStart = System.nanoTime();
+				bytesRead = binary.transferFileChunk(fileName, sender,
+						(int) Math.min(chunkSizer.getChunkSize(), length - bytesSent), fileSize);
+				if (bytesRead <= 0)
+					break;
+				chunkSizer.chunkWritten(bytesRead, System.nanoTime() - writeStart);
+				bytesSent += bytesRead;
+				recordBytesSent(bytesRead);
+			}
+			// The session was encrypted or compressed partway through; read the rest.
+			if (bytesRead < 0)
+				transferring = false;
+			if (transferring) {
+				bytesRead = 0;
+			} else {
+				chunk = new byte[chunkSizer.getChunkSize()];
+				bytesRead = sender.read(chunk, (int) Math.min(chunk.length, length - bytesSent));
+			}
+			// Empty files are still sent as a single empty chunk.
+			if (bytesSent == 0 && bytesRead == 0)
+				out.writeFileChunk(fileName, chunk != null ? chunk : new byte[0], 0, fileSize);
+			while (bytesRead > 0) {
+				long writeStart = System.nanoTime();
+				out.writeFileChunk(fileName, chunk, bytesRead, fileSize);
+				chunkSizer.chunkWritten(bytesRead, System.nanoTime() - writeStart);
+				if (digest != null)
+					digest.update(chunk, 0, bytesRead);
+				bytesSent += bytesRead;
+				recordBytesSent(bytesRead);
+
+				// Follow the chunk size as the link is measured.
+				int chunkSize = chunkSizer.getChunkSize();
+				if (chunk.length != chunkSize)
+					chunk = new byte[chunkSize];
+				bytesRead = sender.read(chunk, (int) Math.min(chunk.length, length - bytesSent));
+			}
+		} catch (FileChannelSender.TruncatedException e) {
+			// The padded chunk cannot be taken back, so the file ends in an error.
+			binary.writeError(e.getMessage());
+			ServerLog.console(e.getMessage());
+			return;
+		} finally {
+			sender.close();
+		}
+
+		// Send end of file message.
+		out.writeFileEnd(fileName, fileSize);
+		if (digest != null && bytesSent == fileSize)
+			hashCache.put(f, fileSize, lastModified, HashCache.toHex(digest.digest()));
+		if (binary != null && binary.isCompressing())
+			ServerLog.console("%d bytes sent (%d on the wire)", bytesSent, binary.getBytesOut() - wireStart);
+		else
+			ServerLog.console("%d bytes sent", bytesSent);
+
+	}
+
+	/**
+	 * Opens passed-in file for sending, through PC Server's ContentCache if it has
+	 * one.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @return FileChannelSender storing reader of the file's contents.
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	private FileChannelSender openFile(File f) throws IOException {
+
+		ContentCache contentCache = server.getContentCache();
+		return contentCache == null ? new FileChannelSender(f) : contentCache.open(f);
+
+	}
+
+	/**
+	 * Serves the Android Server until it disconnects or exits.
+	 */
+	public void run() {
+
+		ServerLog.setContext("session " + id);
+		try {
+			serve();
+		} finally {
+			server.sessionEnded(this);
+			ServerLog.setContext(null);
+		}
+
+	}
+
+	/**
+	 * Sends the hello message, then reads and responds to protocols until the
+	 * connection ends.
+	 */
+	private void serve() {
+
+		// Set output stream.
+		try {
+			outputStream = connection.openOutputStream();
+			writer = new LegacyMessageWriter(outputStream);
+		} catch (IOException e) {
+			ServerLog.console("Error readying object output stream: " + e);
+			logger.info("Error readying object output stream: " + e);
+			close();
+			return;
+		}
+
+		// Send initial hello.
+		String message = "Send back 'ls' for a listing of all files. Send back 'lsdir [-o offset] [-n limit] [-p prefix] [directory]' for one page of a single directory. Send back 'find [-n limit] pattern' for the files best matching a name or glob. Send back the file name to receive the file, or 'proto chunked' first to receive files in chunks. Send back 'proto binary' to switch to binary protocol version " + WireProtocol.VERSION + ", then 'encrypt public key' with a base64 P-256 public key to encrypt the session, 'compress deflate' to compress files and listings, 'get offset length file name' for part of a file or 'resume offset file name' to continue a file. Send back 'hash file name' for the SHA-256 hash of a file, or 'getif hash file name' to receive the file only if its hash differs, or 'delta block size file name' followed by block signatures and 'end' to receive only what changed. After 'proto chunked' or 'proto binary', send back 'zip [directory]' to receive a directory as one zip archive. In binary protocol, prefix any of these with '#id ' to send further requests before it is answered; its responses carry the id as their stream id. Send back 'exit' to end connection\n";
+		try {
+			writer.writeText(message);
+		} catch (IOException e) {
+			ServerLog.console("Error writing hello message to Android Server: " + e);
+			logger.info("Error writing hello message to Android Server: " + e);
+		}
+
+		// Set input stream.
+		try {
+			inputStream = connection.openInputStream();
+		} catch (IOException e) {
+			ServerLog.console("Error opening input stream from Android Server: " + e);
+			logger.info("Error opening input stream from Android Server: " + e);
+			close();
+			return;
+		}
+		bReader = new BufferedReader(new InputStreamReader(inputStream));
+
+		// Start task which sends queued files, one at a time.
+		sender = server.submit(new SendFileRunnable(this));
+
+		try { // Store and sanitize input.
+			String input = "";
+			// Buffered reader will read in null when connection is disconnected from
+			// client's side.
+			while ((input = bReader.readLine()) != null) {
+				ServerLog.console("Session %d input: %s", id, input);
+				if (input.startsWith(REQUEST_TAG))
+					respondTagged(input.substring(REQUEST_TAG.length()));
+				else
+					respond(input); // Send to protocol method which handles input.
+				// Stop reading as soon as the session has exited.
+				if (!state.is(ConnectionState.CONNECTED) && !isSendingFile())
+					break;
+			}
+		} catch (IOException e) {
+			ServerLog.console("Changing state to terminated...");
+			logger.info("No error: Ignore next error.");
+			state.transition(ConnectionState.TERMINATED);
+		} catch (Exception e) {
+			logger.info("Error reading and/or responding to input: " + e);
+		}
+
+		// Closing statements.
+		close();
+		ServerLog.console("Session %d changing state to terminated...", id);
+		state.transition(ConnectionState.TERMINATED); // Update current state.
+
+	}
+
+	/**
+	 * Stops the sender task and any tagged requests, and closes the connection.
+	 */
+	private void close() {
+
+		if (sender != null)
+			sender.cancel(true);
+		synchronized (pipelined) {
+			for (Future<?> request : new ArrayList<Future<?>>(pipelined)) {
+				request.cancel(true);
+			}
+		}
+		filesToSend.clear();
+		if (server.getPeerChunkSizes() != null)
+			server.getPeerChunkSizes().put(peerAddress, chunkSizer.getChunkSize());
+		if (writer instanceof BinaryMessageWriter)
+			((BinaryMessageWriter) writer).setCompression(false);
+		if (queueWriter != null)
+			queueWriter.close();
+		try {
+			if (outputStream != null)
+				outputStream.close();
+			if (inputStream != null)
+				inputStream.close();
+			connection.close();
+		} catch (IOException e) {
+			ServerLog.console("Error closing connection: " + e);
+			logger.info("Error closing connection: " + e);
+		}
+
+	}
+
+}
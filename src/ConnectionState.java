@@ -0,0 +1,45 @@
+/**
+ * Possible states of PC Server. Each state keeps the int code it had before
+ * states were an enum, so older callers of PCServer.newCurrentState still work.
+ */
+public enum ConnectionState {
+
+	DISCONNECTED(-100), CONNECTED(100), SENDING_FILE(200), TERMINATED(-1), TIME_OUT(-2);
+
+	private int code; // Legacy int code of the state.
+
+	private ConnectionState(int code) {
+
+		this.code = code;
+
+	}
+
+	/**
+	 * Getter method for private field code.
+	 * 
+	 * @return Int storing legacy code of the state.
+	 */
+	public int getCode() {
+
+		return code;
+
+	}
+
+	/**
+	 * Finds the state with passed-in legacy code.
+	 * 
+	 * @param code
+	 *            Int storing legacy code of a state.
+	 * @return ConnectionState with that code; null if there is none.
+	 */
+	public static ConnectionState fromCode(int code) {
+
+		for (ConnectionState state : values()) {
+			if (state.code == code)
+				return state;
+		}
+		return null;
+
+	}
+
+}
@@ -0,0 +1,17 @@
+/**
+ * Listener which is told about every change of a ConnectionStateMachine's
+ * state.
+ */
+public interface ConnectionStateListener {
+
+	/**
+	 * Called after the state has changed, on the thread which changed it.
+	 * 
+	 * @param oldState
+	 *            ConnectionState the machine was in.
+	 * @param newState
+	 *            ConnectionState the machine is now in.
+	 */
+	void stateChanged(ConnectionState oldState, ConnectionState newState);
+
+}
@@ -0,0 +1,126 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current ConnectionState of PC Server. Every change is atomic, and
+ * registered listeners are called back on each change instead of having to
+ * poll the state.
+ */
+public class ConnectionStateMachine {
+
+	private AtomicReference<ConnectionState> state; // Current state.
+	private List<ConnectionStateListener> listeners = new CopyOnWriteArrayList<ConnectionStateListener>();
+
+	/**
+	 * Creates a state machine in passed-in state.
+	 * 
+	 * @param initialState
+	 *            ConnectionState to start in.
+	 */
+	public ConnectionStateMachine(ConnectionState initialState) {
+
+		state = new AtomicReference<ConnectionState>(initialState);
+
+	}
+
+	/**
+	 * Getter method for the current state.
+	 * 
+	 * @return ConnectionState storing the current state.
+	 */
+	public ConnectionState getState() {
+
+		return state.get();
+
+	}
+
+	/**
+	 * Checks if the current state is passed-in state.
+	 * 
+	 * @param expected
+	 *            ConnectionState to compare with.
+	 * @return True if in that state; False if not.
+	 */
+	public boolean is(ConnectionState expected) {
+
+		return state.get() == expected;
+
+	}
+
+	/**
+	 * Registers passed-in listener for every future change of state.
+	 * 
+	 * @param listener
+	 *            ConnectionStateListener to be called back.
+	 */
+	public void addListener(ConnectionStateListener listener) {
+
+		listeners.add(listener);
+
+	}
+
+	/**
+	 * Removes passed-in listener.
+	 * 
+	 * @param listener
+	 *            ConnectionStateListener to stop calling back.
+	 */
+	public void removeListener(ConnectionStateListener listener) {
+
+		listeners.remove(listener);
+
+	}
+
+	/**
+	 * Moves to passed-in state, whatever the current state is.
+	 * 
+	 * @param newState
+	 *            ConnectionState to move to.
+	 * @return ConnectionState storing the previous state.
+	 */
+	public ConnectionState transition(ConnectionState newState) {
+
+		ConnectionState oldState = state.getAndSet(newState);
+		if (oldState != newState)
+			fireStateChanged(oldState, newState);
+		return oldState;
+
+	}
+
+	/**
+	 * Moves to passed-in state only if currently in the expected state.
+	 * 
+	 * @param expected
+	 *            ConnectionState the machine must be in.
+	 * @param newState
+	 *            ConnectionState to move to.
+	 * @return True if the state was changed; False if not.
+	 */
+	public boolean transition(ConnectionState expected, ConnectionState newState) {
+
+		if (!state.compareAndSet(expected, newState))
+			return false;
+		if (expected != newState)
+			fireStateChanged(expected, newState);
+		return true;
+
+	}
+
+	/**
+	 * Calls back every listener.
+	 * 
+	 * @param oldState
+	 *            ConnectionState the machine was in.
+	 * @param newState
+	 *            ConnectionState the machine is now in.
+	 */
+	private void fireStateChanged(ConnectionState oldState, ConnectionState newState) {
+
+		for (ConnectionStateListener listener : listeners) {
+			listener.stateChanged(oldState, newState);
+		}
+
+	}
+
+}
@@ -0,0 +1,246 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the contents of small files which are sent often, so requesting one
+ * again costs no disk reads. Contents are keyed by canonical path and only used
+ * while the file keeps the size and last modified time it had when it was read.
+ * The cache holds at most droidtooth.contentCache.maxBytes of contents, evicting
+ * the least recently sent files first, and files larger than
+ * droidtooth.contentCache.maxFileSize are never cached. If
+ * droidtooth.contentCache.direct is true, contents are held off the heap in
+ * direct buffers, which are freed once they are garbage collected after
+ * eviction.
+ */
+public class ContentCache {
+
+	// Most bytes of contents held at once (64 MB), or 0 to cache nothing.
+	private static long MAX_BYTES = ServerConfig.getLong("droidtooth.contentCache.maxBytes", 67108864);
+
+	// Largest file which is cached (1 MB); larger files are streamed from disk.
+	private static long MAX_FILE_SIZE = ServerConfig.getLong("droidtooth.contentCache.maxFileSize", 1048576);
+
+	// True to hold contents in direct buffers, off the heap.
+	private static boolean DIRECT = ServerConfig.getBoolean("droidtooth.contentCache.direct", false);
+
+	/**
+	 * Contents of a file along with the size and last modified time they were
+	 * read at.
+	 */
+	private static class Entry {
+
+		private long size;
+		private long lastModified;
+		private ByteBuffer contents;
+
+		Entry(long size, long lastModified, ByteBuffer contents) {
+
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contents = contents;
+
+		}
+
+	}
+
+	// Entries by canonical path, least recently used first.
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long cachedBytes; // Bytes of contents held by entries.
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Opens passed-in file for sending, reading its contents from the cache if
+	 * they are still valid. Files small enough to be cached are otherwise read
+	 * whole and cached, and larger files are read from disk as they are sent.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @return FileChannelSender storing reader of the file's contents.
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	public FileChannelSender open(File f) throws IOException {
+
+		long size = f.length();
+		long lastModified = f.lastModified();
+		if (MAX_BYTES <= 0 || size > Math.min(MAX_FILE_SIZE, MAX_BYTES) || !f.isFile())
+			return new FileChannelSender(f);
+
+		String key = keyOf(f);
+		ByteBuffer contents = get(key, size, lastModified);
+		if (contents != null) {
+			hits.incrementAndGet();
+			return new FileChannelSender(contents);
+		}
+
+		misses.incrementAndGet();
+		contents = read(f, size, lastModified);
+		if (contents == null)
+			return new FileChannelSender(f); // Changed while it was read.
+		put(key, new Entry(size, lastModified, contents));
+		return new FileChannelSender(contents);
+
+	}
+
+	/**
+	 * Getter method for private field hits.
+	 * 
+	 * @return Long storing number of files sent from the cache.
+	 */
+	public long getHits() {
+
+		return hits.get();
+
+	}
+
+	/**
+	 * Getter method for private field misses.
+	 * 
+	 * @return Long storing number of cacheable files which had to be read from
+	 *         disk.
+	 */
+	public long getMisses() {
+
+		return misses.get();
+
+	}
+
+	/**
+	 * Getter method for private field cachedBytes.
+	 * 
+	 * @return Long storing bytes of contents currently cached.
+	 */
+	public synchronized long getCachedBytes() {
+
+		return cachedBytes;
+
+	}
+
+	/**
+	 * Getter method for the number of files cached.
+	 * 
+	 * @return Int storing number of files whose contents are currently cached.
+	 */
+	public synchronized int getCachedFiles() {
+
+		return entries.size();
+
+	}
+
+	/**
+	 * Returns the cached contents under passed-in key, if they were read at
+	 * passed-in size and last modified time. Stale contents are dropped.
+	 * 
+	 * @param key
+	 *            String storing canonical path of the file.
+	 * @param size
+	 *            Long storing current size of the file.
+	 * @param lastModified
+	 *            Long storing current last modified time of the file.
+	 * @return ByteBuffer storing contents of the file, or null if none are valid.
+	 */
+	private synchronized ByteBuffer get(String key, long size, long lastModified) {
+
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		if (entry.size != size || entry.lastModified != lastModified) {
+			entries.remove(key);
+			cachedBytes -= entry.size;
+			return null;
+		}
+		return entry.contents;
+
+	}
+
+	/**
+	 * Caches passed-in entry under passed-in key, evicting the least recently used
+	 * entries until it fits.
+	 * 
+	 * @param key
+	 *            String storing canonical path of the file.
+	 * @param entry
+	 *            Entry storing contents of the file.
+	 */
+	private synchronized void put(String key, Entry entry) {
+
+		Entry old = entries.remove(key);
+		if (old != null)
+			cachedBytes -= old.size;
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (cachedBytes + entry.size > MAX_BYTES && eldest.hasNext()) {
+			cachedBytes -= eldest.next().getValue().size;
+			eldest.remove();
+		}
+		entries.put(key, entry);
+		cachedBytes += entry.size;
+
+	}
+
+	/**
+	 * Reads the whole of passed-in file into a buffer. The contents are only
+	 * returned if the file did not change while it was being read.
+	 * 
+	 * @param f
+	 *            File to read.
+	 * @param size
+	 *            Long storing size of the file before it was read.
+	 * @param lastModified
+	 *            Long storing last modified time of the file before it was read.
+	 * @return ByteBuffer storing read-only contents of the file, or null if it
+	 *         changed.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	private static ByteBuffer read(File f, long size, long lastModified) throws IOException {
+
+		ByteBuffer contents = DIRECT ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+		try {
+			while (contents.hasRemaining()) {
+				if (channel.read(contents) == -1)
+					return null;
+			}
+			// More bytes than the size says means the file grew.
+			if (channel.size() != size)
+				return null;
+		} finally {
+			channel.close();
+		}
+		if (f.length() != size || f.lastModified() != lastModified)
+			return null;
+		contents.flip();
+		return contents.asReadOnlyBuffer();
+
+	}
+
+	/**
+	 * Key passed-in file is cached under, so every path to the same file shares
+	 * one entry.
+	 * 
+	 * @param f
+	 *            File to be cached.
+	 * @return String storing canonical path of the file, or its absolute path if
+	 *         it cannot be resolved.
+	 */
+	private static String keyOf(File f) {
+
+		try {
+			return f.getCanonicalPath();
+		} catch (IOException e) {
+			return f.getAbsolutePath();
+		}
+
+	}
+
+}
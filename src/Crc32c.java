@@ -0,0 +1,94 @@
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum, used to verify every file chunk sent over the
+ * binary protocol. Java 9 and later ship a hardware-accelerated implementation,
+ * which create returns when it is available; this table-driven implementation
+ * is used otherwise, so both ends always agree on the result.
+ */
+public class Crc32c implements Checksum {
+
+	// Reversed Castagnoli polynomial.
+	private static int POLYNOMIAL = 0x82F63B78;
+
+	private static int[] TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	private int crc = 0xFFFFFFFF; // Running checksum, inverted.
+
+	/**
+	 * Creates a CRC32C checksum, using the platform implementation when there is
+	 * one.
+	 * 
+	 * @return Checksum computing CRC32C.
+	 */
+	public static Checksum create() {
+
+		try {
+			return (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+		} catch (Exception e) {
+			// CRC32C is not available on this Java version.
+		}
+		return new Crc32c();
+
+	}
+
+	/**
+	 * Computes the CRC32C of part of passed-in array.
+	 * 
+	 * @param checksum
+	 *            Checksum computing CRC32C, reset before use.
+	 * @param b
+	 *            Byte array storing bytes to check.
+	 * @param off
+	 *            Int storing offset of the first byte.
+	 * @param len
+	 *            Int storing number of bytes.
+	 * @return Int storing the checksum.
+	 */
+	public static int of(Checksum checksum, byte[] b, int off, int len) {
+
+		checksum.reset();
+		checksum.update(b, off, len);
+		return (int) checksum.getValue();
+
+	}
+
+	public void update(int b) {
+
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+
+	}
+
+	public void update(byte[] b, int off, int len) {
+
+		int c = crc;
+		for (int i = off; i < off + len; i++) {
+			c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+		}
+		crc = c;
+
+	}
+
+	public long getValue() {
+
+		return ~crc & 0xFFFFFFFFL;
+
+	}
+
+	public void reset() {
+
+		crc = 0xFFFFFFFF;
+
+	}
+
+}
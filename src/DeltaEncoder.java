@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Sends a file as the difference from the Android Server's old copy, described
+ * by BlockSignatures. The file is scanned once with a RollingChecksum; every
+ * window matching a block of the old copy is sent as a DELTA_COPY frame naming
+ * the block, and everything in between is sent as FILE_DATA frames. Runs of
+ * consecutive blocks are merged into one DELTA_COPY frame, so the bytes sent
+ * scale with the size of the change rather than the size of the file.
+ */
+public class DeltaEncoder {
+
+	private BlockSignatures signatures; // Blocks of the old copy.
+	private BinaryMessageWriter writer; // Writer frames are sent with.
+	private int chunkSize; // Largest FILE_DATA frame.
+
+	// File being scanned, read into buf; bytes before litStart have been sent,
+	// bytes from litStart to pos are literal data not yet sent, and the window
+	// starts at pos.
+	private FileChannelSender sender;
+	private byte[] buf;
+	private int bufEnd;
+	private int pos;
+	private int litStart;
+	private boolean eof;
+
+	// Run of consecutive blocks not yet sent.
+	private int copyStart = -1;
+	private int copyCount;
+
+	private MessageDigest strongDigest; // Computes MD5 of windows.
+	private byte[] strongHash = new byte[BlockSignatures.STRONG_LENGTH];
+	private MessageDigest fileDigest; // Computes SHA-256 of the whole file.
+
+	private String fileName; // Path of the file as requested by the user.
+	private long fileSize; // Size of the file.
+
+	// Bytes sent as FILE_DATA and bytes covered by DELTA_COPY frames.
+	private long literalBytes;
+	private long copiedBytes;
+
+	/**
+	 * Creates an encoder against passed-in signatures.
+	 * 
+	 * @param basis
+	 *            BlockSignatures storing blocks of the old copy.
+	 * @param out
+	 *            BinaryMessageWriter to send frames with.
+	 * @param maxChunkSize
+	 *            Int storing largest FILE_DATA frame.
+	 */
+	public DeltaEncoder(BlockSignatures basis, BinaryMessageWriter out, int maxChunkSize) {
+
+		signatures = basis;
+		writer = out;
+		chunkSize = maxChunkSize;
+		try {
+			strongDigest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+		fileDigest = HashCache.newDigest();
+
+	}
+
+	/**
+	 * Sends passed-in file as a DELTA_BEGIN frame, FILE_DATA and DELTA_COPY frames
+	 * in file order, a FILE_END frame and a HASH frame with the SHA-256 of the new
+	 * file, which the Android Server checks its rebuilt copy against.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @param name
+	 *            String storing path of the file as requested by the user.
+	 * @return String storing SHA-256 of the file as lowercase hex.
+	 * @throws IOException
+	 *             If the file cannot be read or the connection is lost.
+	 */
+	public String encode(File f, String name) throws IOException {
+
+		return encode(f, new FileChannelSender(f), name);
+
+	}
+
+	/**
+	 * Sends passed-in file as described in encode, reading its contents through
+	 * passed-in FileChannelSender, which is closed once the file is sent.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @param contents
+	 *            FileChannelSender storing reader of the file's contents.
+	 * @param name
+	 *            String storing path of the file as requested by the user.
+	 * @return String storing SHA-256 of the file as lowercase hex.
+	 * @throws IOException
+	 *             If the file cannot be read or the connection is lost.
+	 */
+	public String encode(File f, FileChannelSender contents, String name) throws IOException {
+
+		int blockSize = signatures.getBlockSize();
+		fileName = name;
+		buf = new byte[2 * (chunkSize + blockSize)];
+
+		sender = contents;
+		fileSize = sender.size();
+		try {
+			writer.writeDeltaBegin(fileName, fileSize, f.lastModified(), blockSize, signatures.size());
+
+			RollingChecksum checksum = new RollingChecksum();
+			boolean rolling = false;
+			while (fill(pos + blockSize)) {
+				if (!rolling) {
+					checksum.reset(buf, pos, blockSize);
+					rolling = true;
+				}
+
+				int weak = checksum.getValue();
+				int match = -1;
+				if (signatures.hasWeak(weak)) {
+					strongHash(blockSize);
+					match = signatures.find(weak, strongHash, copyStart == -1 ? -1 : copyStart + copyCount);
+				}
+
+				if (match != -1) {
+					if (pos > litStart) {
+						flushCopy();
+						flushLiteral(pos);
+					}
+					if (copyStart != -1 && match != copyStart + copyCount)
+						flushCopy();
+					if (copyStart == -1)
+						copyStart = match;
+					copyCount++;
+					fileDigest.update(buf, pos, blockSize);
+					copiedBytes += blockSize;
+					pos += blockSize;
+					litStart = pos;
+					rolling = false;
+					continue;
+				}
+
+				// No block starts here; the byte at pos becomes literal data.
+				if (fill(pos + blockSize + 1))
+					checksum.roll(buf[pos], buf[pos + blockSize]);
+				else
+					rolling = false;
+				pos++;
+				if (pos - litStart >= chunkSize) {
+					flushCopy();
+					flushLiteral(pos);
+				}
+			}
+
+			// Whatever is left is shorter than a block.
+			flushCopy();
+			pos = bufEnd;
+			flushLiteral(pos);
+		} finally {
+			sender.close();
+		}
+
+		writer.writeFileEnd(fileName, fileSize);
+		String hash = HashCache.toHex(fileDigest.digest());
+		writer.writeHash(fileName, hash);
+		return hash;
+
+	}
+
+	/**
+	 * Getter method for private field literalBytes.
+	 * 
+	 * @return Long storing number of bytes sent as FILE_DATA.
+	 */
+	public long getLiteralBytes() {
+
+		return literalBytes;
+
+	}
+
+	/**
+	 * Getter method for private field copiedBytes.
+	 * 
+	 * @return Long storing number of bytes the Android Server copied from its old
+	 *         copy.
+	 */
+	public long getCopiedBytes() {
+
+		return copiedBytes;
+
+	}
+
+	/**
+	 * Reads more of the file until buf holds everything before passed-in index, or
+	 * the file ends. Bytes already sent are dropped from the front of buf to make
+	 * room.
+	 * 
+	 * @param needed
+	 *            Int storing index within buf which must be read.
+	 * @return Boolean True if buf holds everything before needed; False if the
+	 *         file ended first.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	private boolean fill(int needed) throws IOException {
+
+		while (bufEnd < needed) {
+			if (eof)
+				return false;
+			if (needed > buf.length || bufEnd == buf.length) {
+				int shift = litStart;
+				System.arraycopy(buf, shift, buf, 0, bufEnd - shift);
+				bufEnd -= shift;
+				pos -= shift;
+				litStart = 0;
+				needed -= shift;
+			}
+			int n = sender.read(buf, bufEnd, buf.length - bufEnd);
+			if (n == 0)
+				eof = true;
+			bufEnd += n;
+		}
+		return true;
+
+	}
+
+	/**
+	 * Computes the MD5 of the window into strongHash.
+	 * 
+	 * @param blockSize
+	 *            Int storing size of the window.
+	 */
+	private void strongHash(int blockSize) {
+
+		strongDigest.update(buf, pos, blockSize);
+		try {
+			strongDigest.digest(strongHash, 0, strongHash.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException("MD5 digest does not fit", e);
+		}
+
+	}
+
+	/**
+	 * Sends the run of consecutive blocks not yet sent, if there is one.
+	 * 
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	private void flushCopy() throws IOException {
+
+		if (copyStart == -1)
+			return;
+		writer.writeDeltaCopy(copyStart, copyCount);
+		copyStart = -1;
+		copyCount = 0;
+
+	}
+
+	/**
+	 * Sends the literal data from litStart up to passed-in index as FILE_DATA
+	 * frames.
+	 * 
+	 * @param end
+	 *            Int storing index within buf where literal data ends.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	private void flushLiteral(int end) throws IOException {
+
+		while (litStart < end) {
+			int length = Math.min(chunkSize, end - litStart);
+			writer.writeFileChunk(fileName, buf, litStart, length, fileSize);
+			fileDigest.update(buf, litStart, length);
+			literalBytes += length;
+			litStart += length;
+		}
+
+	}
+
+}
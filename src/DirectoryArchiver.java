@@ -0,0 +1,190 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams every file underneath a directory to the Android Server as one zip
+ * archive, built while the directory is walked. Files are copied into the
+ * archive through a single reused buffer and the archive is sent through a
+ * FileChunkOutputStream, so memory use does not grow with the size of the
+ * files. The same checks as single file requests decide which files are
+ * included. A file which cannot be opened is left out, but part of an entry
+ * is already sent when a read fails, so a read error aborts the whole archive
+ * rather than sending a truncated entry in an archive which looks complete.
+ */
+public class DirectoryArchiver {
+
+	// Shares the PC Server log.
+	private static Logger logger = Logger.getLogger("PCServerLog");
+
+	// Compression level of archive entries.
+	private static int ARCHIVE_LEVEL = ServerConfig.getInt("droidtooth.archive.level", 1);
+
+	private PCServer server; // Decides which files may be sent.
+	private byte[] buffer; // Reused buffer files are copied through.
+	private int filesArchived; // Number of files added to the archive.
+
+	/**
+	 * Thrown when a file fails partway through being added, after which the
+	 * archive cannot be completed.
+	 */
+	public static class ReadException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		ReadException(Path file, IOException cause) {
+
+			super("Error reading " + file + " while archiving: " + cause, cause);
+
+		}
+
+	}
+
+	/**
+	 * Creates an archiver for files of passed-in PC Server.
+	 * 
+	 * @param pc
+	 *            Instance of PC Server whose TLD is archived.
+	 * @param bufferSize
+	 *            Int storing size of the buffer files are copied through.
+	 */
+	public DirectoryArchiver(PCServer pc, int bufferSize) {
+
+		server = pc;
+		buffer = new byte[bufferSize];
+
+	}
+
+	/**
+	 * Getter method for private field filesArchived.
+	 * 
+	 * @return Int storing number of files added to the archive.
+	 */
+	public int getFilesArchived() {
+
+		return filesArchived;
+
+	}
+
+	/**
+	 * Writes every file underneath passed-in directory to passed-in stream as a
+	 * zip archive, with entry names relative to the directory. Files which cannot
+	 * be opened are left out. The stream is closed once the archive is complete,
+	 * and left open if it is aborted.
+	 * 
+	 * @param dir
+	 *            File storing directory to archive.
+	 * @param out
+	 *            FileChunkOutputStream to write the archive to.
+	 * @throws ReadException
+	 *             If a file fails partway through being read.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public void archive(File dir, FileChunkOutputStream out) throws IOException {
+
+		final Path root = dir.getAbsoluteFile().toPath();
+		final ZipOutputStream zip = new ZipOutputStream(out);
+		zip.setLevel(ARCHIVE_LEVEL);
+
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!attrs.isRegularFile())
+					return FileVisitResult.CONTINUE;
+				File real = server.resolveRequestableFile(file.toString());
+				if (real != null)
+					addFile(zip, root, file, real.toPath(), attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				logger.info("Error archiving " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+
+		zip.close();
+
+	}
+
+	/**
+	 * Adds passed-in file to the archive.
+	 * 
+	 * @param zip
+	 *            ZipOutputStream storing the archive.
+	 * @param root
+	 *            Path storing directory entry names are relative to.
+	 * @param file
+	 *            Path storing file to add.
+	 * @param real
+	 *            Path storing real path of the file, which is opened without
+	 *            following links.
+	 * @param attrs
+	 *            BasicFileAttributes of the file.
+	 * @throws ReadException
+	 *             If the file fails partway through being read.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	private void addFile(ZipOutputStream zip, Path root, Path file, Path real, BasicFileAttributes attrs)
+			throws IOException {
+
+		InputStream in;
+		try {
+			in = Files.newInputStream(real, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			logger.info("Error archiving " + file + ": " + e);
+			return;
+		}
+
+		try {
+			String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(attrs.lastModifiedTime().toMillis());
+			zip.putNextEntry(entry);
+			int n;
+			while ((n = read(in, file)) > 0) {
+				zip.write(buffer, 0, n);
+			}
+			zip.closeEntry();
+			filesArchived++;
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Reads the next part of a file into buffer.
+	 * 
+	 * @param in
+	 *            InputStream of the file.
+	 * @param file
+	 *            Path storing the file, for logging.
+	 * @return Int storing number of bytes read; -1 at the end of the file.
+	 * @throws ReadException
+	 *             If the file cannot be read.
+	 */
+	private int read(InputStream in, Path file) throws ReadException {
+
+		try {
+			return in.read(buffer);
+		} catch (IOException e) {
+			logger.info("Error reading " + file + " while archiving: " + e);
+			throw new ReadException(file, e);
+		}
+
+	}
+
+}
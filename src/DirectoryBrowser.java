@@ -0,0 +1,86 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Lists a single directory level one page at a time, so the Android Server can
+ * browse TLD without the whole tree being walked and sent up front. Entries are
+ * sorted by name so that pages stay stable between requests, and only the
+ * entries on the requested page are checked for being directories.
+ */
+public class DirectoryBrowser {
+
+	// Number of entries returned when no limit is given.
+	public static int DEFAULT_LIMIT = 100;
+
+	// Largest number of entries returned in one page.
+	public static int MAX_LIMIT = 1000;
+
+	/**
+	 * Lists one page of passed-in directory. The first element of the returned list
+	 * is a header of the form "#offset count total", where count is the number of
+	 * entries on this page and total is the number of entries matching the prefix.
+	 * Every following element is the absolute path of one entry, and directories
+	 * end with the file separator so they can be browsed further.
+	 * 
+	 * @param dir
+	 *            File storing directory to list.
+	 * @param offset
+	 *            Int storing index of the first entry to return.
+	 * @param limit
+	 *            Int storing maximum number of entries to return.
+	 * @param prefix
+	 *            String storing prefix entry names must start with; null for all
+	 *            entries.
+	 * @return ArrayList<String> storing header followed by the entries of the page.
+	 * @throws IOException
+	 *             If the directory cannot be listed.
+	 */
+	public static ArrayList<String> listPage(File dir, int offset, int limit, final String prefix)
+			throws IOException {
+
+		offset = Math.max(0, offset);
+		limit = Math.max(0, Math.min(limit, MAX_LIMIT));
+
+		// Read names only; checking every entry's type is left to the page itself.
+		ArrayList<String> names = new ArrayList<String>();
+		DirectoryStream<Path> stream;
+		if (prefix == null || prefix.equals(""))
+			stream = Files.newDirectoryStream(dir.toPath());
+		else
+			stream = Files.newDirectoryStream(dir.toPath(), new DirectoryStream.Filter<Path>() {
+				public boolean accept(Path entry) {
+					return entry.getFileName().toString().startsWith(prefix);
+				}
+			});
+		try {
+			for (Path entry : stream) {
+				names.add(entry.getFileName().toString());
+			}
+		} finally {
+			stream.close();
+		}
+		Collections.sort(names);
+
+		int end = (int) Math.min((long) offset + limit, names.size());
+		int count = Math.max(0, end - offset);
+
+		ArrayList<String> page = new ArrayList<String>(count + 1);
+		page.add("#" + offset + " " + count + " " + names.size());
+		String dirPath = dir.getAbsolutePath();
+		for (int i = offset; i < end; i++) {
+			File entry = new File(dirPath, names.get(i));
+			if (entry.isDirectory())
+				page.add(entry.getPath() + File.separator);
+			else
+				page.add(entry.getPath());
+		}
+		return page;
+
+	}
+
+}
@@ -0,0 +1,596 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+/**
+ * In-memory catalog of all files underneath TLD. The catalog is built with one
+ * full scan and then kept up to date by a WatchService registered on every
+ * directory, so listing requests are answered from memory instead of walking
+ * the disk. If the watch service cannot keep up (or cannot be used at all), the
+ * catalog falls back to rescanning when a listing is next requested. A
+ * FileNameIndex is kept alongside, so files can be found by name.
+ * 
+ * The catalog is saved as a CatalogSnapshot once it is built and when PC Server
+ * shuts down. On the next start the snapshot is served straight away while it
+ * is checked in the background, and only directories modified since they were
+ * listed are listed again. Without a snapshot, listings wait for the first scan
+ * rather than scanning TLD themselves.
+ */
+public class FileCatalog implements Runnable {
+
+	// Shares the PC Server log.
+	private static Logger logger = Logger.getLogger("PCServerLog");
+
+	// Minimum time between rescans while directories are not being watched (30
+	// seconds).
+	private static long UNWATCHED_RESCAN_INTERVAL = 30000;
+
+	private Path root; // TLD.
+	private ParallelDirectoryWalker walker; // Walker used for scans.
+
+	// Absolute paths of all files underneath TLD, sorted so that everything below
+	// a directory can be removed as one range.
+	private ConcurrentSkipListSet<String> files = new ConcurrentSkipListSet<String>();
+
+	// Index of the same files by name.
+	private FileNameIndex index;
+
+	// Absolute paths of all directories underneath TLD, with the last modified time
+	// each had when it was listed, or CatalogSnapshot.UNKNOWN_TIME once it changed.
+	private ConcurrentSkipListMap<String, Long> directories = new ConcurrentSkipListMap<String, Long>();
+
+	private File snapshotFile; // File the catalog is saved to.
+	private volatile CatalogSnapshot restored; // Snapshot served until it has been checked.
+	private volatile boolean built; // True once the catalog has been built.
+	private CountDownLatch builtSignal = new CountDownLatch(1); // Released once built.
+
+	// Watch keys of all watched directories.
+	private WatchService watcher;
+	private Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<WatchKey, Path>();
+
+	// True if every directory underneath TLD is being watched.
+	private volatile boolean watchingAll;
+
+	// True if the catalog must be rebuilt before it is next used.
+	private volatile boolean needsRescan;
+	private volatile long lastScanTime;
+
+	// Duration of the last full scan, and the number of files it found.
+	private volatile long lastScanDuration;
+	private volatile int lastScanFiles;
+
+	/**
+	 * Creates an empty catalog of passed-in TLD. Call start to build it.
+	 * 
+	 * @param TLD
+	 *            File storing TLD.
+	 * @param treeWalker
+	 *            ParallelDirectoryWalker used to scan TLD.
+	 */
+	public FileCatalog(File TLD, ParallelDirectoryWalker treeWalker) {
+
+		root = TLD.toPath().toAbsolutePath();
+		walker = treeWalker;
+		index = new FileNameIndex(root.toString());
+		snapshotFile = new File(CatalogSnapshot.SNAPSHOT_FILE);
+
+	}
+
+	/**
+	 * Opens the watch service, serves the snapshot of the catalog if there is one,
+	 * and starts the thread which builds or checks the catalog and applies changes
+	 * to it.
+	 */
+	public void start() {
+
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			ServerLog.console("Error starting file catalog watch service: " + e);
+			logger.info("Error starting file catalog watch service: " + e);
+		}
+
+		restored = restore();
+
+		Thread catalogThread = new Thread(this, "FileCatalog");
+		catalogThread.setDaemon(true);
+		catalogThread.start();
+
+	}
+
+	/**
+	 * Stops watching TLD.
+	 */
+	public void stop() {
+
+		if (watcher == null)
+			return;
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			logger.info("Error closing file catalog watch service: " + e);
+		}
+
+	}
+
+	/**
+	 * Get all files underneath TLD, in the same form as
+	 * PCServer.getAllFileNames.
+	 * 
+	 * @return ArrayList<String> storing all files underneath TLD.
+	 */
+	public ArrayList<String> getFileNames() {
+
+		reconcile();
+
+		ArrayList<String> finalList = new ArrayList<String>(files.size());
+		for (String path : files) {
+			finalList.add("\n" + path);
+		}
+		return finalList;
+
+	}
+
+	/**
+	 * Finds files underneath TLD by name, as described in FileNameIndex.find.
+	 * 
+	 * @param pattern
+	 *            String storing substring or glob to search for.
+	 * @param limit
+	 *            Int storing maximum number of matches to return.
+	 * @return ArrayList<String> storing header followed by the best matches.
+	 */
+	public ArrayList<String> find(String pattern, int limit) {
+
+		reconcile();
+		return index.find(pattern, limit);
+
+	}
+
+	/**
+	 * Number of files currently in the catalog.
+	 * 
+	 * @return Int storing number of files underneath TLD.
+	 */
+	public int size() {
+
+		reconcile();
+		return files.size();
+
+	}
+
+	/**
+	 * Getter method for private field lastScanDuration.
+	 * 
+	 * @return Long storing milliseconds the last full scan took.
+	 */
+	public long getLastScanDuration() {
+
+		return lastScanDuration;
+
+	}
+
+	/**
+	 * Getter method for private field lastScanFiles.
+	 * 
+	 * @return Int storing number of files found by the last full scan.
+	 */
+	public int getLastScanFiles() {
+
+		return lastScanFiles;
+
+	}
+
+	/**
+	 * Saves the catalog to its snapshot file, if it has been built.
+	 */
+	public void saveSnapshot() {
+
+		if (!built)
+			return;
+		long start = System.currentTimeMillis();
+		try {
+			CatalogSnapshot.write(snapshotFile, root, directories, files);
+			logger.info("File catalog snapshot of " + files.size() + " files saved in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (IOException e) {
+			logger.info("Error saving file catalog snapshot: " + e);
+		}
+
+	}
+
+	/**
+	 * Rebuilds the catalog if it has been marked stale, or if directories are not
+	 * being watched and the last scan is too old to be trusted. Until the catalog
+	 * thread has built the catalog, a restored snapshot is served as it stands,
+	 * and without one the caller waits for the first scan instead of starting
+	 * another.
+	 */
+	private void reconcile() {
+
+		if (!built) {
+			if (restored == null)
+				awaitBuilt();
+			return;
+		}
+		if (!isStale())
+			return;
+		synchronized (this) {
+			// Another caller may have rescanned while this one waited.
+			if (isStale())
+				rescan();
+		}
+
+	}
+
+	/**
+	 * Check if the catalog must be rebuilt before it is used.
+	 * 
+	 * @return Boolean True if it was marked stale or the last scan is too old;
+	 *         False otherwise.
+	 */
+	private boolean isStale() {
+
+		return needsRescan
+				|| (!watchingAll && System.currentTimeMillis() - lastScanTime > UNWATCHED_RESCAN_INTERVAL);
+
+	}
+
+	/**
+	 * Waits until the catalog thread has built the catalog.
+	 */
+	private void awaitBuilt() {
+
+		try {
+			builtSignal.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	/**
+	 * Throws away the catalog and rebuilds it with a full scan of TLD.
+	 */
+	public synchronized void rescan() {
+
+		long start = System.currentTimeMillis();
+
+		clear();
+		addTree(root);
+		lastScanTime = System.currentTimeMillis();
+		lastScanDuration = lastScanTime - start;
+		lastScanFiles = files.size();
+
+		logger.info("File catalog scanned " + lastScanFiles + " files in " + lastScanDuration + " ms");
+
+	}
+
+	/**
+	 * Empties the catalog and stops watching every directory, ready for it to be
+	 * rebuilt.
+	 */
+	private synchronized void clear() {
+
+		for (WatchKey key : watchedDirectories.keySet()) {
+			key.cancel();
+		}
+		watchedDirectories.clear();
+		files.clear();
+		index.clear();
+		directories.clear();
+
+		watchingAll = watcher != null;
+		needsRescan = false;
+
+	}
+
+	/**
+	 * Fills the catalog from its snapshot, if there is one of TLD, so listings can
+	 * be served before it is checked. The name index is filled by check.
+	 * 
+	 * @return CatalogSnapshot storing snapshot the catalog was filled from, or null
+	 *         if there is none.
+	 */
+	private synchronized CatalogSnapshot restore() {
+
+		long start = System.currentTimeMillis();
+		CatalogSnapshot snapshot;
+		try {
+			snapshot = CatalogSnapshot.read(snapshotFile, root);
+		} catch (IOException e) {
+			logger.info("Error reading file catalog snapshot: " + e);
+			return null;
+		}
+		if (snapshot == null)
+			return null;
+
+		clear();
+		for (int i = 0; i < snapshot.getDirectoryCount(); i++) {
+			files.addAll(snapshot.getFiles(i));
+		}
+		lastScanTime = System.currentTimeMillis();
+		logger.info("File catalog restored " + snapshot.getFileCount() + " files from snapshot in "
+				+ (lastScanTime - start) + " ms");
+		return snapshot;
+
+	}
+
+	/**
+	 * Checks every directory of passed-in snapshot, which the catalog was
+	 * restored from, after filling the name index. Holds the catalog like rescan,
+	 * but listings keep being served from the restored files without waiting for
+	 * it; searches wait until the index is filled. Directories which are gone are
+	 * removed, and directories modified since they were listed are listed again,
+	 * along with any new directories they contain.
+	 * 
+	 * @param snapshot
+	 *            CatalogSnapshot storing snapshot the catalog was restored from.
+	 */
+	private synchronized void check(CatalogSnapshot snapshot) {
+
+		long start = System.currentTimeMillis();
+		index.addAll(files);
+		HashSet<String> known = new HashSet<String>();
+		for (int i = 0; i < snapshot.getDirectoryCount(); i++) {
+			known.add(snapshot.getDirectory(i));
+		}
+
+		int relisted = 0;
+		for (int i = 0; i < snapshot.getDirectoryCount(); i++) {
+			Path dir = Paths.get(snapshot.getDirectory(i));
+			if (!Files.isDirectory(dir)) {
+				removeTree(dir);
+				if (Files.isRegularFile(dir)) { // Replaced by a file.
+					files.add(dir.toString());
+					index.add(dir.toString());
+				}
+				continue;
+			}
+			// Watch before checking, so no change slips between the two.
+			watch(dir);
+			long lastModified = lastModified(dir);
+			if (lastModified != CatalogSnapshot.UNKNOWN_TIME && lastModified == snapshot.getLastModified(i)) {
+				directories.put(dir.toString(), lastModified);
+			} else {
+				relist(dir, lastModified, snapshot.getFiles(i), known);
+				relisted++;
+			}
+		}
+		lastScanTime = System.currentTimeMillis();
+
+		logger.info("File catalog checked " + snapshot.getDirectoryCount() + " directories against the disk and listed "
+				+ relisted + " again in " + (lastScanTime - start) + " ms");
+
+	}
+
+	/**
+	 * Lists passed-in directory again after it changed, replacing the files it
+	 * held in the snapshot with the files it holds now and adding any new
+	 * directory inside it.
+	 * 
+	 * @param dir
+	 *            Path storing directory to list.
+	 * @param lastModified
+	 *            Long storing last modified time of the directory before listing.
+	 * @param saved
+	 *            ArrayList<String> storing files the directory held in the
+	 *            snapshot.
+	 * @param known
+	 *            HashSet<String> storing every directory in the snapshot.
+	 */
+	private void relist(Path dir, long lastModified, ArrayList<String> saved, HashSet<String> known) {
+
+		directories.put(dir.toString(), lastModified);
+		HashSet<String> present = new HashSet<String>();
+		DirectoryStream<Path> stream = null;
+		try {
+			stream = Files.newDirectoryStream(dir);
+			for (Path entry : stream) {
+				String path = entry.toString();
+				if (Files.isDirectory(entry)) {
+					if (!known.contains(path))
+						addTree(entry);
+				} else if (Files.isRegularFile(entry)) {
+					present.add(path);
+					files.add(path);
+					index.add(path);
+				}
+			}
+		} catch (IOException e) {
+			// Unreadable directory; keep what the snapshot says until the next rescan.
+			logger.info("Error listing " + dir + ", rescanning when next used: " + e);
+			needsRescan = true;
+			return;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		for (String path : saved) {
+			if (!present.contains(path)) {
+				files.remove(path);
+				index.remove(path);
+			}
+		}
+
+	}
+
+	/**
+	 * Get the last modified time of passed-in directory.
+	 * 
+	 * @param dir
+	 *            Path storing directory.
+	 * @return Long storing last modified time in milliseconds, or
+	 *         CatalogSnapshot.UNKNOWN_TIME if it cannot be read.
+	 */
+	private static long lastModified(Path dir) {
+
+		try {
+			return Files.getLastModifiedTime(dir).toMillis();
+		} catch (IOException e) {
+			return CatalogSnapshot.UNKNOWN_TIME;
+		}
+
+	}
+
+	/**
+	 * Adds every file underneath passed-in directory to the catalog and watches
+	 * every directory underneath it.
+	 * 
+	 * @param dir
+	 *            Path storing directory to add.
+	 */
+	private synchronized void addTree(Path dir) {
+
+		walker.walk(dir, new ParallelDirectoryWalker.Visitor() {
+
+			public void preVisitDirectory(Path d) {
+				watch(d);
+				// Recorded before listing, so later changes show up as a new time.
+				directories.put(d.toString(), lastModified(d));
+			}
+
+			public void visitFile(Path f) {
+				String path = f.toString();
+				files.add(path);
+				index.add(path);
+			}
+
+		});
+
+	}
+
+	/**
+	 * Registers passed-in directory with the watch service.
+	 * 
+	 * @param dir
+	 *            Path storing directory to watch.
+	 */
+	private void watch(Path dir) {
+
+		if (watcher == null || !watchingAll)
+			return;
+		try {
+			WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			watchedDirectories.put(key, dir);
+		} catch (IOException e) {
+			// Usually the platform's watch limit; fall back to periodic rescans.
+			ServerLog.console("Error watching " + dir + ", falling back to periodic rescans: " + e);
+			logger.info("Error watching " + dir + ", falling back to periodic rescans: " + e);
+			watchingAll = false;
+		}
+
+	}
+
+	/**
+	 * Removes passed-in path from the catalog, along with everything underneath it
+	 * if it was a directory.
+	 * 
+	 * @param path
+	 *            Path storing deleted file or directory.
+	 */
+	private synchronized void removeTree(Path path) {
+
+		String name = path.toString();
+		files.remove(name);
+		index.remove(name);
+		directories.remove(name);
+		String prefix = name + File.separator;
+		// Every path starting with prefix sorts before prefix followed by the largest
+		// char.
+		Set<String> below = files.subSet(prefix, prefix + Character.MAX_VALUE);
+		for (String file : below) {
+			index.remove(file);
+		}
+		below.clear();
+		directories.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+
+	}
+
+	/**
+	 * Builds the catalog, then applies every change reported by the watch service
+	 * until the watch service is closed.
+	 */
+	public void run() {
+
+		try {
+			if (restored != null)
+				check(restored);
+			else
+				rescan();
+		} catch (RuntimeException e) {
+			needsRescan = true; // Let the next listing try again.
+			throw e;
+		} finally {
+			restored = null;
+			built = true;
+			builtSignal.countDown();
+		}
+		saveSnapshot();
+		if (watcher == null)
+			return;
+
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			Path dir = watchedDirectories.get(key);
+			if (dir != null) {
+				// Its listing in the catalog no longer matches its last modified time.
+				directories.replace(dir.toString(), CatalogSnapshot.UNKNOWN_TIME);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						needsRescan = true;
+						continue;
+					}
+					Path changed = dir.resolve((Path) event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						if (Files.isDirectory(changed))
+							addTree(changed);
+						else if (Files.isRegularFile(changed)) {
+							files.add(changed.toString());
+							index.add(changed.toString());
+						}
+					} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+						removeTree(changed);
+					}
+				}
+			}
+
+			if (!key.reset())
+				watchedDirectories.remove(key);
+		}
+
+	}
+
+}
@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through an NIO file channel so file contents never need to be
+ * loaded onto the heap all at once. Chunks are either read with a positional
+ * FileChannel.read straight into the caller's reused buffer, or handed to
+ * FileChannel.transferTo so the operating system copies them from the file to
+ * the socket without passing through the heap. Either way a file which shrinks
+ * while it is sent just ends early, and no mapping keeps the file locked once
+ * it is closed. Contents already held by a ContentCache are read from memory
+ * instead.
+ */
+public class FileChannelSender {
+
+	private FileChannel channel; // Channel of file being read.
+	private long fileSize; // Size of file when it was opened.
+	private long position; // Position of next byte to be read.
+
+	// Heap buffer wrapping the last chunk passed to read, reused between reads.
+	private ByteBuffer chunkBuffer;
+
+	// Whole contents of the file, if they are read from memory instead.
+	private ByteBuffer contents;
+
+	/**
+	 * Thrown when a file shrinks after part of a chunk announced at its old size
+	 * has been sent, so the rest of the file cannot be trusted.
+	 */
+	public static class TruncatedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		TruncatedException(String fileName) {
+
+			super(fileName + " shrank while it was sent");
+
+		}
+
+	}
+
+	/**
+	 * Opens passed-in file for reading. A link in place of the file is not
+	 * followed, so a file checked by its real path cannot be swapped for a link
+	 * to another before it is opened.
+	 * 
+	 * @param f
+	 *            File to be read.
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	public FileChannelSender(File f) throws IOException {
+
+		channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+		fileSize = channel.size();
+		position = 0;
+
+	}
+
+	/**
+	 * Reads passed-in contents of a file, already held in memory, instead of the
+	 * file itself.
+	 * 
+	 * @param fileContents
+	 *            ByteBuffer storing whole contents of the file, from its position
+	 *            to its limit. It is not modified.
+	 */
+	public FileChannelSender(ByteBuffer fileContents) {
+
+		contents = fileContents.slice();
+		fileSize = contents.remaining();
+		position = 0;
+
+	}
+
+	/**
+	 * Getter method for private field fileSize.
+	 * 
+	 * @return Long storing size of the file when it was opened.
+	 */
+	public long size() {
+
+		return fileSize;
+
+	}
+
+	/**
+	 * Getter method for private field position.
+	 * 
+	 * @return Long storing position of the next byte to be read.
+	 */
+	public long position() {
+
+		return position;
+
+	}
+
+	/**
+	 * Returns the number of bytes left to be read, which is fewer than the size
+	 * the file was opened with if it has shrunk since.
+	 * 
+	 * @return Long storing number of bytes from the position to the end of the
+	 *         file.
+	 * @throws IOException
+	 *             If the size of the file cannot be read.
+	 */
+	public long available() throws IOException {
+
+		long end = channel == null ? fileSize : Math.min(fileSize, channel.size());
+		return Math.max(0, end - position);
+
+	}
+
+	/**
+	 * Moves the position of the next byte to be read.
+	 * 
+	 * @param newPosition
+	 *            Long storing new position, between 0 and the file size.
+	 */
+	public void position(long newPosition) {
+
+		if (newPosition < 0 || newPosition > fileSize)
+			throw new IllegalArgumentException("Position out of range: " + newPosition);
+		position = newPosition;
+
+	}
+
+	/**
+	 * Fills passed-in chunk with the next bytes of the file, stopping early only at
+	 * the end of the file.
+	 * 
+	 * @param chunk
+	 *            Byte array to fill.
+	 * @return Int storing number of bytes read; 0 at the end of the file.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public int read(byte[] chunk) throws IOException {
+
+		return read(chunk, chunk.length);
+
+	}
+
+	/**
+	 * Fills the first maxLength bytes of passed-in chunk with the next bytes of
+	 * the file, stopping early only at the end of the file.
+	 * 
+	 * @param chunk
+	 *            Byte array to fill.
+	 * @param maxLength
+	 *            Int storing maximum number of bytes to read.
+	 * @return Int storing number of bytes read; 0 at the end of the file.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public int read(byte[] chunk, int maxLength) throws IOException {
+
+		return read(chunk, 0, Math.min(chunk.length, maxLength));
+
+	}
+
+	/**
+	 * Fills passed-in part of chunk with the next bytes of the file, stopping
+	 * early only at the end of the file.
+	 * 
+	 * @param chunk
+	 *            Byte array to fill.
+	 * @param offset
+	 *            Int storing index of chunk to start filling at.
+	 * @param maxLength
+	 *            Int storing maximum number of bytes to read.
+	 * @return Int storing number of bytes read; 0 at the end of the file.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public int read(byte[] chunk, int offset, int maxLength) throws IOException {
+
+		int length = (int) Math.min(maxLength, fileSize - position);
+		if (length <= 0)
+			return 0;
+
+		if (contents != null) {
+			contents.position((int) position);
+			contents.get(chunk, offset, length);
+			position += length;
+			return length;
+		}
+
+		if (chunkBuffer == null || chunkBuffer.array() != chunk)
+			chunkBuffer = ByteBuffer.wrap(chunk);
+		chunkBuffer.clear();
+		chunkBuffer.position(offset);
+		chunkBuffer.limit(offset + length);
+		while (chunkBuffer.hasRemaining()) {
+			int bytesRead = channel.read(chunkBuffer, position);
+			if (bytesRead == -1)
+				break;
+			position += bytesRead;
+		}
+		return chunkBuffer.position() - offset;
+
+	}
+
+	/**
+	 * Writes up to maxLength of the next bytes of the file to passed-in channel
+	 * with FileChannel.transferTo, stopping early only if the file has shrunk.
+	 * 
+	 * @param target
+	 *            WritableByteChannel storing blocking channel to write to.
+	 * @param maxLength
+	 *            Long storing maximum number of bytes to write.
+	 * @return Long storing number of bytes written; fewer than asked for if the
+	 *         file ended first.
+	 * @throws IOException
+	 *             If the file cannot be read or the channel written.
+	 */
+	public long transferTo(WritableByteChannel target, long maxLength) throws IOException {
+
+		long length = Math.min(maxLength, fileSize - position);
+		if (length <= 0)
+			return 0;
+
+		if (contents != null) {
+			ByteBuffer part = contents.duplicate();
+			part.limit((int) (position + length));
+			part.position((int) position);
+			while (part.hasRemaining()) {
+				target.write(part);
+			}
+			position += length;
+			return length;
+		}
+
+		long end = position + length;
+		while (position < end) {
+			long bytesSent = channel.transferTo(position, end - position, target);
+			// A blocking channel only takes nothing once the file has ended.
+			if (bytesSent == 0 && position >= channel.size())
+				break;
+			position += bytesSent;
+		}
+		return length - (end - position);
+
+	}
+
+	/**
+	 * Closes the underlying file, if any.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be closed.
+	 */
+	public void close() throws IOException {
+
+		if (channel == null)
+			return;
+		channel.close();
+
+	}
+
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream which sends everything written to it to the Android Server as
+ * the chunks of one file, through a MessageWriter. Bytes are gathered into a
+ * single reused chunk, so content of any length, such as an archive built on
+ * the fly, is sent in constant memory. Closing the stream sends the last chunk
+ * and the end of file message.
+ */
+public class FileChunkOutputStream extends OutputStream {
+
+	// Size announced for content whose total length is not known up front.
+	public static long UNKNOWN_SIZE = -1;
+
+	private MessageWriter writer; // Writer chunks are sent with.
+	private String fileName; // Name the content is sent under.
+	private byte[] chunk; // Chunk being filled.
+	private int count; // Bytes in chunk.
+	private long total; // Bytes written so far.
+	private boolean closed;
+
+	/**
+	 * Announces content of unknown length and prepares to send its chunks.
+	 * 
+	 * @param out
+	 *            MessageWriter to send chunks with.
+	 * @param name
+	 *            String storing name the content is sent under.
+	 * @param chunkSize
+	 *            Int storing size of each chunk.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public FileChunkOutputStream(MessageWriter out, String name, int chunkSize) throws IOException {
+
+		writer = out;
+		fileName = name;
+		chunk = new byte[chunkSize];
+		writer.writeFileBegin(fileName, UNKNOWN_SIZE);
+
+	}
+
+	/**
+	 * Getter method for private field total.
+	 * 
+	 * @return Long storing number of bytes written so far.
+	 */
+	public long getTotal() {
+
+		return total;
+
+	}
+
+	public void write(int b) throws IOException {
+
+		if (count == chunk.length)
+			sendChunk();
+		chunk[count++] = (byte) b;
+		total++;
+
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		while (len > 0) {
+			if (count == chunk.length)
+				sendChunk();
+			int n = Math.min(len, chunk.length - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			total += n;
+			off += n;
+			len -= n;
+		}
+
+	}
+
+	/**
+	 * Does nothing, so that every chunk but the last is full.
+	 */
+	public void flush() {
+
+	}
+
+	/**
+	 * Sends the last chunk and the end of file message, which carries the total
+	 * length.
+	 */
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+		closed = true;
+		if (count > 0 || total == 0)
+			sendChunk();
+		writer.writeFileEnd(fileName, total);
+
+	}
+
+	/**
+	 * Sends the chunk gathered so far.
+	 * 
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	private void sendChunk() throws IOException {
+
+		writer.writeFileChunk(fileName, chunk, count, UNKNOWN_SIZE);
+		count = 0;
+
+	}
+
+}
@@ -0,0 +1,414 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Trigram index over the paths of all files underneath TLD, relative to TLD and
+ * ignoring case, so a file can be found by part of its name without the whole
+ * listing being sent. Every file gets an id, and every three consecutive
+ * characters of its relative path map to the ids of the files containing them.
+ * A search only checks the files containing every trigram of the pattern,
+ * against a lowercase copy of each relative path kept for the purpose.
+ * 
+ * Removed files leave a gap in the id lists, which are rebuilt once gaps
+ * outnumber files.
+ */
+public class FileNameIndex {
+
+	// Number of matches returned when no limit is given.
+	public static int DEFAULT_LIMIT = 50;
+
+	// Largest number of matches returned by one search.
+	public static int MAX_LIMIT = 1000;
+
+	// Gaps tolerated before the id lists are rebuilt.
+	private static int MIN_GAPS_TO_COMPACT = 1024;
+
+	// Relative paths must start after the separator following TLD.
+	private int rootLength;
+
+	// Absolute path of the file with each id, or null once it is removed, and its
+	// relative path in lowercase.
+	private ArrayList<String> paths = new ArrayList<String>();
+	private ArrayList<String> keys = new ArrayList<String>();
+	private HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private int gaps; // Number of removed ids.
+
+	// Ids of the files containing each trigram, in increasing order.
+	private HashMap<Long, IdList> postings = new HashMap<Long, IdList>();
+
+	/**
+	 * Growable list of ids, added in increasing order.
+	 */
+	private static class IdList {
+
+		private int[] ids = new int[4];
+		private int size;
+
+		void add(int id) {
+
+			if (size > 0 && ids[size - 1] == id)
+				return; // Trigram appears more than once in the same path.
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+
+		}
+
+	}
+
+	/**
+	 * A file matching a search, ranked by how well it matches.
+	 */
+	private static class Match {
+
+		private String path;
+		private int rank; // 0 if the name is the pattern, 1 if it contains it, else 2.
+
+		Match(String path, int rank) {
+
+			this.path = path;
+			this.rank = rank;
+
+		}
+
+	}
+
+	// Best matches first: by rank, then shorter paths, then alphabetically.
+	private static Comparator<Match> BEST_FIRST = new Comparator<Match>() {
+
+		public int compare(Match a, Match b) {
+			if (a.rank != b.rank)
+				return a.rank - b.rank;
+			if (a.path.length() != b.path.length())
+				return a.path.length() - b.path.length();
+			return a.path.compareTo(b.path);
+		}
+
+	};
+
+	/**
+	 * Creates an empty index of files underneath passed-in TLD.
+	 * 
+	 * @param root
+	 *            String storing absolute path of TLD.
+	 */
+	public FileNameIndex(String root) {
+
+		rootLength = root.endsWith(File.separator) ? root.length() : root.length() + 1;
+
+	}
+
+	/**
+	 * Adds passed-in file to the index.
+	 * 
+	 * @param path
+	 *            String storing absolute path of a file underneath TLD.
+	 */
+	public synchronized void add(String path) {
+
+		if (ids.containsKey(path))
+			return;
+		int id = paths.size();
+		String key = path.substring(rootLength).toLowerCase(Locale.ROOT);
+		paths.add(path);
+		keys.add(key);
+		ids.put(path, id);
+		addTrigrams(key, id);
+
+	}
+
+	/**
+	 * Adds every passed-in file to the index at once, so searches wait until all
+	 * of them are in.
+	 * 
+	 * @param files
+	 *            Iterable<String> storing absolute paths of files underneath TLD.
+	 */
+	public synchronized void addAll(Iterable<String> files) {
+
+		for (String path : files) {
+			add(path);
+		}
+
+	}
+
+	/**
+	 * Removes passed-in file from the index.
+	 * 
+	 * @param path
+	 *            String storing absolute path of a file underneath TLD.
+	 */
+	public synchronized void remove(String path) {
+
+		Integer id = ids.remove(path);
+		if (id == null)
+			return;
+		paths.set(id, null);
+		keys.set(id, null);
+		gaps++;
+		if (gaps >= MIN_GAPS_TO_COMPACT && gaps > ids.size())
+			compact();
+
+	}
+
+	/**
+	 * Removes every file from the index.
+	 */
+	public synchronized void clear() {
+
+		paths.clear();
+		keys.clear();
+		ids.clear();
+		postings.clear();
+		gaps = 0;
+
+	}
+
+	/**
+	 * Finds files whose path relative to TLD matches passed-in pattern, ignoring
+	 * case. A pattern containing '*' or '?' is a glob, matched against the whole
+	 * name of each file, or against its whole relative path if the pattern
+	 * contains a file separator; '*' matches any run of characters and '?' any
+	 * single character. Any other pattern matches files whose relative path
+	 * contains it. The first element of the returned list is a header of the form
+	 * "#0 count total", as in DirectoryBrowser.listPage, followed by the absolute
+	 * paths of the best matches: files named exactly the pattern, then files whose
+	 * name contains it, then the rest, shorter paths first.
+	 * 
+	 * @param pattern
+	 *            String storing substring or glob to search for.
+	 * @param limit
+	 *            Int storing maximum number of matches to return.
+	 * @return ArrayList<String> storing header followed by the best matches.
+	 */
+	public synchronized ArrayList<String> find(String pattern, int limit) {
+
+		limit = Math.max(0, Math.min(limit, MAX_LIMIT));
+		String lowercase = pattern.toLowerCase(Locale.ROOT);
+		boolean glob = pattern.indexOf('*') != -1 || pattern.indexOf('?') != -1;
+		boolean wholePath = pattern.indexOf(File.separatorChar) != -1;
+		Pattern regex = glob ? Pattern.compile(globToRegex(lowercase)) : null;
+
+		// Only files containing every trigram of the pattern's literal parts can match.
+		IdList[] required = requiredPostings(glob ? lowercase.split("[*?]") : new String[] { lowercase });
+		if (required == null)
+			return page(new PriorityQueue<Match>(), 0);
+
+		PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1, Collections.reverseOrder(BEST_FIRST));
+		int total = 0;
+		IdList smallest = required.length > 0 ? required[0] : null;
+		int[] cursors = new int[required.length];
+		int candidates = smallest != null ? smallest.size : paths.size();
+		for (int i = 0; i < candidates; i++) {
+			int id = smallest != null ? smallest.ids[i] : i;
+			String key = keys.get(id);
+			if (key == null || !containsAll(required, cursors, id))
+				continue;
+
+			int rank = 1; // Every glob match ranks the same.
+			int nameStart = key.lastIndexOf(File.separatorChar) + 1;
+			if (glob) {
+				if (!regex.matcher(key).region(wholePath ? 0 : nameStart, key.length()).matches())
+					continue;
+			} else {
+				int at = key.lastIndexOf(lowercase);
+				if (at == -1)
+					continue;
+				if (at == nameStart && key.length() - nameStart == lowercase.length())
+					rank = 0;
+				else if (at < nameStart)
+					rank = 2;
+			}
+
+			total++;
+			String path = paths.get(id);
+			Match worst = best.peek();
+			if (best.size() < limit) {
+				best.add(new Match(path, rank));
+			} else if (worst != null && worst.rank >= rank) {
+				// Only matches better than the worst kept are allocated.
+				Match match = new Match(path, rank);
+				if (BEST_FIRST.compare(worst, match) > 0) {
+					best.poll();
+					best.add(match);
+				}
+			}
+		}
+		return page(best, total);
+
+	}
+
+	/**
+	 * Adds passed-in id to the list of every trigram in passed-in key.
+	 * 
+	 * @param key
+	 *            String storing lowercase relative path of the file.
+	 * @param id
+	 *            Int storing id of the file.
+	 */
+	private void addTrigrams(String key, int id) {
+
+		for (int i = 0; i + 3 <= key.length(); i++) {
+			Long trigram = trigram(key, i);
+			IdList list = postings.get(trigram);
+			if (list == null) {
+				list = new IdList();
+				postings.put(trigram, list);
+			}
+			list.add(id);
+		}
+
+	}
+
+	/**
+	 * Finds the id lists of every trigram in passed-in literal parts of a pattern,
+	 * smallest first.
+	 * 
+	 * @param parts
+	 *            String array storing literal parts of the pattern.
+	 * @return IdList array storing lists every match must be in, empty if the
+	 *         parts are too short to have trigrams, or null if some trigram is in
+	 *         no file.
+	 */
+	private IdList[] requiredPostings(String[] parts) {
+
+		HashMap<Long, IdList> required = new HashMap<Long, IdList>();
+		for (String part : parts) {
+			for (int i = 0; i + 3 <= part.length(); i++) {
+				Long trigram = trigram(part, i);
+				IdList list = postings.get(trigram);
+				if (list == null)
+					return null;
+				required.put(trigram, list);
+			}
+		}
+		IdList[] lists = required.values().toArray(new IdList[required.size()]);
+		Arrays.sort(lists, new Comparator<IdList>() {
+
+			public int compare(IdList a, IdList b) {
+				return a.size - b.size;
+			}
+
+		});
+		return lists;
+
+	}
+
+	/**
+	 * Checks if passed-in id is in every list after the first. Ids must be checked
+	 * in increasing order, since each list is only read forward from its cursor.
+	 * 
+	 * @param lists
+	 *            IdList array storing lists, smallest first.
+	 * @param cursors
+	 *            Int array storing index reached in each list, updated in place.
+	 * @param id
+	 *            Int storing id of the file.
+	 * @return Boolean storing true if every list contains the id.
+	 */
+	private static boolean containsAll(IdList[] lists, int[] cursors, int id) {
+
+		for (int i = 1; i < lists.length; i++) {
+			IdList list = lists[i];
+			int cursor = cursors[i];
+			while (cursor < list.size && list.ids[cursor] < id) {
+				cursor++;
+			}
+			cursors[i] = cursor;
+			if (cursor == list.size || list.ids[cursor] != id)
+				return false;
+		}
+		return true;
+
+	}
+
+	/**
+	 * Rebuilds the id lists without gaps.
+	 */
+	private void compact() {
+
+		ArrayList<String> live = new ArrayList<String>(ids.size());
+		for (String path : paths) {
+			if (path != null)
+				live.add(path);
+		}
+		clear();
+		for (String path : live) {
+			add(path);
+		}
+
+	}
+
+	/**
+	 * Turns passed-in matches into a page, best match first.
+	 * 
+	 * @param best
+	 *            PriorityQueue<Match> storing best matches, worst at its head.
+	 * @param total
+	 *            Int storing number of files which matched.
+	 * @return ArrayList<String> storing header followed by the matches.
+	 */
+	private static ArrayList<String> page(PriorityQueue<Match> best, int total) {
+
+		Match[] matches = best.toArray(new Match[best.size()]);
+		Arrays.sort(matches, BEST_FIRST);
+		ArrayList<String> page = new ArrayList<String>(matches.length + 1);
+		page.add("#0 " + matches.length + " " + total);
+		for (Match match : matches) {
+			page.add(match.path);
+		}
+		return page;
+
+	}
+
+	/**
+	 * Packs the three characters of passed-in string starting at passed-in index
+	 * into one key.
+	 * 
+	 * @param s
+	 *            String storing characters.
+	 * @param i
+	 *            Int storing index of the first character.
+	 * @return Long storing trigram.
+	 */
+	private static Long trigram(String s, int i) {
+
+		return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+
+	}
+
+	/**
+	 * Converts passed-in glob to a regular expression.
+	 * 
+	 * @param glob
+	 *            String storing glob, where '*' matches any run of characters and
+	 *            '?' any single character.
+	 * @return String storing equivalent regular expression.
+	 */
+	private static String globToRegex(String glob) {
+
+		StringBuilder regex = new StringBuilder();
+		int literalStart = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c != '*' && c != '?')
+				continue;
+			if (i > literalStart)
+				regex.append(Pattern.quote(glob.substring(literalStart, i)));
+			regex.append(c == '*' ? ".*" : ".");
+			literalStart = i + 1;
+		}
+		if (literalStart < glob.length())
+			regex.append(Pattern.quote(glob.substring(literalStart)));
+		return regex.toString();
+
+	}
+
+}
@@ -0,0 +1,355 @@
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, thread-safe queue of files waiting to be sent. Files are admitted
+ * only while both the number of queued files and their total size stay within
+ * their limits; a single file larger than the byte limit is still admitted
+ * when the queue is empty so that it can be sent at all. Takers block while the
+ * queue is empty instead of polling it.
+ */
+public class FileTransferQueue {
+
+	// Default maximum number of queued files.
+	public static int DEFAULT_MAX_FILES = ServerConfig.getInt("droidtooth.queue.maxFiles", 5);
+
+	// Default maximum total size of queued files (1 GB).
+	public static long DEFAULT_MAX_BYTES = ServerConfig.getLong("droidtooth.queue.maxBytes", 1073741824L);
+
+	private int maxFiles; // Maximum number of queued files.
+	private long maxBytes; // Maximum total size of queued files.
+
+	private ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private long queuedBytes; // Total size of queued files.
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+
+	/**
+	 * A file, or part of a file, waiting to be sent, or a file whose hash is to be
+	 * sent.
+	 */
+	public static class Entry {
+
+		private File file;
+		private String fileName;
+		private long offset;
+		private long size;
+		private boolean range;
+		private BlockSignatures basis;
+		private boolean archive;
+		private boolean hashRequest;
+		private String knownHash;
+		private long queuedAt;
+
+		Entry(File file, String fileName, long offset, long size, boolean range, BlockSignatures basis,
+				boolean archive) {
+
+			this.file = file;
+			this.fileName = fileName;
+			this.offset = offset;
+			this.size = size;
+			this.range = range;
+			this.basis = basis;
+			this.archive = archive;
+			queuedAt = System.nanoTime();
+
+		}
+
+		Entry(File file, String fileName, String knownHash) {
+
+			this(file, fileName, 0, knownHash == null ? 0 : file.length(), false, null, false);
+			this.hashRequest = true;
+			this.knownHash = knownHash;
+
+		}
+
+		/**
+		 * Getter method for private field file.
+		 * 
+		 * @return File to be sent.
+		 */
+		public File getFile() {
+
+			return file;
+
+		}
+
+		/**
+		 * Getter method for private field fileName.
+		 * 
+		 * @return String storing path of the file as requested by the user.
+		 */
+		public String getFileName() {
+
+			return fileName;
+
+		}
+
+		/**
+		 * Getter method for private field offset.
+		 * 
+		 * @return Long storing position of the first byte to be sent.
+		 */
+		public long getOffset() {
+
+			return offset;
+
+		}
+
+		/**
+		 * Getter method for private field size.
+		 * 
+		 * @return Long storing number of bytes to be sent, as of when the file was
+		 *         queued.
+		 */
+		public long getSize() {
+
+			return size;
+
+		}
+
+		/**
+		 * Check if only part of the file was requested.
+		 * 
+		 * @return Boolean True if a range was requested; False if the whole file.
+		 */
+		public boolean isRange() {
+
+			return range;
+
+		}
+
+		/**
+		 * Getter method for private field basis.
+		 * 
+		 * @return BlockSignatures storing blocks of the Android Server's old copy,
+		 *         or null unless a delta was requested.
+		 */
+		public BlockSignatures getBasis() {
+
+			return basis;
+
+		}
+
+		/**
+		 * Check if a directory was requested as an archive.
+		 * 
+		 * @return Boolean True if file is a directory to be archived; False if not.
+		 */
+		public boolean isArchive() {
+
+			return archive;
+
+		}
+
+		/**
+		 * Check if the hash of the file was requested, rather than the file itself.
+		 * 
+		 * @return Boolean True if a hash request; False if not.
+		 */
+		public boolean isHashRequest() {
+
+			return hashRequest;
+
+		}
+
+		/**
+		 * Getter method for private field knownHash.
+		 * 
+		 * @return String storing hash of the Android Server's copy as hex, or null
+		 *         if only the hash was requested.
+		 */
+		public String getKnownHash() {
+
+			return knownHash;
+
+		}
+
+		/**
+		 * Getter method for private field queuedAt.
+		 * 
+		 * @return Long storing System.nanoTime when the file was queued.
+		 */
+		public long getQueuedAt() {
+
+			return queuedAt;
+
+		}
+
+	}
+
+	/**
+	 * Creates a queue with the default limits.
+	 */
+	public FileTransferQueue() {
+
+		this(DEFAULT_MAX_FILES, DEFAULT_MAX_BYTES);
+
+	}
+
+	/**
+	 * Creates a queue with passed-in limits.
+	 * 
+	 * @param maxFiles
+	 *            Int storing maximum number of queued files.
+	 * @param maxBytes
+	 *            Long storing maximum total size of queued files.
+	 */
+	public FileTransferQueue(int maxFiles, long maxBytes) {
+
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+
+	}
+
+	/**
+	 * Adds passed-in file to the queue if it fits within the limits.
+	 * 
+	 * @param f
+	 *            File to be sent.
+	 * @param fileName
+	 *            String storing path of the file as requested by the user.
+	 * @return True if the file was queued; False if the queue is full.
+	 */
+	public boolean offer(File f, String fileName) {
+
+		return offer(new Entry(f, fileName, 0, f.length(), false, null, false));
+
+	}
+
+	/**
+	 * Adds passed-in entry to the queue if it fits within the limits.
+	 * 
+	 * @param entry
+	 *            Entry to be queued.
+	 * @return True if the entry was queued; False if the queue is full.
+	 */
+	public boolean offer(Entry entry) {
+
+		long size = entry.size;
+		lock.lock();
+		try {
+			if (!entries.isEmpty() && (entries.size() >= maxFiles || queuedBytes + size > maxBytes))
+				return false;
+			entries.add(entry);
+			queuedBytes += size;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+
+	}
+
+	/**
+	 * Removes the next file from the queue, waiting until there is one.
+	 * 
+	 * @return Entry storing next file to be sent.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public Entry take() throws InterruptedException {
+
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()) {
+				notEmpty.await();
+			}
+			Entry next = entries.remove();
+			queuedBytes -= next.size;
+			return next;
+		} finally {
+			lock.unlock();
+		}
+
+	}
+
+	/**
+	 * Checks if one more file could currently be queued, ignoring its size.
+	 * 
+	 * @return True if the queue has room for another file; False if not.
+	 */
+	public boolean hasRoom() {
+
+		lock.lock();
+		try {
+			return entries.size() < maxFiles && queuedBytes < maxBytes;
+		} finally {
+			lock.unlock();
+		}
+
+	}
+
+	/**
+	 * Number of queued files.
+	 * 
+	 * @return Int storing number of queued files.
+	 */
+	public int size() {
+
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+
+	}
+
+	/**
+	 * Getter method for private field queuedBytes.
+	 * 
+	 * @return Long storing total size of queued files.
+	 */
+	public long getQueuedBytes() {
+
+		lock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			lock.unlock();
+		}
+
+	}
+
+	/**
+	 * Getter method for private field maxFiles.
+	 * 
+	 * @return Int storing maximum number of queued files.
+	 */
+	public int getMaxFiles() {
+
+		return maxFiles;
+
+	}
+
+	/**
+	 * Getter method for private field maxBytes.
+	 * 
+	 * @return Long storing maximum total size of queued files.
+	 */
+	public long getMaxBytes() {
+
+		return maxBytes;
+
+	}
+
+	/**
+	 * Removes every queued file.
+	 */
+	public void clear() {
+
+		lock.lock();
+		try {
+			entries.clear();
+			queuedBytes = 0;
+		} finally {
+			lock.unlock();
+		}
+
+	}
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Implementation of PeerAddressProvider which reports the same address for
+ * every connection. Used for transports without device addresses, such as
+ * in-JVM pipes, and for benchmarks which must pass the UDA check.
+ */
+public class FixedPeerAddressProvider implements PeerAddressProvider {
+
+	private String address; // Address reported for every connection.
+
+	/**
+	 * Sets private parameter to passed-in address.
+	 * 
+	 * @param peerAddress
+	 *            String storing address reported for every connection.
+	 */
+	public FixedPeerAddressProvider(String peerAddress) {
+
+		address = peerAddress;
+
+	}
+
+	/**
+	 * Reports the fixed address, whatever the connection.
+	 * 
+	 * @param connection
+	 *            TransportConnection to look up.
+	 * @return String storing the fixed address.
+	 */
+	public String getPeerAddress(TransportConnection connection) {
+
+		return address;
+
+	}
+
+}
@@ -0,0 +1,452 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+
+/**
+ * Reads frames written by BinaryMessageWriter. The header and payload buffers
+ * are reused for every frame, so the payload of a frame is only valid until
+ * the next call to next. Compressed frames are inflated and checksums
+ * verified as they are read, so callers always see the uncompressed payload,
+ * without its checksum. Once given the session key, encrypted frames are
+ * opened first.
+ */
+public class FrameDecoder {
+
+	private InputStream inputStream; // Stream frames are read from.
+
+	// Reused header of the last frame read.
+	private byte[] header = new byte[WireProtocol.HEADER_SIZE];
+	private ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+
+	// Reused payload of the last frame read, grown whenever a payload does not
+	// fit.
+	private byte[] payload = new byte[8192];
+
+	// Reused buffer compressed payloads are read into before being inflated.
+	private byte[] compressed = new byte[8192];
+	private Inflater inflater;
+
+	// Verifies the checksum of file chunks.
+	private Checksum checksum = Crc32c.create();
+
+	// Key of the encrypted session, and the reused buffer and cipher sealed
+	// payloads are read into and opened with.
+	private SessionCipher sessionCipher;
+	private byte[] sealed = new byte[0];
+	private Cipher cipher;
+	private long nextSequence; // Sequence number the next sealed payload must have.
+
+	private byte type; // Type of the last frame read.
+	private byte flags; // Flags of the last frame read.
+	private int streamId; // Stream id of the last frame read.
+	private int length; // Payload length of the last frame read.
+
+	/**
+	 * Reads frames from passed-in stream.
+	 * 
+	 * @param in
+	 *            InputStream to read frames from.
+	 */
+	public FrameDecoder(InputStream in) {
+
+		inputStream = in;
+
+	}
+
+	/**
+	 * Reads the next frame.
+	 * 
+	 * @return Boolean storing true if a frame was read, false at the end of the
+	 *         stream.
+	 * @throws IOException
+	 *             If the stream ends inside a frame, the frame is malformed, or
+	 *             it is not encrypted once the session is keyed.
+	 */
+	public boolean next() throws IOException {
+
+		int first = inputStream.read();
+		if (first == -1)
+			return false;
+		header[0] = (byte) first;
+		readFully(header, 1, WireProtocol.HEADER_SIZE - 1);
+
+		headerBuffer.clear();
+		byte version = headerBuffer.get();
+		if (version != WireProtocol.VERSION)
+			throw new IOException("Unsupported frame version: " + version);
+		type = headerBuffer.get();
+		flags = headerBuffer.get();
+		headerBuffer.get();
+		streamId = headerBuffer.getInt();
+		length = headerBuffer.getInt();
+		if (length < 0 || length > WireProtocol.MAX_PAYLOAD)
+			throw new IOException("Frame payload out of range: " + length);
+
+		boolean deflated = (flags & WireProtocol.FLAG_DEFLATE) != 0;
+		boolean checked = (flags & WireProtocol.FLAG_CRC32C) != 0;
+		boolean encrypted = (flags & WireProtocol.FLAG_ENCRYPTED) != 0;
+		// A plaintext frame in a keyed session could have been injected by anyone.
+		if (sessionCipher != null && !encrypted)
+			throw new IOException("Unencrypted frame of stream " + streamId + " after key exchange");
+
+		byte[] raw = deflated ? compressed : payload;
+		if (raw.length < length)
+			raw = new byte[Math.max(length, raw.length * 2)];
+		if (encrypted)
+			length = open(raw);
+		else
+			readFully(raw, 0, length);
+		if (deflated)
+			compressed = raw;
+		else
+			payload = raw;
+
+		int expected = 0;
+		if (checked) {
+			if (length < 4)
+				throw new IOException("Checked frame too short: " + length);
+			length -= 4;
+			expected = ByteBuffer.wrap(raw, length, 4).getInt();
+		}
+		if (deflated)
+			inflate();
+		if (checked && Crc32c.of(checksum, payload, 0, length) != expected)
+			throw new IOException("Checksum mismatch in frame of stream " + streamId);
+		return true;
+
+	}
+
+	/**
+	 * Reads the sealed payload of the current frame and opens it into passed-in
+	 * buffer, which has room for at least length bytes.
+	 * 
+	 * @param raw
+	 *            Byte array to write the opened payload to.
+	 * @return Int storing length of the opened payload.
+	 * @throws IOException
+	 *             If no session key was given, the payload is out of sequence, or
+	 *             it does not open.
+	 */
+	private int open(byte[] raw) throws IOException {
+
+		if (sessionCipher == null)
+			throw new IOException("Encrypted frame before key exchange");
+		if (length < SessionCipher.OVERHEAD)
+			throw new IOException("Encrypted frame too short: " + length);
+		if (sealed.length < length)
+			sealed = new byte[Math.max(length, sealed.length * 2)];
+		readFully(sealed, 0, length);
+		long sequence = SessionCipher.sequenceOf(sealed);
+		if (sequence != nextSequence)
+			throw new IOException("Frame of stream " + streamId + " out of sequence: " + sequence + " instead of "
+					+ nextSequence);
+		int opened;
+		try {
+			if (cipher == null)
+				cipher = SessionCipher.newCipher();
+			opened = sessionCipher.open(cipher, header, sealed, length, raw);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Error opening frame of stream " + streamId + ": " + e);
+		}
+		nextSequence++;
+		return opened;
+
+	}
+
+	/**
+	 * Opens every frame read from now on with passed-in key, rejecting frames
+	 * which are not encrypted.
+	 * 
+	 * @param key
+	 *            SessionCipher storing key of the encrypted session.
+	 */
+	public void setSessionCipher(SessionCipher key) {
+
+		sessionCipher = key;
+
+	}
+
+	/**
+	 * Inflates the compressed payload of the current frame into the payload
+	 * buffer, updating length to the uncompressed length.
+	 * 
+	 * @throws IOException
+	 *             If the payload is malformed.
+	 */
+	private void inflate() throws IOException {
+
+		if (length < 4)
+			throw new IOException("Compressed frame too short: " + length);
+
+		int uncompressedLength = ByteBuffer.wrap(compressed, 0, 4).getInt();
+		if (uncompressedLength < 0 || uncompressedLength > WireProtocol.MAX_PAYLOAD)
+			throw new IOException("Frame payload out of range: " + uncompressedLength);
+		if (payload.length < uncompressedLength)
+			payload = new byte[Math.max(uncompressedLength, payload.length * 2)];
+
+		if (inflater == null)
+			inflater = new Inflater();
+		inflater.reset();
+		inflater.setInput(compressed, 4, length - 4);
+		try {
+			int inflated = 0;
+			while (inflated < uncompressedLength && !inflater.finished()) {
+				int n = inflater.inflate(payload, inflated, uncompressedLength - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+			if (inflated != uncompressedLength)
+				throw new IOException("Compressed frame inflated to " + inflated + " of " + uncompressedLength + " bytes");
+		} catch (DataFormatException e) {
+			throw new IOException("Malformed compressed frame: " + e.getMessage());
+		}
+		length = uncompressedLength;
+
+	}
+
+	/**
+	 * Getter method for private field type.
+	 * 
+	 * @return Byte storing type of the last frame read.
+	 */
+	public byte getType() {
+
+		return type;
+
+	}
+
+	/**
+	 * Getter method for private field flags.
+	 * 
+	 * @return Byte storing flags of the last frame read.
+	 */
+	public byte getFlags() {
+
+		return flags;
+
+	}
+
+	/**
+	 * Getter method for private field streamId.
+	 * 
+	 * @return Int storing stream id of the last frame read.
+	 */
+	public int getStreamId() {
+
+		return streamId;
+
+	}
+
+	/**
+	 * Getter method for private field length.
+	 * 
+	 * @return Int storing payload length of the last frame read.
+	 */
+	public int getLength() {
+
+		return length;
+
+	}
+
+	/**
+	 * Getter method for private field payload. Only the first getLength bytes
+	 * belong to the last frame read.
+	 * 
+	 * @return Byte array storing payload of the last frame read.
+	 */
+	public byte[] getPayload() {
+
+		return payload;
+
+	}
+
+	/**
+	 * Decodes the payload of a TEXT or ERROR frame.
+	 * 
+	 * @return String storing text of the last frame read.
+	 */
+	public String getText() {
+
+		return new String(payload, 0, length, StandardCharsets.UTF_8);
+
+	}
+
+	/**
+	 * Decodes the file size of a FILE_BEGIN, RANGE_BEGIN or FILE_END frame.
+	 * 
+	 * @return Long storing file size of the last frame read.
+	 */
+	public long getFileSize() {
+
+		return ByteBuffer.wrap(payload, 0, length).getLong();
+
+	}
+
+	/**
+	 * Decodes the path of a FILE_BEGIN, RANGE_BEGIN, FILE_END, HASH or
+	 * NOT_MODIFIED frame.
+	 * 
+	 * @return String storing path of the last frame read.
+	 */
+	public String getFileName() {
+
+		int at = 8;
+		if (type == WireProtocol.RANGE_BEGIN)
+			at = 32;
+		else if (type == WireProtocol.DELTA_BEGIN)
+			at = 24;
+		else if (type == WireProtocol.HASH)
+			at = 1 + (payload[0] & 0xFF);
+		else if (type == WireProtocol.NOT_MODIFIED)
+			at = 0;
+		return new String(payload, at, length - at, StandardCharsets.UTF_8);
+
+	}
+
+	/**
+	 * Decodes the block size of a DELTA_BEGIN frame.
+	 * 
+	 * @return Int storing size of the blocks of the old copy.
+	 */
+	public int getBlockSize() {
+
+		return ByteBuffer.wrap(payload, 0, length).getInt(16);
+
+	}
+
+	/**
+	 * Decodes the index of the first block of a DELTA_COPY frame.
+	 * 
+	 * @return Int storing index of the first block to copy.
+	 */
+	public int getFirstBlock() {
+
+		return ByteBuffer.wrap(payload, 0, length).getInt(0);
+
+	}
+
+	/**
+	 * Decodes the number of blocks of a DELTA_BEGIN or DELTA_COPY frame.
+	 * 
+	 * @return Int storing number of blocks of the old copy, or number of
+	 *         consecutive blocks to copy.
+	 */
+	public int getBlockCount() {
+
+		return ByteBuffer.wrap(payload, 0, length).getInt(type == WireProtocol.DELTA_BEGIN ? 20 : 4);
+
+	}
+
+	/**
+	 * Decodes the digest of a HASH frame.
+	 * 
+	 * @return String storing digest as lowercase hex.
+	 */
+	public String getHash() {
+
+		byte[] digest = new byte[payload[0] & 0xFF];
+		System.arraycopy(payload, 1, digest, 0, digest.length);
+		return HashCache.toHex(digest);
+
+	}
+
+	/**
+	 * Decodes the public key of a KEY_EXCHANGE frame.
+	 * 
+	 * @return Byte array storing X.509 encoded public key of PC Server.
+	 */
+	public byte[] getPublicKey() {
+
+		byte[] key = new byte[length];
+		System.arraycopy(payload, 0, key, 0, length);
+		return key;
+
+	}
+
+	/**
+	 * Decodes the last modified time of a RANGE_BEGIN or DELTA_BEGIN frame.
+	 * 
+	 * @return Long storing time the file was last modified.
+	 */
+	public long getLastModified() {
+
+		return ByteBuffer.wrap(payload, 0, length).getLong(8);
+
+	}
+
+	/**
+	 * Decodes the offset of a RANGE_BEGIN frame.
+	 * 
+	 * @return Long storing position of the first byte of the range.
+	 */
+	public long getRangeOffset() {
+
+		return ByteBuffer.wrap(payload, 0, length).getLong(16);
+
+	}
+
+	/**
+	 * Decodes the length of a RANGE_BEGIN frame.
+	 * 
+	 * @return Long storing number of bytes in the range.
+	 */
+	public long getRangeLength() {
+
+		return ByteBuffer.wrap(payload, 0, length).getLong(24);
+
+	}
+
+	/**
+	 * Decodes the entries of a LISTING frame.
+	 * 
+	 * @return ArrayList<String> storing entries of the last frame read.
+	 */
+	public ArrayList<String> getEntries() {
+
+		ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+		int count = buffer.getInt();
+		ArrayList<String> entries = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			int entryLength = buffer.getShort() & 0xFFFF;
+			entries.add(new String(payload, buffer.position(), entryLength, StandardCharsets.UTF_8));
+			buffer.position(buffer.position() + entryLength);
+		}
+		return entries;
+
+	}
+
+	/**
+	 * Reads exactly passed-in number of bytes.
+	 * 
+	 * @param b
+	 *            Byte array to read into.
+	 * @param off
+	 *            Int storing offset in b.
+	 * @param len
+	 *            Int storing number of bytes to read.
+	 * @throws IOException
+	 *             If the stream ends first.
+	 */
+	private void readFully(byte[] b, int off, int len) throws IOException {
+
+		while (len > 0) {
+			int n = inputStream.read(b, off, len);
+			if (n == -1)
+				throw new EOFException("Stream ended inside a frame");
+			off += n;
+			len -= n;
+		}
+
+	}
+
+}
@@ -0,0 +1,488 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * Writes frames, as described in WireProtocol, to the connection to an Android
+ * Server. Every BinaryMessageWriter of a session encodes its own payloads and
+ * hands finished frames to the session's single FrameWriter, which writes each
+ * frame whole, so frames of different streams never interleave within a frame.
+ * Settings which apply to the whole connection, such as compression, are kept
+ * here.
+ * 
+ * When several streams want to write at once, they take turns: control frames,
+ * such as text, listings and the frames which begin or end a file, go first,
+ * and bulk frames carrying file contents are then written one per stream in
+ * turn. A listing therefore only waits for the frame being written, however
+ * many large transfers are running, and no transfer starves another.
+ * 
+ * Once the session is encrypted, every payload is sealed during its writer's
+ * turn, so a single cipher is reused for every frame of the connection.
+ * 
+ * Given the channel under its stream, as a TCP connection has, file contents
+ * of a session which is neither encrypted nor compressed are handed straight
+ * from the file to the socket with FileChannel.transferTo.
+ */
+public class FrameWriter {
+
+	private OutputStream outputStream; // Stream to the Android Server.
+	// Channel under outputStream, or null if file contents must be copied to it.
+	private WritableByteChannel channel;
+
+	// Reused header of the frame being written.
+	private byte[] header = new byte[WireProtocol.HEADER_SIZE];
+	private ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+
+	private volatile boolean compressing; // True if payloads should be compressed.
+
+	// Key of the encrypted session, or null if payloads are sent in the clear.
+	private volatile SessionCipher sessionCipher;
+	private Cipher cipher; // Seals payloads, used only during a turn.
+	private byte[] sealed = new byte[0]; // Reused sealed payload.
+	private long bytesOut; // Bytes written to the Android Server.
+
+	// True while a frame is being written.
+	private boolean writing;
+
+	// Thread whose turn it is to write next, or null if the next caller may.
+	private Thread nextTurn;
+
+	// Threads waiting to write control frames, in arrival order.
+	private ArrayDeque<Thread> controlTurns = new ArrayDeque<Thread>();
+
+	// Threads waiting to write bulk frames, by stream id. Streams are served in
+	// insertion order and moved to the back once served.
+	private LinkedHashMap<Integer, ArrayDeque<Thread>> bulkTurns = new LinkedHashMap<Integer, ArrayDeque<Thread>>();
+
+	/**
+	 * Writes frames to passed-in stream.
+	 * 
+	 * @param out
+	 *            OutputStream to the Android Server.
+	 */
+	public FrameWriter(OutputStream out) {
+
+		this(out, null);
+
+	}
+
+	/**
+	 * Writes frames to passed-in stream, handing file contents straight to
+	 * passed-in channel under it when the session allows.
+	 * 
+	 * @param out
+	 *            OutputStream to the Android Server.
+	 * @param outChannel
+	 *            WritableByteChannel storing blocking channel out writes to, or
+	 *            null if there is none.
+	 */
+	public FrameWriter(OutputStream out, WritableByteChannel outChannel) {
+
+		outputStream = out;
+		channel = outChannel;
+
+	}
+
+	/**
+	 * Turns compression of listings and file chunks on or off for every stream.
+	 * 
+	 * @param enabled
+	 *            Boolean storing true to compress.
+	 */
+	public void setCompression(boolean enabled) {
+
+		compressing = enabled;
+
+	}
+
+	/**
+	 * Check if compression is turned on.
+	 * 
+	 * @return Boolean True if compressing; False if not.
+	 */
+	public boolean isCompressing() {
+
+		return compressing;
+
+	}
+
+	/**
+	 * Check if payloads are sealed.
+	 * 
+	 * @return Boolean True if encrypted; False if not.
+	 */
+	public boolean isEncrypting() {
+
+		return sessionCipher != null;
+
+	}
+
+	/**
+	 * Check if file contents can currently be handed straight from the file to
+	 * the connection, which needs a channel and a session which is neither
+	 * encrypted nor compressed.
+	 * 
+	 * @return Boolean True if transferFrame may be used; False if not.
+	 */
+	public boolean canTransfer() {
+
+		return channel != null && sessionCipher == null && !compressing;
+
+	}
+
+	/**
+	 * Getter method for private field bytesOut.
+	 * 
+	 * @return Long storing number of bytes written to the Android Server.
+	 */
+	public synchronized long getBytesOut() {
+
+		return bytesOut;
+
+	}
+
+	/**
+	 * Check if passed-in frame type carries file contents, which are written
+	 * after any waiting control frames.
+	 * 
+	 * @param type
+	 *            Byte storing frame type.
+	 * @return Boolean True if bulk; False if control.
+	 */
+	public static boolean isBulk(byte type) {
+
+		return type == WireProtocol.FILE_DATA || type == WireProtocol.DELTA_COPY;
+
+	}
+
+	/**
+	 * Writes one frame whose payload is passed-in body followed by passed-in
+	 * trailer, once it is the calling thread's turn.
+	 * 
+	 * @param type
+	 *            Byte storing frame type.
+	 * @param flags
+	 *            Byte storing frame flags.
+	 * @param streamId
+	 *            Int storing stream id of the frame.
+	 * @param body
+	 *            Byte array storing the payload.
+	 * @param offset
+	 *            Int storing index of the first byte of the payload.
+	 * @param length
+	 *            Int storing length of the payload.
+	 * @param trailer
+	 *            Byte array storing bytes written after the payload, or null.
+	 * @param trailerLength
+	 *            Int storing number of trailer bytes.
+	 * @throws IOException
+	 *             If the connection is lost, or if interrupted while waiting.
+	 */
+	public void writeFrame(byte type, byte flags, int streamId, byte[] body, int offset, int length,
+			byte[] trailer, int trailerLength) throws IOException {
+
+		awaitTurn(isBulk(type), streamId);
+		int written = 0;
+		try {
+			written = writeFrameNow(type, flags, streamId, body, offset, length, trailer, trailerLength);
+		} finally {
+			endTurn(written);
+		}
+
+	}
+
+	/**
+	 * Writes one frame whose payload is the next length bytes of passed-in file,
+	 * handed from the file to the connection with FileChannel.transferTo, once it
+	 * is the calling thread's turn. The payload carries no CRC32C trailer. If the
+	 * file shrinks partway through, the rest of the frame is padded with zeros so
+	 * the connection stays in step.
+	 * 
+	 * @param type
+	 *            Byte storing frame type.
+	 * @param streamId
+	 *            Int storing stream id of the frame.
+	 * @param source
+	 *            FileChannelSender storing reader of the file, at the first byte of
+	 *            the payload.
+	 * @param length
+	 *            Int storing length of the payload.
+	 * @return Int storing number of file bytes written, fewer than length if the
+	 *         file shrank; or -1 if nothing was written because the session was
+	 *         encrypted before the turn came.
+	 * @throws IOException
+	 *             If the file cannot be read, the connection is lost, or if
+	 *             interrupted while waiting.
+	 */
+	public int transferFrame(byte type, int streamId, FileChannelSender source, int length) throws IOException {
+
+		awaitTurn(isBulk(type), streamId);
+		int written = 0;
+		try {
+			if (channel == null || sessionCipher != null)
+				return -1;
+			putHeader(type, (byte) 0, streamId, length);
+			headerBuffer.flip();
+			while (headerBuffer.hasRemaining()) {
+				channel.write(headerBuffer);
+			}
+			written = WireProtocol.HEADER_SIZE;
+			int bytesSent = (int) source.transferTo(channel, length);
+			if (bytesSent < length) {
+				ByteBuffer padding = ByteBuffer.allocate(length - bytesSent);
+				while (padding.hasRemaining()) {
+					channel.write(padding);
+				}
+			}
+			written += length;
+			return bytesSent;
+		} finally {
+			endTurn(written);
+		}
+
+	}
+
+	/**
+	 * Writes a KEY_EXCHANGE frame, then seals the payload of every frame written
+	 * after it with passed-in key. The key is installed in the same turn the frame
+	 * is written, so no other frame can be written in the clear after it.
+	 * 
+	 * @param streamId
+	 *            Int storing stream id of the frame.
+	 * @param publicKey
+	 *            Byte array storing X.509 encoded public key of PC Server.
+	 * @param key
+	 *            SessionCipher storing key of the encrypted session.
+	 * @throws IOException
+	 *             If the connection is lost, or if interrupted while waiting.
+	 */
+	public void writeKeyExchange(int streamId, byte[] publicKey, SessionCipher key) throws IOException {
+
+		awaitTurn(false, streamId);
+		int written = 0;
+		try {
+			written = writeFrameNow(WireProtocol.KEY_EXCHANGE, (byte) 0, streamId, publicKey, 0, publicKey.length,
+					null, 0);
+			sessionCipher = key;
+		} finally {
+			endTurn(written);
+		}
+
+	}
+
+	/**
+	 * Seals passed-in payload and trailer into the sealed buffer, authenticating
+	 * the header already in place. Only called during the calling thread's turn.
+	 * 
+	 * @param key
+	 *            SessionCipher storing key of the encrypted session.
+	 * @param body
+	 *            Byte array storing the payload.
+	 * @param offset
+	 *            Int storing index of the first byte of the payload.
+	 * @param length
+	 *            Int storing length of the payload.
+	 * @param trailer
+	 *            Byte array storing bytes written after the payload, or null.
+	 * @param trailerLength
+	 *            Int storing number of trailer bytes.
+	 * @return Int storing length of the sealed payload.
+	 * @throws IOException
+	 *             If the payload cannot be sealed.
+	 */
+	private int seal(SessionCipher key, byte[] body, int offset, int length, byte[] trailer, int trailerLength)
+			throws IOException {
+
+		int needed = length + trailerLength + SessionCipher.OVERHEAD;
+		if (sealed.length < needed)
+			sealed = new byte[Math.max(needed, sealed.length * 2)];
+		try {
+			if (cipher == null)
+				cipher = SessionCipher.newCipher();
+			return key.seal(cipher, header, body, offset, length, trailer, trailerLength, sealed);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Error sealing frame: " + e);
+		}
+
+	}
+
+	/**
+	 * Waits until the calling thread may write a frame, queueing it behind the
+	 * other writers if any are writing or waiting.
+	 * 
+	 * @param bulk
+	 *            Boolean storing true if the frame carries file contents.
+	 * @param streamId
+	 *            Int storing stream id of the frame.
+	 * @throws InterruptedIOException
+	 *             If interrupted while waiting.
+	 */
+	private synchronized void awaitTurn(boolean bulk, int streamId) throws InterruptedIOException {
+
+		Thread self = Thread.currentThread();
+		if (writing || nextTurn != null) {
+			if (!bulk) {
+				controlTurns.add(self);
+			} else {
+				ArrayDeque<Thread> turns = bulkTurns.get(streamId);
+				if (turns == null) {
+					turns = new ArrayDeque<Thread>();
+					bulkTurns.put(streamId, turns);
+				}
+				turns.add(self);
+			}
+			try {
+				while (nextTurn != self) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				if (nextTurn == self)
+					passTurn();
+				else
+					removeTurn(self);
+				throw new InterruptedIOException("Interrupted while waiting to write a frame");
+			}
+			nextTurn = null;
+		}
+		writing = true;
+
+	}
+
+	/**
+	 * Ends the calling thread's turn and hands the next turn to the first waiting
+	 * control frame, or else to the next stream with a waiting bulk frame.
+	 * 
+	 * @param bytesWritten
+	 *            Int storing number of bytes written during the turn.
+	 */
+	private synchronized void endTurn(int bytesWritten) {
+
+		writing = false;
+		bytesOut += bytesWritten;
+		passTurn();
+
+	}
+
+	/**
+	 * Hands the next turn to the next waiting thread, if any.
+	 */
+	private void passTurn() {
+
+		nextTurn = controlTurns.poll();
+		if (nextTurn == null && !bulkTurns.isEmpty()) {
+			Iterator<Map.Entry<Integer, ArrayDeque<Thread>>> streams = bulkTurns.entrySet().iterator();
+			Map.Entry<Integer, ArrayDeque<Thread>> stream = streams.next();
+			streams.remove();
+			nextTurn = stream.getValue().poll();
+			// Move the stream to the back, behind every other stream.
+			if (!stream.getValue().isEmpty())
+				bulkTurns.put(stream.getKey(), stream.getValue());
+		}
+		if (nextTurn != null)
+			notifyAll();
+
+	}
+
+	/**
+	 * Removes passed-in thread from the threads waiting for a turn.
+	 * 
+	 * @param waiting
+	 *            Thread which stopped waiting.
+	 */
+	private void removeTurn(Thread waiting) {
+
+		if (controlTurns.remove(waiting))
+			return;
+		Iterator<ArrayDeque<Thread>> streams = bulkTurns.values().iterator();
+		while (streams.hasNext()) {
+			ArrayDeque<Thread> turns = streams.next();
+			if (turns.remove(waiting)) {
+				if (turns.isEmpty())
+					streams.remove();
+				return;
+			}
+		}
+
+	}
+
+	/**
+	 * Writes one frame straight away, sealing its payload if the session is
+	 * encrypted. Only called during the calling thread's turn.
+	 * 
+	 * @param type
+	 *            Byte storing frame type.
+	 * @param flags
+	 *            Byte storing frame flags.
+	 * @param streamId
+	 *            Int storing stream id of the frame.
+	 * @param body
+	 *            Byte array storing the payload.
+	 * @param offset
+	 *            Int storing index of the first byte of the payload.
+	 * @param length
+	 *            Int storing length of the payload.
+	 * @param trailer
+	 *            Byte array storing bytes written after the payload, or null.
+	 * @param trailerLength
+	 *            Int storing number of trailer bytes.
+	 * @return Int storing number of bytes written.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	private int writeFrameNow(byte type, byte flags, int streamId, byte[] body, int offset, int length,
+			byte[] trailer, int trailerLength) throws IOException {
+
+		SessionCipher key = sessionCipher;
+		if (key != null) {
+			flags |= WireProtocol.FLAG_ENCRYPTED;
+			putHeader(type, flags, streamId, length + trailerLength + SessionCipher.OVERHEAD);
+			length = seal(key, body, offset, length, trailer, trailerLength);
+			body = sealed;
+			offset = 0;
+			trailerLength = 0;
+		} else {
+			putHeader(type, flags, streamId, length + trailerLength);
+		}
+		outputStream.write(header, 0, WireProtocol.HEADER_SIZE);
+		outputStream.write(body, offset, length);
+		if (trailerLength > 0)
+			outputStream.write(trailer, 0, trailerLength);
+		outputStream.flush();
+		return WireProtocol.HEADER_SIZE + length + trailerLength;
+
+	}
+
+	/**
+	 * Fills in the reused header of the frame being written.
+	 * 
+	 * @param type
+	 *            Byte storing frame type.
+	 * @param flags
+	 *            Byte storing frame flags.
+	 * @param streamId
+	 *            Int storing stream id of the frame.
+	 * @param payloadLength
+	 *            Int storing length of the payload as written.
+	 */
+	private void putHeader(byte type, byte flags, int streamId, int payloadLength) {
+
+		headerBuffer.clear();
+		headerBuffer.put(WireProtocol.VERSION);
+		headerBuffer.put(type);
+		headerBuffer.put(flags);
+		headerBuffer.put((byte) 0);
+		headerBuffer.putInt(streamId);
+		headerBuffer.putInt(payloadLength);
+
+	}
+
+}
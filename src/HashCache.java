@@ -0,0 +1,351 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Cache of SHA-256 hashes of files underneath TLD, keyed by path and valid only
+ * while the file keeps the size and last modified time it had when it was
+ * hashed. Hashes are computed when first requested, or recorded for free while
+ * a file is being sent. The cache holds at most droidtooth.hashCache.maxEntries
+ * hashes, evicting the least recently used first, and is saved to
+ * HASH_CACHE_FILE so it survives restarts. Changes are saved in batches, at
+ * most once every droidtooth.hashCache.saveDelay milliseconds.
+ */
+public class HashCache {
+
+	// Shares the PC Server log.
+	private static Logger logger = Logger.getLogger("PCServerLog");
+
+	// Algorithm files are hashed with.
+	public static String ALGORITHM = "SHA-256";
+
+	// File the cache is saved to.
+	public static String HASH_CACHE_FILE = ServerConfig.getString("droidtooth.hashCache.file",
+			"Files" + File.separator + "HASH_CACHE.txt");
+
+	// Size of each read while hashing (64 KB).
+	private static int BUFFER_SIZE = 65536;
+
+	// Most hashes held at once.
+	private static int MAX_ENTRIES = ServerConfig.getInt("droidtooth.hashCache.maxEntries", 100000);
+
+	// Milliseconds changes wait before being saved, so several are saved at once.
+	private static long SAVE_DELAY = ServerConfig.getLong("droidtooth.hashCache.saveDelay", 30000);
+
+	/**
+	 * Hash of a file along with the size and last modified time it was computed
+	 * for.
+	 */
+	private static class Entry {
+
+		private long size;
+		private long lastModified;
+		private String hash;
+
+		Entry(long size, long lastModified, String hash) {
+
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+
+		}
+
+	}
+
+	private File cacheFile; // File the cache is saved to.
+	private volatile boolean dirty; // True if entries changed since the last save.
+	private AtomicBoolean saveScheduled = new AtomicBoolean(); // True if a save is queued.
+
+	// Entries by absolute path, least recently used first.
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+
+	};
+
+	// Single low-priority thread saving the cache in the background.
+	private ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "HashCache");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+
+	});
+
+	/**
+	 * Creates a cache saved to HASH_CACHE_FILE, loading what was saved before.
+	 */
+	public HashCache() {
+
+		this(new File(HASH_CACHE_FILE));
+
+	}
+
+	/**
+	 * Creates a cache saved to passed-in file, loading what was saved before.
+	 * 
+	 * @param f
+	 *            File the cache is saved to.
+	 */
+	public HashCache(File f) {
+
+		cacheFile = f;
+		load();
+
+	}
+
+	/**
+	 * Returns the cached hash of passed-in file, if it is still valid.
+	 * 
+	 * @param f
+	 *            File to look up.
+	 * @return String storing hash as lowercase hex, or null if the file has not
+	 *         been hashed since it last changed.
+	 */
+	public String get(File f) {
+
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(f.getAbsolutePath());
+		}
+		if (entry == null || entry.size != f.length() || entry.lastModified != f.lastModified())
+			return null;
+		return entry.hash;
+
+	}
+
+	/**
+	 * Records the hash of passed-in file, computed while its contents were read
+	 * for some other purpose. The hash is only kept if the file did not change
+	 * while it was being read.
+	 * 
+	 * @param f
+	 *            File which was hashed.
+	 * @param size
+	 *            Long storing size of the file before it was read.
+	 * @param lastModified
+	 *            Long storing last modified time of the file before it was read.
+	 * @param hash
+	 *            String storing hash as lowercase hex.
+	 */
+	public void put(File f, long size, long lastModified, String hash) {
+
+		if (f.length() != size || f.lastModified() != lastModified)
+			return;
+		synchronized (entries) {
+			entries.put(f.getAbsolutePath(), new Entry(size, lastModified, hash));
+		}
+		dirty = true;
+		scheduleSave();
+
+	}
+
+	/**
+	 * Hashes passed-in file on the calling thread and caches the result.
+	 * 
+	 * @param f
+	 *            File to hash.
+	 * @return String storing hash as lowercase hex, or null if the file could not
+	 *         be read.
+	 */
+	public String compute(File f) {
+
+		long size = f.length();
+		long lastModified = f.lastModified();
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream in = null;
+		try {
+			in = Files.newInputStream(f.toPath(), LinkOption.NOFOLLOW_LINKS);
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+		} catch (IOException e) {
+			logger.info("Error hashing " + f + ": " + e);
+			return null;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				logger.info("Error closing " + f + ": " + e);
+			}
+		}
+
+		String hash = toHex(digest.digest());
+		put(f, size, lastModified, hash);
+		return hash;
+
+	}
+
+	/**
+	 * Stops the saving thread and saves the cache.
+	 */
+	public void shutdown() {
+
+		saver.shutdownNow();
+		save();
+
+	}
+
+	/**
+	 * Creates a digest computing ALGORITHM.
+	 * 
+	 * @return MessageDigest ready for use.
+	 */
+	public static MessageDigest newDigest() {
+
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		}
+
+	}
+
+	/**
+	 * Formats passed-in digest as lowercase hex.
+	 * 
+	 * @param digest
+	 *            Byte array storing digest.
+	 * @return String storing digest as lowercase hex.
+	 */
+	public static String toHex(byte[] digest) {
+
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = Character.forDigit((digest[i] >> 4) & 0xF, 16);
+			hex[i * 2 + 1] = Character.forDigit(digest[i] & 0xF, 16);
+		}
+		return new String(hex);
+
+	}
+
+	/**
+	 * Saves the cache on the saving thread once SAVE_DELAY has passed, along with
+	 * every change made in the meantime.
+	 */
+	private void scheduleSave() {
+
+		if (!saveScheduled.compareAndSet(false, true))
+			return;
+		try {
+			saver.schedule(new Runnable() {
+
+				public void run() {
+					saveScheduled.set(false);
+					save();
+				}
+
+			}, SAVE_DELAY, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down; shutdown saves the cache itself.
+		}
+
+	}
+
+	/**
+	 * Writes the cache to cacheFile if it changed, replacing the old file only
+	 * once the new one is complete. Each line stores hash, size, last modified
+	 * time and path, separated by tabs.
+	 */
+	public synchronized void save() {
+
+		if (!dirty)
+			return;
+		dirty = false;
+
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		BufferedWriter out = null;
+		try {
+			File dir = cacheFile.getAbsoluteFile().getParentFile();
+			if (dir != null)
+				dir.mkdirs();
+			Map<String, Entry> saved;
+			synchronized (entries) {
+				saved = new LinkedHashMap<String, Entry>(entries);
+			}
+			out = new BufferedWriter(new FileWriter(temp));
+			for (Map.Entry<String, Entry> e : saved.entrySet()) {
+				Entry entry = e.getValue();
+				out.write(entry.hash + "\t" + entry.size + "\t" + entry.lastModified + "\t" + e.getKey());
+				out.newLine();
+			}
+			out.close();
+			out = null;
+			Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.info("Error saving hash cache: " + e);
+			dirty = true;
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				logger.info("Error closing hash cache: " + e);
+			}
+		}
+
+	}
+
+	/**
+	 * Reads the cache saved in cacheFile, skipping malformed lines.
+	 */
+	private void load() {
+
+		if (!cacheFile.exists())
+			return;
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(cacheFile));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", 4);
+				if (parts.length < 4)
+					continue;
+				try {
+					entries.put(parts[3], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[0]));
+				} catch (NumberFormatException e) {
+					// Skip malformed line.
+				}
+			}
+		} catch (IOException e) {
+			logger.info("Error loading hash cache: " + e);
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				logger.info("Error closing hash cache: " + e);
+			}
+		}
+
+	}
+
+}
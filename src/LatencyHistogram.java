@@ -0,0 +1,124 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies. Latencies are counted in power-of-two
+ * buckets of microseconds, so recording is a handful of atomic adds and
+ * percentiles are accurate to within a factor of two, which is enough to tell
+ * a slow command from a fast one.
+ */
+public class LatencyHistogram {
+
+	// Bucket i counts latencies below 2^i microseconds; the last bucket counts the
+	// rest.
+	private static int BUCKETS = 40;
+
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong totalMicros = new AtomicLong();
+	private AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Records one latency, measured from passed-in start time until now.
+	 * 
+	 * @param startNanos
+	 *            Long storing System.nanoTime when the measured operation began.
+	 */
+	public void recordSince(long startNanos) {
+
+		record((System.nanoTime() - startNanos) / 1000);
+
+	}
+
+	/**
+	 * Records one latency.
+	 * 
+	 * @param micros
+	 *            Long storing latency in microseconds.
+	 */
+	public void record(long micros) {
+
+		if (micros < 0)
+			micros = 0;
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+
+	}
+
+	/**
+	 * Getter method for private field count.
+	 * 
+	 * @return Long storing number of latencies recorded.
+	 */
+	public long getCount() {
+
+		return count.get();
+
+	}
+
+	/**
+	 * Mean of all latencies recorded.
+	 * 
+	 * @return Double storing mean latency in milliseconds; 0 if none were recorded.
+	 */
+	public double getMeanMillis() {
+
+		long n = count.get();
+		return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+
+	}
+
+	/**
+	 * Largest latency recorded.
+	 * 
+	 * @return Double storing largest latency in milliseconds.
+	 */
+	public double getMaxMillis() {
+
+		return maxMicros.get() / 1000.0;
+
+	}
+
+	/**
+	 * Upper bound of passed-in percentile of the latencies recorded.
+	 * 
+	 * @param percentile
+	 *            Double storing percentile, between 0 and 100.
+	 * @return Double storing latency in milliseconds that at least that share of
+	 *         latencies were below; 0 if none were recorded.
+	 */
+	public double getPercentileMillis(double percentile) {
+
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(1L << i, Math.max(1, maxMicros.get())) / 1000.0;
+		}
+		return getMaxMillis();
+
+	}
+
+	/**
+	 * Summarizes the latencies recorded.
+	 * 
+	 * @return String storing count, mean, median, 99th percentile and maximum.
+	 */
+	public String toString() {
+
+		return String.format("count=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms", getCount(), getMeanMillis(),
+				getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+
+	}
+
+}
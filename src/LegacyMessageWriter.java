@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cloudtoothpackage.CloudToothMessage;
+
+/**
+ * Implementation of MessageWriter which writes Java-serialized
+ * CloudToothMessages, as understood by every Android Server build. The object
+ * output stream is reset after every message so that it does not hold on to
+ * messages already sent, and so that a reused chunk buffer is written out again
+ * instead of as a back-reference to the previous one.
+ * 
+ * By default a file is sent as a single FILE_BEGIN message holding the whole
+ * file, followed by FILE_END, so the file is gathered in memory first. An
+ * Android Server which sends "proto chunked" instead receives the first chunk
+ * as FILE_BEGIN and every later chunk as FILE_CONTINUATION, each carrying the
+ * total file size, and appends their bytes until FILE_END, so files of any
+ * size are sent in constant memory.
+ */
+public class LegacyMessageWriter implements MessageWriter {
+
+	// Largest file which fits in a single message.
+	private static int MAX_SINGLE_MESSAGE = Integer.MAX_VALUE - 8;
+
+	private OutputStream outputStream; // Raw stream to the Android Server.
+	private ObjectOutputStream objectOutputStream; // Stream messages are written to.
+
+	// True once the Android Server asked for files in chunks, and whether the file
+	// being sent is, since the setting only applies from the next file on.
+	private volatile boolean chunked;
+	private boolean sendingChunked;
+	private boolean begun; // True once the first chunk of the file was sent.
+
+	// Bytes of the file being sent as a single message, gathered so far.
+	private byte[] wholeFile;
+	private int wholeLength;
+
+	/**
+	 * Starts an object output stream on passed-in stream, writing its header.
+	 * 
+	 * @param out
+	 *            OutputStream to the Android Server.
+	 * @throws IOException
+	 *             If the header cannot be written.
+	 */
+	public LegacyMessageWriter(OutputStream out) throws IOException {
+
+		outputStream = out;
+		objectOutputStream = new ObjectOutputStream(out);
+
+	}
+
+	/**
+	 * Writes passed-in message and resets the object output stream.
+	 * 
+	 * @param message
+	 *            CloudToothMessage to be sent.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public synchronized void writeMessage(CloudToothMessage message) throws IOException {
+
+		objectOutputStream.writeObject(message);
+		objectOutputStream.flush();
+		objectOutputStream.reset();
+
+	}
+
+	/**
+	 * Writes passed-in message without resetting the object output stream
+	 * afterwards, so it is the last thing on the stream. Used before handing the
+	 * stream over to another wire format.
+	 * 
+	 * @param text
+	 *            String storing text to send.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	public synchronized void writeFinalText(String text) throws IOException {
+
+		objectOutputStream.writeObject(new CloudToothMessage(CloudToothMessage.TEXT, text));
+		objectOutputStream.flush();
+
+	}
+
+	/**
+	 * Sends every file from the next one on as one message per chunk, rather than
+	 * as a single message.
+	 * 
+	 * @param enabled
+	 *            Boolean storing true to send files in chunks.
+	 */
+	public void setChunked(boolean enabled) {
+
+		chunked = enabled;
+
+	}
+
+	/**
+	 * Check if files are sent in chunks.
+	 * 
+	 * @return Boolean True if chunked; False if each file is a single message.
+	 */
+	public boolean isChunked() {
+
+		return chunked;
+
+	}
+
+	public void writeText(String text) throws IOException {
+
+		writeMessage(new CloudToothMessage(CloudToothMessage.TEXT, text));
+
+	}
+
+	/**
+	 * Older Android Server builds expect unrecognized protocols to be answered with
+	 * raw bytes, so errors are written outside the object stream.
+	 */
+	public synchronized void writeError(String text) throws IOException {
+
+		outputStream.write(text.getBytes());
+		outputStream.flush();
+
+	}
+
+	public void writeListing(List<String> entries) throws IOException {
+
+		ArrayList<String> fileNames = entries instanceof ArrayList ? (ArrayList<String>) entries
+				: new ArrayList<String>(entries);
+		writeMessage(new CloudToothMessage(CloudToothMessage.FILE_LISTING, fileNames));
+
+	}
+
+	public void writeHash(String fileName, String hash) throws IOException {
+
+		writeText("Hash: " + hash + " " + fileName);
+
+	}
+
+	public void writeNotModified(String fileName) throws IOException {
+
+		writeText("Not modified: " + fileName);
+
+	}
+
+	/**
+	 * Every legacy message carries the file name and size, so nothing is sent up
+	 * front. Unless files are sent in chunks, room is made for the whole file.
+	 * 
+	 * @throws IOException
+	 *             If the file is too large for a single message.
+	 */
+	public synchronized void writeFileBegin(String fileName, long fileSize) throws IOException {
+
+		sendingChunked = chunked;
+		begun = false;
+		wholeFile = null;
+		if (sendingChunked)
+			return;
+		if (fileSize > MAX_SINGLE_MESSAGE)
+			throw new IOException("File too large for a single message, send 'proto chunked' first: " + fileName);
+		wholeFile = new byte[fileSize >= 0 ? (int) fileSize : 65536];
+		wholeLength = 0;
+
+	}
+
+	public synchronized void writeFileChunk(String fileName, byte[] chunk, int length, long fileSize)
+			throws IOException {
+
+		if (!sendingChunked) {
+			gather(fileName, chunk, length);
+			return;
+		}
+		byte[] fileBytes = chunk;
+		if (length != chunk.length) {
+			fileBytes = new byte[length];
+			System.arraycopy(chunk, 0, fileBytes, 0, length);
+		}
+		writeMessage(new CloudToothMessage(begun ? CloudToothMessage.FILE_CONTINUATION : CloudToothMessage.FILE_BEGIN,
+				fileName, fileBytes, fileSize));
+		begun = true;
+
+	}
+
+	/**
+	 * Sends the file gathered so far, or an empty FILE_BEGIN if no chunk of a
+	 * chunked file was sent, then FILE_END.
+	 */
+	public synchronized void writeFileEnd(String fileName, long fileSize) throws IOException {
+
+		if (!sendingChunked && wholeFile != null) {
+			byte[] fileBytes = wholeLength == wholeFile.length ? wholeFile : Arrays.copyOf(wholeFile, wholeLength);
+			wholeFile = null;
+			writeMessage(new CloudToothMessage(CloudToothMessage.FILE_BEGIN, fileName, fileBytes, fileSize));
+		} else if (sendingChunked && !begun) {
+			writeMessage(new CloudToothMessage(CloudToothMessage.FILE_BEGIN, fileName, new byte[0], fileSize));
+		}
+		begun = false;
+		writeMessage(new CloudToothMessage(CloudToothMessage.FILE_END, fileName, new byte[1], fileSize));
+
+	}
+
+	/**
+	 * Appends passed-in chunk to the file being sent as a single message.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param chunk
+	 *            Byte array storing bytes of the file.
+	 * @param length
+	 *            Int storing number of bytes of chunk to append.
+	 * @throws IOException
+	 *             If the file grows too large for a single message.
+	 */
+	private void gather(String fileName, byte[] chunk, int length) throws IOException {
+
+		if (length > wholeFile.length - wholeLength) {
+			if (length > MAX_SINGLE_MESSAGE - wholeLength)
+				throw new IOException("File too large for a single message, send 'proto chunked' first: " + fileName);
+			long grown = Math.max((long) wholeLength + length, (long) wholeFile.length * 2);
+			wholeFile = Arrays.copyOf(wholeFile, (int) Math.min(grown, MAX_SINGLE_MESSAGE));
+		}
+		System.arraycopy(chunk, 0, wholeFile, wholeLength, length);
+		wholeLength += length;
+
+	}
+
+}
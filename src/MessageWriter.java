@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes protocol responses to the Android Server in one wire format. Every
+ * method writes whole messages and is safe to call from several threads. The
+ * messages of a file, from writeFileBegin to writeFileEnd, carry state from one
+ * call to the next, so a writer sends one file at a time; files sent at once
+ * each need their own writer, as given by BinaryMessageWriter.forStream.
+ */
+public interface MessageWriter {
+
+	/**
+	 * Writes a text message.
+	 * 
+	 * @param text
+	 *            String storing text to send.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	void writeText(String text) throws IOException;
+
+	/**
+	 * Writes an error for a protocol which could not be handled.
+	 * 
+	 * @param text
+	 *            String storing error to send.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	void writeError(String text) throws IOException;
+
+	/**
+	 * Writes a listing of paths.
+	 * 
+	 * @param entries
+	 *            List<String> storing entries of the listing.
+	 * @throws IOException
+	 *             If the connection is lost, or an entry cannot be encoded.
+	 */
+	void writeListing(List<String> entries) throws IOException;
+
+	/**
+	 * Writes the hash of a file.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param hash
+	 *            String storing SHA-256 hash of the file as lowercase hex.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	void writeHash(String fileName, String hash) throws IOException;
+
+	/**
+	 * Tells the Android Server that its copy of a file is current, in answer to a
+	 * conditional request.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	void writeNotModified(String fileName) throws IOException;
+
+	/**
+	 * Announces that chunks of a file follow.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param fileSize
+	 *            Long storing total size of the file.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	void writeFileBegin(String fileName, long fileSize) throws IOException;
+
+	/**
+	 * Writes the next chunk of a file. The chunk may be reused by the caller once
+	 * this returns.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param chunk
+	 *            Byte array storing contents of the chunk.
+	 * @param length
+	 *            Int storing number of bytes of chunk to send.
+	 * @param fileSize
+	 *            Long storing total size of the file.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	void writeFileChunk(String fileName, byte[] chunk, int length, long fileSize) throws IOException;
+
+	/**
+	 * Marks the end of a file.
+	 * 
+	 * @param fileName
+	 *            String storing path of the file.
+	 * @param fileSize
+	 *            Long storing total size of the file.
+	 * @throws IOException
+	 *             If the connection is lost.
+	 */
+	void writeFileEnd(String fileName, long fileSize) throws IOException;
+
+}
@@ -1,62 +1,67 @@
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.nio.file.Files;
+import java.lang.reflect.Method;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.logging.FileHandler;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
-
-import javax.bluetooth.*;
-import javax.microedition.io.*;
-
-import cloudtoothpackage.CloudToothMessage;
 
 /**
- * Listens for connection from Android Server and communicates with it.
+ * Listens for connections from Android Servers and hands each one to its own
+ * ClientSession.
  */
 public class PCServer {
 
 	// For error logging within PCServer.
 	private static Logger logger = Logger.getLogger("PCServerLog");
-	private static FileHandler fh;
-	private static SimpleFormatter sf;
+	private static boolean loggingSetUp;
 
-	// Possible states of PC Server.
-	private int currentState;
-	private static int DISCONNECTED_STATE = -100;
-	private static int CONNECTED_STATE = 100;
-	private static int SENDING_FILE = 200;
-	private static int TERMINATED = -1;
-	private static int TIME_OUT = -2;
+	// PC Server's own files, which are never sent even if they are underneath TLD.
+	private static File[] KEY_FILES = { new File("Files\\KEY_FILE.txt"), new File("Files\\ENCRYPTED_TLD.txt"),
+			new File("Files\\ENCRYPTED_UDA.txt"), new File(HashCache.HASH_CACHE_FILE),
+			new File(PeerChunkSizes.CHUNK_SIZES_FILE), new File(CatalogSnapshot.SNAPSHOT_FILE) };
 
-	// Protocols to be received.
-	private static String SEND_FILE_NAMES = "ls";
-	private static String EXIT_CONNECTION = "exit";
+	// Current state of PC Server, starting out terminated.
+	private ConnectionStateMachine state = new ConnectionStateMachine(ConnectionState.TERMINATED);
 
 	// Values retrieved from encrypted files.
 	private File TLD;
 	private String UDA;
 
-	// Streams used for input and output.
-	private InputStream inputStream;
-	private BufferedReader bReader;
-	private OutputStream outputStream;
-	private ObjectOutputStream objectOutputStream;
-	private PrintWriter pWriter;
+	// Transport connections are accepted from, and how the address of each
+	// connected device is looked up for comparison with UDA.
+	private Transport transport;
+	private PeerAddressProvider peerAddresses;
+
+	// In-memory catalog of all files underneath TLD.
+	private FileCatalog catalog;
+
+	// Cache of hashes of files underneath TLD.
+	private HashCache hashCache;
+
+	// Contents of small files sent often.
+	private ContentCache contentCache;
+
+	// Chunk size each Android Server last settled on.
+	private PeerChunkSizes peerChunkSizes;
 
-	// Queue of files to be sent.
-	private Queue<File> filesToSend = new LinkedList<File>();
-	private FileInputStream fis;
+	// Counters and latencies, exposed through JMX.
+	private ServerMetrics metrics = new ServerMetrics(this);
+
+	// Walker used for full scans of TLD.
+	private ParallelDirectoryWalker walker = new ParallelDirectoryWalker();
+
+	// Sessions currently being served, the executor they run on, and the slots
+	// bounding how many can run at once.
+	private Set<ClientSession> sessions = new HashSet<ClientSession>();
+	private ExecutorService sessionExecutor = newSessionExecutor();
+	private Semaphore sessionSlots = new Semaphore(ServerConfig.getInt("droidtooth.sessions.max", 8));
 
 	/**
 	 * PC Server default constructor for testing, skipping the registration process.
@@ -75,23 +80,87 @@ public class PCServer {
 	 */
 	public PCServer(String TLD_PATH, String MAC_ADDRESS) {
 
+		this(TLD_PATH, MAC_ADDRESS, new BluetoothTransport());
+
+	}
+
+	/**
+	 * PC Server constructor accepting connections from passed-in transport, whose
+	 * default peer address provider is used for the UDA check.
+	 * 
+	 * @param TLD_PATH
+	 *            String storing path to TLD file.
+	 * @param MAC_ADDRESS
+	 *            String storing path to UDA file.
+	 * @param serverTransport
+	 *            Transport to accept connections from.
+	 */
+	public PCServer(String TLD_PATH, String MAC_ADDRESS, Transport serverTransport) {
+
+		this(TLD_PATH, MAC_ADDRESS, serverTransport, serverTransport.getDefaultPeerAddressProvider());
+
+	}
+
+	/**
+	 * PC Server constructor accepting connections from passed-in transport.
+	 * 
+	 * @param TLD_PATH
+	 *            String storing path to TLD file.
+	 * @param MAC_ADDRESS
+	 *            String storing path to UDA file.
+	 * @param serverTransport
+	 *            Transport to accept connections from.
+	 * @param peerAddressProvider
+	 *            PeerAddressProvider used to compare connected devices with UDA.
+	 */
+	public PCServer(String TLD_PATH, String MAC_ADDRESS, Transport serverTransport,
+			PeerAddressProvider peerAddressProvider) {
+
 		TLD = new File(TLD_PATH);
 		UDA = MAC_ADDRESS;
+		transport = serverTransport;
+		peerAddresses = peerAddressProvider;
+
+		catalog = new FileCatalog(TLD, walker);
+		catalog.start();
+
+		hashCache = new HashCache();
+		contentCache = new ContentCache();
+		peerChunkSizes = new PeerChunkSizes();
+		metrics.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("PCServerSave") {
+
+			public void run() {
+				hashCache.shutdown();
+				catalog.saveSnapshot();
+			}
 
-		currentState = TERMINATED; // Initial state.
+		});
 
 	}
 
 	/**
-	 * Change current state of PC Server to passed-in parameter.
+	 * Change current state of PC Server to the state with passed-in legacy code.
 	 * 
-	 * @param state
-	 *            Int storing new state of PC Server.
+	 * @param code
+	 *            Int storing legacy code of new state of PC Server.
 	 */
-	public void newCurrentState(int state) {
+	public void newCurrentState(int code) {
 
-		if (state == -100 || state == 100 || state == 200 || state == -1 || state == -2)
-			currentState = state;
+		ConnectionState newState = ConnectionState.fromCode(code);
+		if (newState != null)
+			state.transition(newState);
+
+	}
+
+	/**
+	 * Getter method for private field state.
+	 * 
+	 * @return ConnectionStateMachine storing current state of PC Server.
+	 */
+	public ConnectionStateMachine getStateMachine() {
+
+		return state;
 
 	}
 
@@ -101,9 +170,7 @@ public class PCServer {
 	 * @return Boolean True if disconnected; False if not.
 	 */
 	public boolean isDisconnected() {
-		if (currentState == DISCONNECTED_STATE)
-			return true;
-		return false;
+		return state.is(ConnectionState.DISCONNECTED);
 	}
 
 	/**
@@ -112,19 +179,19 @@ public class PCServer {
 	 * @return Boolean True if connected; False if not.
 	 */
 	public boolean isConnected() {
-		if (currentState == CONNECTED_STATE)
-			return true;
-		return false;
+		return state.is(ConnectionState.CONNECTED);
 	}
 
 	/**
-	 * Check if the current state of the PC Server object is sending file.
+	 * Check if any session of the PC Server object is sending file.
 	 * 
 	 * @return Boolean True if sending file; False if not.
 	 */
-	public boolean isSendingFile() {
-		if (currentState == SENDING_FILE)
-			return true;
+	public synchronized boolean isSendingFile() {
+		for (ClientSession session : sessions) {
+			if (session.isSendingFile())
+				return true;
+		}
 		return false;
 	}
 
@@ -134,9 +201,7 @@ public class PCServer {
 	 * @return Boolean True if terminated; False if not.
 	 */
 	public boolean isTerminated() {
-		if (currentState == TERMINATED)
-			return true;
-		return false;
+		return state.is(ConnectionState.TERMINATED);
 	}
 
 	/**
@@ -145,35 +210,88 @@ public class PCServer {
 	 * @return Boolean True if timed out; False if not.
 	 */
 	public boolean isTimedOut() {
-		if (currentState == TIME_OUT)
-			return true;
-		return false;
+		return state.is(ConnectionState.TIME_OUT);
+	}
+
+	/**
+	 * Getter method for private field TLD.
+	 * 
+	 * @return File storing TLD.
+	 */
+	public File getTLD() {
+
+		return TLD;
+
 	}
 
 	/**
-	 * Getter method for private field filesToSend.
+	 * Getter method for private field catalog.
 	 * 
-	 * @return Queue<File> storing all files to be sent.
+	 * @return FileCatalog storing all files underneath TLD.
 	 */
-	public Queue<File> getFilesToSend() {
+	public FileCatalog getCatalog() {
 
-		return filesToSend;
+		return catalog;
 
 	}
 
 	/**
-	 * Getter method for private field outputStream.
+	 * Getter method for private field hashCache.
 	 * 
-	 * @return OutputStream storing output stream built on current connection.
+	 * @return HashCache storing hashes of files underneath TLD.
 	 */
-	public OutputStream getOutputStream() {
+	public HashCache getHashCache() {
 
-		return outputStream;
+		return hashCache;
 
 	}
 
 	/**
-	 * Get all files underneath TLD.
+	 * Getter method for private field contentCache.
+	 * 
+	 * @return ContentCache storing contents of small files sent often.
+	 */
+	public ContentCache getContentCache() {
+
+		return contentCache;
+
+	}
+
+	/**
+	 * Getter method for private field peerChunkSizes.
+	 * 
+	 * @return PeerChunkSizes storing chunk size each Android Server settled on.
+	 */
+	public PeerChunkSizes getPeerChunkSizes() {
+
+		return peerChunkSizes;
+
+	}
+
+	/**
+	 * Getter method for private field metrics.
+	 * 
+	 * @return ServerMetrics storing counters and latencies of PC Server.
+	 */
+	public ServerMetrics getMetrics() {
+
+		return metrics;
+
+	}
+
+	/**
+	 * Get the sessions currently being served.
+	 * 
+	 * @return ArrayList<ClientSession> storing a copy of the sessions being served.
+	 */
+	public synchronized ArrayList<ClientSession> getSessions() {
+
+		return new ArrayList<ClientSession>(sessions);
+
+	}
+
+	/**
+	 * Get all files underneath TLD, walking the tree in parallel.
 	 * 
 	 * @param root
 	 *            File storing file asked for.
@@ -181,28 +299,7 @@ public class PCServer {
 	 */
 	public ArrayList<String> getAllFileNames(File root) {
 
-		Queue<File> myQueue = new LinkedList<File>();
-		myQueue.add(root);
-
-		ArrayList<String> finalList = new ArrayList<String>();
-
-		// If the current file is a directory, add it to the queue to address it later.
-		// If the current file is a file, add it to the master list to send back to the
-		// user.
-		while (!myQueue.isEmpty()) {
-			File cur = myQueue.remove();
-			if (cur.isFile()) {
-				finalList.add("\n" + cur.getAbsolutePath());
-			}
-			if (cur.isDirectory()) {
-				File[] arr = cur.listFiles();
-				for (int i = 0; i < arr.length; i++) {
-					myQueue.add(arr[i]);
-				}
-			}
-		}
-
-		return finalList;
+		return walker.getAllFileNames(root);
 
 	}
 
@@ -215,271 +312,267 @@ public class PCServer {
 	 */
 	public boolean isFileWithinTLD(String input) {
 
-		String pathToTLD = TLD.getAbsolutePath();
-
-		// Return True if file exists and if file path starts with TLD's path.
-		File f = new File(input);
-		if (f.exists() && input.startsWith(pathToTLD))
-			return true;
-
-		return false; // Otherwise, return False.
+		return resolveWithinTLD(input) != null;
 
 	}
 
 	/**
-	 * Checks if we can send the file, determined by how many requests are already
-	 * queued.
+	 * Resolves passed-in path to the file it really names, following "..", "."
+	 * and symbolic links, and checks that file is within the hierarchy of TLD.
+	 * Paths are compared name by name, so neither "TLD/.." nor a sibling such as
+	 * "TLD2" passes.
 	 * 
-	 * @return True if we can send file; False if not.
+	 * @param input
+	 *            String storing specified path.
+	 * @return File storing real path of the file, or null if it does not exist or
+	 *         is not within TLD.
 	 */
-	public boolean canWeSendFile() {
-
-		if (filesToSend.size() < 5)
-			return true;
+	public File resolveWithinTLD(String input) {
 
-		return false;
+		try {
+			Path real = new File(input).toPath().toRealPath();
+			if (real.startsWith(TLD.toPath().toRealPath()))
+				return real.toFile();
+		} catch (IOException e) {
+			// Does not exist, or cannot be resolved.
+		} catch (InvalidPathException e) {
+			// Not a path on this platform.
+		}
+		return null;
 
 	}
 
 	/**
-	 * Adds passed-in file to queue of files to be sent.
+	 * Checks if passed-in file is one of PC Server's own files, such as the key
+	 * file, which must never be sent.
 	 * 
 	 * @param f
-	 *            File to be added to queue of files to be sent.
+	 *            File to check.
+	 * @return Boolean True if f is one of PC Server's own files; False if not.
 	 */
-	public void addFileToQueue(File f) {
+	public static boolean isKeyFile(File f) {
 
-		// If we cannot send the file, notify the user that the queue is full and to try
-		// again soon.
-		if (!canWeSendFile()) {
-			String cannotSendFile = "Queue is full. Please try again soon.";
-			CloudToothMessage message = new CloudToothMessage(CloudToothMessage.TEXT, cannotSendFile);
+		// Compare real paths, so "..", "." and links cannot disguise a key file.
+		File real;
+		try {
+			real = f.getCanonicalFile();
+		} catch (IOException e) {
+			return true; // Cannot tell, so never send it.
+		}
+		for (File keyFile : KEY_FILES) {
 			try {
-				objectOutputStream.writeObject(message);
-				objectOutputStream.flush();
+				if (real.equals(keyFile.getCanonicalFile()))
+					return true;
 			} catch (IOException e) {
-				System.out.println("Error sending unrecognized protocol: " + e);
-				logger.info("Error sending unrecognized protocol: " + e);
+				if (real.equals(keyFile.getAbsoluteFile()))
+					return true;
 			}
 		}
+		return false;
 
-		filesToSend.add(f); // Add file to queue.
+	}
+
+	/**
+	 * Checks if passed-in path may be sent to the Android Server.
+	 * 
+	 * @param input
+	 *            String storing path as requested by the user.
+	 * @return Boolean True if the file exists within TLD and is not one of PC
+	 *         Server's own files; False if not.
+	 */
+	public boolean isRequestableFile(String input) {
+
+		return resolveRequestableFile(input) != null;
 
 	}
 
 	/**
-	 * PC Server responds to protocol input.
+	 * Resolves passed-in path to the file it really names, if it may be sent to
+	 * the Android Server. Callers open the file by the path returned rather than
+	 * the path requested, so a link swapped in after the check is not followed
+	 * out of TLD.
 	 * 
 	 * @param input
-	 *            String storing user input.
+	 *            String storing path as requested by the user.
+	 * @return File storing real path of the file, or null if it does not exist
+	 *         within TLD or is one of PC Server's own files.
 	 */
-	public void respond(String input) {
+	public File resolveRequestableFile(String input) {
 
-		if (input == null || input.equals("") || input.equals("\n"))
-			return;
+		File real = resolveWithinTLD(input);
+		if (real == null || isKeyFile(real))
+			return null;
+		return real;
 
-		// Appropriately close program.
-		if (input.equals(EXIT_CONNECTION)) {
-			System.out.println("Changing state to terminated...");
-			currentState = TERMINATED;
-			return;
-		}
+	}
 
-		// Send list of all files underneath TLD hierarchy.
-		if (input.equals(SEND_FILE_NAMES)) {
-			System.out.println("Sending a list of files...");
-			ArrayList<String> fileNames = getAllFileNames(TLD);
-			CloudToothMessage message = new CloudToothMessage(CloudToothMessage.FILE_LISTING, fileNames);
-			try {
-				objectOutputStream.writeObject(message);
-				objectOutputStream.flush();
-			} catch (IOException e) {
-				System.out.println("Error writing CloudToothMessage to object output stream: " + e);
-				logger.info("Error writing CloudToothMessage to object output stream: " + e);
-			}
-		} else { // Add the file to the queue of files to be sent.
-			System.out.println(input);
-			File f = new File(input);
-			File f1 = new File("Files\\KEY_FILE.txt");
-			File f2 = new File("Files\\ENCRYPTED_TLD.txt");
-			File f3 = new File("Files\\\\ENCRYPTED_UDA.txt");
-			// If f is a file and is within the TLD hierarchy, send it, unless it is File
-			// f1, f2, or f3.
-			if (f.exists() && isFileWithinTLD(input) && !f.getName().equals(f1.getAbsolutePath())
-					&& !f.getName().equals(f2.getAbsolutePath()) && !f.getName().equals(f3.getAbsolutePath())) {
-				System.out.println("File request recognized");
-				try {
-					fis = new FileInputStream(f);
-					int chunk_size = 4096;
-					byte[] chunk = new byte[chunk_size]; // 2 KB
-					// send first chunk
-					int bytesRead = fis.read(chunk);
-					if (bytesRead == -1)
-						return;
-					String fileName = input;
-					long fileSize = f.length();
-
-					byte[] allBytes = Files.readAllBytes(f.toPath());
-
-					CloudToothMessage fileMessage = new CloudToothMessage(CloudToothMessage.FILE_BEGIN, fileName,
-							allBytes, fileSize);
-					objectOutputStream.writeObject(fileMessage);
-					objectOutputStream.flush();
-
-					// send end of file message
-					fileMessage = new CloudToothMessage(CloudToothMessage.FILE_END, fileName, new byte[1], fileSize);
-					objectOutputStream.writeObject(fileMessage);
-					objectOutputStream.flush();
-				} catch (IOException e) {
-					System.out.println("Error getting file bytes: " + e);
-					logger.info("Error getting file bytes: " + e);
-				} catch (Exception e) {
-					System.out.println("Error sending file bytes: " + e);
-					logger.info("Error sending file bytes: " + e);
-				}
-				System.out.println("Changing state to connected state...");
-				currentState = CONNECTED_STATE; // Update current state.
-			} else { // Else, send "unrecognized protocol."
-				byte[] unrecognizedBytes = new String("Unrecognized protocol").getBytes();
-				try {
-					outputStream.write(unrecognizedBytes);
-					outputStream.flush();
-				} catch (IOException e) {
-					System.out.println(
-							"Error sending unrecognized protocol : " + e + "\nChanging state to connected state...");
-					logger.info("Error sending unrecognized protocol: " + e);
-					currentState = CONNECTED_STATE; // Update current state.
-				}
-			}
-		}
+	/**
+	 * Runs passed-in task on the same executor as sessions.
+	 * 
+	 * @param task
+	 *            Runnable to run.
+	 * @return Future<?> which can be used to cancel the task.
+	 */
+	public Future<?> submit(Runnable task) {
+
+		return sessionExecutor.submit(task);
 
 	}
 
-	public byte[] copyByteArray(byte[] chunk, int bytesRead) {
-		byte[] copy = new byte[bytesRead];
-		for (int i = 0; i < bytesRead; i++) {
-			copy[i] = chunk[i];
-		}
-		return copy;
+	/**
+	 * Records that passed-in session has started, moving PC Server to connected
+	 * state.
+	 * 
+	 * @param session
+	 *            ClientSession which has started.
+	 */
+	private synchronized void sessionStarted(ClientSession session) {
+
+		sessions.add(session);
+		ServerLog.console("Changing state to connected state...");
+		state.transition(ConnectionState.CONNECTED); // Update current state of PC Server.
+
 	}
 
 	/**
-	 * Starts PC Server object.
+	 * Records that passed-in session has ended, freeing its slot. PC Server moves
+	 * to terminated state once no sessions are left.
+	 * 
+	 * @param session
+	 *            ClientSession which has ended.
 	 */
-	public void begin() {
+	public synchronized void sessionEnded(ClientSession session) {
 
-		// Set up error logging.
-		try {
-			fh = new FileHandler("Logs\\PCServer.log");
-			logger.addHandler(fh);
-			logger.setUseParentHandlers(false);
-			sf = new SimpleFormatter();
-			fh.setFormatter(sf);
-			logger.info("PCServer log started.");
-		} catch (IOException e) {
-			System.out.println("Error starting error logging: " + e);
-		}
+		if (!sessions.remove(session))
+			return;
+		sessionSlots.release();
+		ServerLog.console("Session %d ended; %d sessions left", session.getId(), sessions.size());
+		if (sessions.isEmpty())
+			state.transition(ConnectionState.TERMINATED);
 
-		UUID uuid = new UUID("1101", true); // Create a UUID for PC Server.
-		String connectionString = "btspp://localhost:" + uuid + ";name=PC Server"; // Create the service URL.
-		StreamConnectionNotifier streamNotifier = null;
-		StreamConnection connection = null;
-		try {
-			// Open server URL.
-			streamNotifier = (StreamConnectionNotifier) Connector.open(connectionString);
-			// Wait for connection from Android Server.
-			System.out.println("PC Server started. Waiting for Android Server to connect...");
-			connection = streamNotifier.acceptAndOpen();
-		} catch (IOException e) {
-			System.out.println("Error opening connection: " + e);
-			logger.info("Error opening connection: " + e);
-		}
+	}
 
-		// Make sure current connected device is the one we expected. If not, terminate
-		// connection.
-		String currentUDA = "";
-		try {
-			currentUDA = RemoteDevice.getRemoteDevice(connection).getBluetoothAddress();
-		} catch (IOException e) {
-			System.out.println("Error getting UDA: " + e);
-			logger.info("Error getting UDA: " + e);
-		}
-		if (!currentUDA.equals(UDA)) {
-			System.out.println("Unrecognized device connected; changing state to terminated state...");
-			currentState = TERMINATED;
-		}
+	/**
+	 * Creates the executor sessions run on. On Java 21 and later every session gets
+	 * its own virtual thread; otherwise sessions run on pooled platform threads.
+	 * Either way, the number of sessions is bounded by sessionSlots.
+	 * 
+	 * @return ExecutorService to run sessions on.
+	 */
+	private static ExecutorService newSessionExecutor() {
 
-		// Store information of connected Android Server.
-		RemoteDevice androidServer = null;
 		try {
-			androidServer = RemoteDevice.getRemoteDevice(connection);
-		} catch (IOException e) {
-			System.out.println("Error creating local AndroidServer remote device: " + e);
-			logger.info("Error creating local AndroidServer remote device: " + e);
+			Method virtualThreadExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtualThreadExecutor.invoke(null);
+		} catch (Exception e) {
+			// Virtual threads are not available on this Java version.
 		}
-		System.out.println("Changing state to connected state...");
-		currentState = CONNECTED_STATE; // Update current state of PC Server.
+		return Executors.newCachedThreadPool();
 
-		// Print out Android Server's Bluetooth Address and Device Name.
-		System.out.println("Android Server Bluetooth Address: " + androidServer.getBluetoothAddress());
+	}
 
-		// Set output stream and writer.
+	/**
+	 * Sets up error logging, once per run of the program.
+	 */
+	private static synchronized void setUpLogging() {
+
+		if (loggingSetUp)
+			return;
+		loggingSetUp = true;
 		try {
-			outputStream = connection.openOutputStream();
-			pWriter = new PrintWriter(new OutputStreamWriter(outputStream));
-			objectOutputStream = new ObjectOutputStream(outputStream);
+			ServerLog.addFileHandler(logger, "PCServer");
+			logger.info("PCServer log started.");
 		} catch (IOException e) {
-			System.out.println("Error readying object output stream: " + e);
-			logger.info("Error readying object output stream: " + e);
+			logger.warning("Error starting error logging: " + e);
 		}
 
-		// Send initial hello.
-		String message = "Send back 'ls' for a listing of all files. Send back the file name to receive the file. Send back 'exit' to end connection\n";
-		CloudToothMessage helloMessage = new CloudToothMessage(CloudToothMessage.TEXT, message);
+	}
+
+	/**
+	 * Starts PC Server object, accepting connections from Android Servers until the
+	 * server connection fails. Every connection is served by its own ClientSession,
+	 * so several Android Servers can be served at once.
+	 * 
+	 * @return Boolean storing true if the server connection was opened, false if
+	 *         it could not be.
+	 */
+	public boolean begin() {
+
+		setUpLogging(); // Set up error logging.
+
 		try {
-			objectOutputStream.writeObject(helloMessage);
-			objectOutputStream.flush();
+			// Start listening.
+			transport.open();
 		} catch (IOException e) {
-			System.out.println("Error writing hello message to Android Server: " + e);
-			logger.info("Error writing hello message to Android Server: " + e);
+			ServerLog.console("Error opening connection: %s", e);
+			logger.info("Error opening connection: " + e);
+			state.transition(ConnectionState.TERMINATED);
+			return false;
 		}
 
-		// Set input stream and writer.
 		try {
-			inputStream = connection.openInputStream();
-		} catch (IOException e) {
-			System.out.println("Error opening input stream from Android Server: " + e);
-			logger.info("Error opening input stream from Android Server: " + e);
-		}
-		bReader = new BufferedReader(new InputStreamReader(inputStream));
-		
-		try { // Store and sanitize input.
-			String input = "";
-			// Buffered reader will read in null when connection is disconnected from
-			// client's side.
-			while ((input = bReader.readLine()) != null && currentState == CONNECTED_STATE) {
-				System.out.println("Input: " + input);
-				respond(input); // Send to protocol method which handles input.
+			while (true) {
+				// Wait for a free session slot, then for connection from Android Server.
+				sessionSlots.acquire();
+				ServerLog.console("PC Server started. Waiting for Android Server to connect...");
+				logger.info("Waiting for Android Server to connect");
+				TransportConnection connection;
+				try {
+					connection = transport.accept();
+				} catch (IOException e) {
+					sessionSlots.release();
+					throw e;
+				}
+
+				// Make sure current connected device is the one we expected.
+				String currentUDA = "";
+				try {
+					currentUDA = peerAddresses.getPeerAddress(connection);
+				} catch (IOException e) {
+					ServerLog.console("Error getting UDA: " + e);
+					logger.info("Error getting UDA: " + e);
+				}
+				boolean recognized = currentUDA.equals(UDA);
+				metrics.connectionAccepted(recognized);
+				if (!recognized) {
+					ServerLog.console("Unrecognized device connected: %s", currentUDA);
+					if (!transport.acceptsUnrecognizedPeer(currentUDA)) {
+						logger.info("Rejected unrecognized device: " + currentUDA);
+						try {
+							connection.close();
+						} catch (IOException e) {
+							logger.info("Error closing rejected connection: " + e);
+						}
+						sessionSlots.release();
+						continue;
+					}
+				}
+
+				// Print out Android Server's address.
+				ServerLog.console("Android Server Address: %s", currentUDA);
+
+				ClientSession session = new ClientSession(this, connection, currentUDA);
+				sessionStarted(session);
+				sessionExecutor.execute(session);
 			}
 		} catch (IOException e) {
-			System.out.println("Changing state to terminated...");
-			logger.info("No error: Ignore next error.");
-			currentState = TERMINATED;
-		} catch (Exception e) {
-			logger.info("Error reading and/or responding to input: " + e);
+			ServerLog.console("Error accepting connection: %s", e);
+			logger.info("Error accepting connection: " + e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 
 		// Closing statements.
-		pWriter.flush();
-		pWriter.close();
 		try {
-			streamNotifier.close();
+			transport.close();
 		} catch (IOException e) {
-			System.out.println("Error closing stream notifier connection: " + e);
+			ServerLog.console("Error closing stream notifier connection: %s", e);
 			logger.info("Error closing stream notifier connection: " + e);
 		}
-		System.out.println("Changing state to terminated...");
-		currentState = TERMINATED; // Update current state.
+		ServerLog.console("Changing state to terminated...");
+		logger.info("PC Server stopped");
+		state.transition(ConnectionState.TERMINATED); // Update current state.
+		return true;
 
 	}
 
@@ -0,0 +1,184 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a directory tree in parallel, with one fork/join task per directory.
+ * Directory listings are read with Files.newDirectoryStream, and idle workers
+ * steal pending directories from busy ones, so a cold scan uses every core the
+ * walker is allowed to use. Like the breadth-first walk it replaces, symbolic
+ * links to files and directories are followed, but every directory is only
+ * listed once, by its real path, so links pointing back up the tree do not
+ * make the walk loop forever.
+ */
+public class ParallelDirectoryWalker {
+
+	// System property capping the number of walker threads.
+	public static String PARALLELISM_PROPERTY = "droidtooth.walker.parallelism";
+
+	private ForkJoinPool pool; // Pool which runs the walk.
+
+	/**
+	 * Callback for everything found during a walk. Methods are called from
+	 * several walker threads at once and must be thread-safe.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Called for every directory, before its entries are listed.
+		 * 
+		 * @param dir
+		 *            Path storing directory about to be listed.
+		 */
+		void preVisitDirectory(Path dir);
+
+		/**
+		 * Called for every regular file.
+		 * 
+		 * @param file
+		 *            Path storing file found.
+		 */
+		void visitFile(Path file);
+
+	}
+
+	/**
+	 * Creates a walker using the parallelism level set by the
+	 * droidtooth.walker.parallelism property, or one thread per core by default.
+	 */
+	public ParallelDirectoryWalker() {
+
+		this(ServerConfig.getInt(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
+	}
+
+	/**
+	 * Creates a walker using at most passed-in number of threads.
+	 * 
+	 * @param parallelism
+	 *            Int storing maximum number of walker threads.
+	 */
+	public ParallelDirectoryWalker(int parallelism) {
+
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+
+	}
+
+	/**
+	 * Get all files underneath passed-in root, in the same form as
+	 * PCServer.getAllFileNames. Order is not guaranteed.
+	 * 
+	 * @param root
+	 *            File storing directory to walk.
+	 * @return ArrayList<String> storing all files underneath root.
+	 */
+	public ArrayList<String> getAllFileNames(File root) {
+
+		final ConcurrentLinkedQueue<String> found = new ConcurrentLinkedQueue<String>();
+		walk(root.getAbsoluteFile().toPath(), new Visitor() {
+
+			public void preVisitDirectory(Path dir) {
+			}
+
+			public void visitFile(Path file) {
+				found.add("\n" + file.toString());
+			}
+
+		});
+		return new ArrayList<String>(found);
+
+	}
+
+	/**
+	 * Walks everything underneath passed-in root, blocking until the walk is done.
+	 * 
+	 * @param root
+	 *            Path storing file or directory to walk.
+	 * @param visitor
+	 *            Visitor to be told about every directory and file found.
+	 */
+	public void walk(Path root, Visitor visitor) {
+
+		if (Files.isDirectory(root)) {
+			Set<Path> visited = ConcurrentHashMap.newKeySet();
+			pool.invoke(new WalkTask(root, visitor, visited));
+		}
+		else if (Files.isRegularFile(root))
+			visitor.visitFile(root);
+
+	}
+
+	/**
+	 * Stops the walker threads.
+	 */
+	public void shutdown() {
+
+		pool.shutdown();
+
+	}
+
+	/**
+	 * Lists a single directory, forking a new task for each subdirectory.
+	 */
+	private static class WalkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Path dir;
+		private Visitor visitor;
+		private Set<Path> visited; // Real paths of directories listed by the walk.
+
+		WalkTask(Path dir, Visitor visitor, Set<Path> visited) {
+
+			this.dir = dir;
+			this.visitor = visitor;
+			this.visited = visited;
+
+		}
+
+		protected void compute() {
+
+			try {
+				if (!visited.add(dir.toRealPath()))
+					return; // Already listed through another link, or a cycle.
+			} catch (IOException e) {
+				return; // Removed, or a broken link.
+			}
+			visitor.preVisitDirectory(dir);
+
+			ArrayList<WalkTask> subdirectories = new ArrayList<WalkTask>();
+			DirectoryStream<Path> stream = null;
+			try {
+				stream = Files.newDirectoryStream(dir);
+				for (Path entry : stream) {
+					if (Files.isDirectory(entry))
+						subdirectories.add(new WalkTask(entry, visitor, visited));
+					else if (Files.isRegularFile(entry))
+						visitor.visitFile(entry);
+				}
+			} catch (IOException e) {
+				// Unreadable directory; skip it like an empty one.
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+
+			invokeAll(subdirectories);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,20 @@
+import java.io.IOException;
+
+/**
+ * Looks up the address of the device on the other end of a connection, which
+ * PC Server compares against the registered UDA.
+ */
+public interface PeerAddressProvider {
+
+	/**
+	 * Looks up the address of the device on the other end of passed-in connection.
+	 * 
+	 * @param connection
+	 *            TransportConnection to look up.
+	 * @return String storing address of the connected device.
+	 * @throws IOException
+	 *             If the address cannot be looked up.
+	 */
+	String getPeerAddress(TransportConnection connection) throws IOException;
+
+}
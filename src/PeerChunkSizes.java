@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Chunk size each Android Server, by address, settled on in its last session,
+ * so its next session starts near the best value instead of relearning it.
+ * Sizes are saved to CHUNK_SIZES_FILE, one "size address" line per Android
+ * Server, whenever a session ends.
+ */
+public class PeerChunkSizes {
+
+	// Shares the PC Server log.
+	private static Logger logger = Logger.getLogger("PCServerLog");
+
+	// File the sizes are saved to.
+	public static String CHUNK_SIZES_FILE = ServerConfig.getString("droidtooth.chunk.file",
+			"Files" + File.separator + "CHUNK_SIZES.txt");
+
+	private File sizesFile; // File the sizes are saved to.
+	private Map<String, Integer> sizes = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Creates sizes saved to CHUNK_SIZES_FILE, loading what was saved before.
+	 */
+	public PeerChunkSizes() {
+
+		this(new File(CHUNK_SIZES_FILE));
+
+	}
+
+	/**
+	 * Creates sizes saved to passed-in file, loading what was saved before.
+	 * 
+	 * @param f
+	 *            File the sizes are saved to.
+	 */
+	public PeerChunkSizes(File f) {
+
+		sizesFile = f;
+		load();
+
+	}
+
+	/**
+	 * Get the chunk size passed-in Android Server last settled on.
+	 * 
+	 * @param address
+	 *            String storing address of the Android Server.
+	 * @return Int storing chunk size, or 0 if none is known.
+	 */
+	public int get(String address) {
+
+		Integer size = sizes.get(address);
+		return size == null ? 0 : size;
+
+	}
+
+	/**
+	 * Remembers the chunk size passed-in Android Server settled on, and saves
+	 * the sizes if it changed.
+	 * 
+	 * @param address
+	 *            String storing address of the Android Server.
+	 * @param size
+	 *            Int storing chunk size.
+	 */
+	public void put(String address, int size) {
+
+		if (address == null || address.equals(""))
+			return;
+		Integer old = sizes.put(address, size);
+		if (old == null || old != size)
+			save();
+
+	}
+
+	/**
+	 * Writes the sizes to a temporary file, then moves it over the sizes file.
+	 */
+	private synchronized void save() {
+
+		File temp = new File(sizesFile.getPath() + ".tmp");
+		BufferedWriter out = null;
+		try {
+			File dir = sizesFile.getAbsoluteFile().getParentFile();
+			if (dir != null)
+				dir.mkdirs();
+			out = new BufferedWriter(new FileWriter(temp));
+			for (Map.Entry<String, Integer> e : sizes.entrySet()) {
+				out.write(e.getValue() + "\t" + e.getKey());
+				out.newLine();
+			}
+			out.close();
+			out = null;
+			Files.move(temp.toPath(), sizesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.info("Error saving chunk sizes: " + e);
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				logger.info("Error closing chunk sizes: " + e);
+			}
+		}
+
+	}
+
+	/**
+	 * Reads the sizes saved before, if any.
+	 */
+	private void load() {
+
+		if (!sizesFile.exists())
+			return;
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(sizesFile));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", 2);
+				if (parts.length < 2)
+					continue;
+				try {
+					sizes.put(parts[1], Integer.parseInt(parts[0]));
+				} catch (NumberFormatException e) {
+					// Skip malformed line.
+				}
+			}
+		} catch (IOException e) {
+			logger.info("Error loading chunk sizes: " + e);
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				logger.info("Error closing chunk sizes: " + e);
+			}
+		}
+
+	}
+
+}
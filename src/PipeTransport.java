@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implementation of Transport which connects clients inside the same JVM
+ * through in-memory pipes. Used to test and benchmark PC Server without any
+ * network or Bluetooth overhead.
+ */
+public class PipeTransport implements Transport {
+
+	// Size of the buffer of each direction of a connection (256 KB).
+	private static int PIPE_CAPACITY = 262144;
+
+	// Connections waiting to be accepted; CLOSED is queued when the transport
+	// closes so that a waiting accept returns.
+	private static Connection CLOSED = new Connection(null, null);
+	private LinkedBlockingQueue<Connection> pending = new LinkedBlockingQueue<Connection>();
+	private volatile boolean open;
+
+	/**
+	 * Starts accepting connections.
+	 */
+	public void open() {
+
+		pending.clear();
+		open = true;
+
+	}
+
+	/**
+	 * Connects a new client, as if from an Android Server.
+	 * 
+	 * @return TransportConnection storing the client's end of the connection.
+	 * @throws IOException
+	 *             If the transport is not open.
+	 */
+	public TransportConnection connect() throws IOException {
+
+		if (!open)
+			throw new IOException("Pipe transport is not open");
+		Pipe toServer = new Pipe(PIPE_CAPACITY);
+		Pipe toClient = new Pipe(PIPE_CAPACITY);
+		pending.add(new Connection(toServer, toClient));
+		return new Connection(toClient, toServer);
+
+	}
+
+	/**
+	 * Waits for the next client to connect.
+	 * 
+	 * @return TransportConnection storing the server's end of the connection.
+	 * @throws IOException
+	 *             If the transport is closed while waiting.
+	 */
+	public TransportConnection accept() throws IOException {
+
+		Connection next;
+		try {
+			next = pending.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while accepting");
+		}
+		if (next == CLOSED || !open)
+			throw new IOException("Pipe transport closed");
+		return next;
+
+	}
+
+	/**
+	 * Stops accepting connections.
+	 */
+	public void close() {
+
+		open = false;
+		pending.add(CLOSED);
+
+	}
+
+	/**
+	 * Pipes have no device addresses, so every connection reports the same
+	 * address.
+	 * 
+	 * @return PeerAddressProvider reporting "PIPE" for every connection.
+	 */
+	public PeerAddressProvider getDefaultPeerAddressProvider() {
+
+		return new FixedPeerAddressProvider("PIPE");
+
+	}
+
+	/**
+	 * Pipes can only be connected from inside the JVM, so every connection is
+	 * served.
+	 * 
+	 * @param peerAddress
+	 *            String storing address reported for the connection.
+	 * @return Boolean storing true.
+	 */
+	public boolean acceptsUnrecognizedPeer(String peerAddress) {
+
+		return true;
+
+	}
+
+	/**
+	 * One end of an in-memory connection.
+	 */
+	public static class Connection implements TransportConnection {
+
+		private Pipe in;
+		private Pipe out;
+
+		Connection(Pipe inPipe, Pipe outPipe) {
+
+			in = inPipe;
+			out = outPipe;
+
+		}
+
+		public InputStream openInputStream() {
+
+			return in.getInputStream();
+
+		}
+
+		public OutputStream openOutputStream() {
+
+			return out.getOutputStream();
+
+		}
+
+		public void close() {
+
+			in.closeReader();
+			out.closeWriter();
+
+		}
+
+	}
+
+	/**
+	 * Bounded in-memory byte pipe. Writers block while the pipe is full and
+	 * readers block while it is empty, from any number of threads.
+	 */
+	private static class Pipe {
+
+		private byte[] buffer;
+		private int readPosition; // Index of next byte to read.
+		private int count; // Number of unread bytes.
+		private boolean writerClosed;
+		private boolean readerClosed;
+
+		private ReentrantLock lock = new ReentrantLock();
+		private Condition notEmpty = lock.newCondition();
+		private Condition notFull = lock.newCondition();
+
+		Pipe(int capacity) {
+
+			buffer = new byte[capacity];
+
+		}
+
+		int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0)
+				return 0;
+			lock.lock();
+			try {
+				while (count == 0) {
+					if (writerClosed || readerClosed)
+						return -1;
+					notEmpty.await();
+				}
+				int n = Math.min(len, count);
+				int first = Math.min(n, buffer.length - readPosition);
+				System.arraycopy(buffer, readPosition, b, off, first);
+				System.arraycopy(buffer, 0, b, off + first, n - first);
+				readPosition = (readPosition + n) % buffer.length;
+				count -= n;
+				notFull.signalAll();
+				return n;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reading pipe");
+			} finally {
+				lock.unlock();
+			}
+
+		}
+
+		void write(byte[] b, int off, int len) throws IOException {
+
+			lock.lock();
+			try {
+				while (len > 0) {
+					if (readerClosed)
+						throw new IOException("Pipe closed by reader");
+					if (writerClosed)
+						throw new IOException("Pipe closed");
+					if (count == buffer.length) {
+						notFull.await();
+						continue;
+					}
+					int writePosition = (readPosition + count) % buffer.length;
+					int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePosition));
+					System.arraycopy(b, off, buffer, writePosition, n);
+					count += n;
+					off += n;
+					len -= n;
+					notEmpty.signalAll();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while writing pipe");
+			} finally {
+				lock.unlock();
+			}
+
+		}
+
+		void closeReader() {
+
+			lock.lock();
+			try {
+				readerClosed = true;
+				notFull.signalAll();
+				notEmpty.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+		}
+
+		void closeWriter() {
+
+			lock.lock();
+			try {
+				writerClosed = true;
+				notEmpty.signalAll();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+		}
+
+		InputStream getInputStream() {
+
+			return new InputStream() {
+
+				public int read() throws IOException {
+					byte[] one = new byte[1];
+					int n = Pipe.this.read(one, 0, 1);
+					return n == -1 ? -1 : one[0] & 0xff;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					return Pipe.this.read(b, off, len);
+				}
+
+				public void close() {
+					closeReader();
+				}
+
+			};
+
+		}
+
+		OutputStream getOutputStream() {
+
+			return new OutputStream() {
+
+				public void write(int b) throws IOException {
+					Pipe.this.write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					Pipe.this.write(b, off, len);
+				}
+
+				public void close() {
+					closeWriter();
+				}
+
+			};
+
+		}
+
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Weak checksum of a block of bytes which can be rolled forward one byte at a
+ * time, as used by rsync. Delta transfers use it to find blocks of the Android
+ * Server's old copy of a file at any position of the new file without hashing
+ * every position with a strong hash.
+ */
+public class RollingChecksum {
+
+	// Sum of the bytes in the window, and sum of the bytes each weighted by their
+	// distance from the end of the window.
+	private int a;
+	private int b;
+
+	private int length; // Length of the window.
+
+	/**
+	 * Computes the checksum of passed-in block.
+	 * 
+	 * @param buf
+	 *            Byte array storing the block.
+	 * @param off
+	 *            Int storing offset of the block.
+	 * @param len
+	 *            Int storing length of the block.
+	 * @return Int storing the checksum.
+	 */
+	public static int of(byte[] buf, int off, int len) {
+
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(buf, off, len);
+		return checksum.getValue();
+
+	}
+
+	/**
+	 * Starts a new window over passed-in block.
+	 * 
+	 * @param buf
+	 *            Byte array storing the block.
+	 * @param off
+	 *            Int storing offset of the block.
+	 * @param len
+	 *            Int storing length of the block.
+	 */
+	public void reset(byte[] buf, int off, int len) {
+
+		a = 0;
+		b = 0;
+		for (int i = off; i < off + len; i++) {
+			a += buf[i] & 0xFF;
+			b += a;
+		}
+		length = len;
+
+	}
+
+	/**
+	 * Moves the window forward by one byte.
+	 * 
+	 * @param out
+	 *            Byte leaving the window at its start.
+	 * @param in
+	 *            Byte entering the window at its end.
+	 */
+	public void roll(byte out, byte in) {
+
+		a += (in & 0xFF) - (out & 0xFF);
+		b += a - length * (out & 0xFF);
+
+	}
+
+	/**
+	 * Checksum of the current window.
+	 * 
+	 * @return Int storing both sums, modulo 2^16, with the weighted sum in the
+	 *         upper half.
+	 */
+	public int getValue() {
+
+		return (a & 0xFFFF) | (b << 16);
+
+	}
+
+}
@@ -1,60 +1,48 @@
-import java.io.File;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.Files;
-
 /**
  * Implementation of runnable which separates the task of sending a file from
  * the rest of the program, making it asynchronous. This allows the user to
  * perform other actions (such as queuing other files to be sent) while a file
  * transfer is ongoing. Multiple file transfers are not allowed to occur at the
- * same time. A maximum of 5 files can be queued to be sent.
+ * same time, and the number and total size of queued files are limited by
+ * FileTransferQueue. The thread waits on the queue while there is nothing to
+ * send.
  */
 public class SendFileRunnable implements Runnable {
 
-	private PCServer server; // Instance of PC Server.
-	private File cur; // Current file.
-	private byte[] fileBytes; // Bytes of cur to be sent.
-	private OutputStream outputStream; // Output stream to send out files.
+	private ClientSession session; // Session whose files are sent.
 
 	/**
-	 * Sets private parameter to passed-in PCServer object.
+	 * Sets private parameter to passed-in ClientSession object.
 	 * 
-	 * @param pc
-	 *            Current instance of PC Server.
+	 * @param clientSession
+	 *            Session whose queued files are sent.
 	 */
-	public SendFileRunnable(PCServer pc) {
+	public SendFileRunnable(ClientSession clientSession) {
 
-		server = pc;
+		session = clientSession;
 
 	}
 
 	/**
-	 * Sends the file to the connected Android Server device.
+	 * Sends queued files to the connected Android Server device until interrupted.
 	 */
 	public void run() {
 
-		outputStream = server.getOutputStream();
-
-		while (true) {
-			if (!server.getFilesToSend().isEmpty()) {
-				cur = server.getFilesToSend().remove();
-				try { // Get bytes of file to be sent.
-					fileBytes = Files.readAllBytes(cur.toPath());
-				} catch (IOException e) {
-					System.out.println("Error getting bytes of files to send");
-					continue;
-				}
-				try { // Send the bytes.
-					outputStream.write(fileBytes);
-					outputStream.flush();
-				} catch (Exception e) {
-					System.out.println("Error sending file bytes in asynchronous file transfer thread");
+		ServerLog.setContext("session " + session.getId());
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				FileTransferQueue.Entry cur;
+				try {
+					cur = session.getFilesToSend().take();
+				} catch (InterruptedException e) {
+					return;
 				}
-				System.out.println(fileBytes.length + " bytes sent");
+				session.sendQueuedFile(cur);
 			}
+		} finally {
+			ServerLog.setContext(null);
 		}
 
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,90 @@
+/**
+ * Settings which can be tuned per deployment. Each setting is read from a Java
+ * system property (for example -Ddroidtooth.walker.parallelism=2) and falls back
+ * to the passed-in default if the property is missing or invalid.
+ */
+public class ServerConfig {
+
+	/**
+	 * Reads an int setting.
+	 * 
+	 * @param name
+	 *            String storing name of the system property.
+	 * @param defaultValue
+	 *            Int storing value to use if the property is not set.
+	 * @return Int storing value of the setting.
+	 */
+	public static int getInt(String name, int defaultValue) {
+
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Ignoring invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+
+	}
+
+	/**
+	 * Reads a long setting.
+	 * 
+	 * @param name
+	 *            String storing name of the system property.
+	 * @param defaultValue
+	 *            Long storing value to use if the property is not set.
+	 * @return Long storing value of the setting.
+	 */
+	public static long getLong(String name, long defaultValue) {
+
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Ignoring invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+
+	}
+
+	/**
+	 * Reads a boolean setting.
+	 * 
+	 * @param name
+	 *            String storing name of the system property.
+	 * @param defaultValue
+	 *            Boolean storing value to use if the property is not set.
+	 * @return Boolean storing value of the setting.
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue) {
+
+		String value = System.getProperty(name);
+		if (value == null)
+			return defaultValue;
+		return Boolean.parseBoolean(value.trim());
+
+	}
+
+	/**
+	 * Reads a String setting.
+	 * 
+	 * @param name
+	 *            String storing name of the system property.
+	 * @param defaultValue
+	 *            String storing value to use if the property is not set.
+	 * @return String storing value of the setting.
+	 */
+	public static String getString(String name, String defaultValue) {
+
+		String value = System.getProperty(name);
+		if (value == null || value.trim().equals(""))
+			return defaultValue;
+		return value.trim();
+
+	}
+
+}
@@ -0,0 +1,117 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Sets up logging for PC Server and keeps console output off the request path.
+ * Logs are written to droidtooth.log.dir (default "Logs"), asynchronously
+ * through an AsyncLogHandler unless droidtooth.log.async is false. Progress
+ * messages about individual requests are only echoed to the console if
+ * droidtooth.log.console is true.
+ * 
+ * Every thread can set a context, such as the session and request it is
+ * serving, which is prefixed to the messages it logs.
+ */
+public class ServerLog {
+
+	// Directory logs are written to.
+	public static String LOG_DIR = ServerConfig.getString("droidtooth.log.dir", "Logs");
+
+	// True to write logs from a background thread.
+	private static boolean ASYNC = ServerConfig.getBoolean("droidtooth.log.async", true);
+
+	// Number of records buffered for the background thread.
+	private static int BUFFER_SIZE = ServerConfig.getInt("droidtooth.log.bufferSize", 8192);
+
+	// True to echo progress messages to the console.
+	private static boolean CONSOLE_ECHO = ServerConfig.getBoolean("droidtooth.log.console", false);
+
+	// Context of the messages logged by each thread.
+	private static ThreadLocal<String> context = new ThreadLocal<String>();
+
+	/**
+	 * Sends everything passed-in logger logs to a file named after passed-in name
+	 * in the log directory, instead of the console.
+	 * 
+	 * @param logger
+	 *            Logger to set up.
+	 * @param name
+	 *            String storing name of the log file, without extension.
+	 * @throws IOException
+	 *             If the log file cannot be opened.
+	 */
+	public static void addFileHandler(Logger logger, String name) throws IOException {
+
+		new File(LOG_DIR).mkdirs();
+		// FileHandler patterns always use '/', whatever the platform.
+		FileHandler fileHandler = new FileHandler(LOG_DIR.replace(File.separatorChar, '/') + "/" + name + ".log");
+		fileHandler.setFormatter(new SimpleFormatter());
+		Handler handler = ASYNC ? new AsyncLogHandler(fileHandler, BUFFER_SIZE) : fileHandler;
+		logger.addHandler(handler);
+		logger.setUseParentHandlers(false);
+
+	}
+
+	/**
+	 * Echoes passed-in progress message to the console, if enabled.
+	 * 
+	 * @param message
+	 *            String storing message to echo.
+	 */
+	public static void console(String message) {
+
+		if (CONSOLE_ECHO)
+			System.out.println(message);
+
+	}
+
+	/**
+	 * Echoes a progress message to the console, if enabled. The message is only
+	 * built from passed-in format and arguments, as by String.format, once it is
+	 * known to be echoed, so messages about every request cost nothing when the
+	 * echo is off.
+	 * 
+	 * @param format
+	 *            String storing format of the message.
+	 * @param args
+	 *            Objects storing arguments referenced by the format.
+	 */
+	public static void console(String format, Object... args) {
+
+		if (CONSOLE_ECHO)
+			System.out.println(String.format(format, args));
+
+	}
+
+	/**
+	 * Sets the context of messages logged by the current thread.
+	 * 
+	 * @param current
+	 *            String storing context, such as "session 3 #12", or null for
+	 *            none.
+	 */
+	public static void setContext(String current) {
+
+		if (current == null)
+			context.remove();
+		else
+			context.set(current);
+
+	}
+
+	/**
+	 * Getter method for the context of the current thread.
+	 * 
+	 * @return String storing context of messages logged by the current thread, or
+	 *         null if none.
+	 */
+	public static String getContext() {
+
+		return context.get();
+
+	}
+
+}
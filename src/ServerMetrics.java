@@ -0,0 +1,327 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latencies of one PC Server, exposed through JMX as a
+ * ServerMetricsMBean and optionally logged as a snapshot at a fixed interval.
+ * Counters are updated by sessions as they work; gauges such as queue depth
+ * are read from PC Server only when asked for.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	// Shares the PC Server log.
+	private static Logger logger = Logger.getLogger("PCServerLog");
+
+	// Name the metrics are registered under.
+	public static String OBJECT_NAME = "droidtooth:type=ServerMetrics";
+
+	// Seconds between snapshots written to the log, or 0 to never log them.
+	private static long LOG_INTERVAL = ServerConfig.getLong("droidtooth.metrics.logInterval", 0);
+
+	private PCServer server; // PC Server whose metrics these are.
+	private long startedAt = System.nanoTime(); // When PC Server started.
+
+	private AtomicLong connectionsAccepted = new AtomicLong();
+	private AtomicLong unrecognizedDevices = new AtomicLong();
+	private AtomicLong bytesSent = new AtomicLong();
+	private AtomicLong transfersCompleted = new AtomicLong();
+
+	// Time queued files waited, and latency of every command by name.
+	private LatencyHistogram queueWait = new LatencyHistogram();
+	private ConcurrentSkipListMap<String, LatencyHistogram> commandLatencies =
+			new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+	private ScheduledExecutorService snapshotLogger; // Logs snapshots, if enabled.
+
+	/**
+	 * Creates metrics of passed-in PC Server, all starting at zero.
+	 * 
+	 * @param pc
+	 *            PCServer whose metrics these are.
+	 */
+	public ServerMetrics(PCServer pc) {
+
+		server = pc;
+
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, replacing any
+	 * metrics registered by an earlier PC Server, and starts logging snapshots if
+	 * droidtooth.metrics.logInterval is set.
+	 */
+	public void start() {
+
+		try {
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (mbeans.isRegistered(name))
+				mbeans.unregisterMBean(name);
+			mbeans.registerMBean(this, name);
+		} catch (Exception e) {
+			System.out.println("Error registering server metrics: " + e);
+			logger.info("Error registering server metrics: " + e);
+		}
+
+		if (LOG_INTERVAL > 0 && snapshotLogger == null) {
+			snapshotLogger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ServerMetricsLog");
+					t.setDaemon(true);
+					return t;
+				}
+
+			});
+			snapshotLogger.scheduleAtFixedRate(new Runnable() {
+
+				public void run() {
+					logger.info(snapshot());
+				}
+
+			}, LOG_INTERVAL, LOG_INTERVAL, TimeUnit.SECONDS);
+		}
+
+	}
+
+	/**
+	 * Records that a connection was accepted.
+	 * 
+	 * @param recognized
+	 *            Boolean storing true if the device's address matched UDA.
+	 */
+	public void connectionAccepted(boolean recognized) {
+
+		connectionsAccepted.incrementAndGet();
+		if (!recognized)
+			unrecognizedDevices.incrementAndGet();
+
+	}
+
+	/**
+	 * Records file bytes sent by any session.
+	 * 
+	 * @param n
+	 *            Long storing number of bytes sent.
+	 */
+	public void bytesSent(long n) {
+
+		bytesSent.addAndGet(n);
+
+	}
+
+	/**
+	 * Records that a transfer was completed.
+	 */
+	public void transferCompleted() {
+
+		transfersCompleted.incrementAndGet();
+
+	}
+
+	/**
+	 * Records how long a queued file waited before being sent.
+	 * 
+	 * @param queuedAt
+	 *            Long storing System.nanoTime when the file was queued.
+	 */
+	public void queueWaited(long queuedAt) {
+
+		queueWait.recordSince(queuedAt);
+
+	}
+
+	/**
+	 * Records the latency of one command.
+	 * 
+	 * @param command
+	 *            String storing name of the command.
+	 * @param startNanos
+	 *            Long storing System.nanoTime when the command was received.
+	 */
+	public void commandCompleted(String command, long startNanos) {
+
+		LatencyHistogram latencies = commandLatencies.get(command);
+		if (latencies == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			latencies = commandLatencies.putIfAbsent(command, created);
+			if (latencies == null)
+				latencies = created;
+		}
+		latencies.recordSince(startNanos);
+
+	}
+
+	public long getUptimeSeconds() {
+
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt);
+
+	}
+
+	public long getConnectionsAccepted() {
+
+		return connectionsAccepted.get();
+
+	}
+
+	public long getUnrecognizedDevices() {
+
+		return unrecognizedDevices.get();
+
+	}
+
+	public int getActiveSessions() {
+
+		return server.getSessions().size();
+
+	}
+
+	public long getBytesSent() {
+
+		return bytesSent.get();
+
+	}
+
+	public double getBytesPerSecond() {
+
+		return rate(bytesSent.get(), startedAt);
+
+	}
+
+	public long getTransfersCompleted() {
+
+		return transfersCompleted.get();
+
+	}
+
+	public int getQueuedFiles() {
+
+		int queued = 0;
+		for (ClientSession session : server.getSessions()) {
+			queued += session.getFilesToSend().size();
+		}
+		return queued;
+
+	}
+
+	public long getQueuedBytes() {
+
+		long queued = 0;
+		for (ClientSession session : server.getSessions()) {
+			queued += session.getFilesToSend().getQueuedBytes();
+		}
+		return queued;
+
+	}
+
+	public String getQueueWait() {
+
+		return queueWait.toString();
+
+	}
+
+	public String[] getCommandLatencies() {
+
+		ArrayList<String> summaries = new ArrayList<String>();
+		for (Map.Entry<String, LatencyHistogram> command : commandLatencies.entrySet()) {
+			summaries.add(command.getKey() + ": " + command.getValue());
+		}
+		return summaries.toArray(new String[summaries.size()]);
+
+	}
+
+	public String[] getSessions() {
+
+		ArrayList<String> summaries = new ArrayList<String>();
+		for (ClientSession session : server.getSessions()) {
+			summaries.add(String.format("session %d (%s): %d bytes sent, %.0f bytes/s, %d queued", session.getId(),
+					session.getPeerAddress(), session.getBytesSent(),
+					rate(session.getBytesSent(), session.getStartedAt()), session.getFilesToSend().size()));
+		}
+		return summaries.toArray(new String[summaries.size()]);
+
+	}
+
+	public long getLastCatalogScanMillis() {
+
+		return server.getCatalog() == null ? 0 : server.getCatalog().getLastScanDuration();
+
+	}
+
+	public int getLastCatalogScanFiles() {
+
+		return server.getCatalog() == null ? 0 : server.getCatalog().getLastScanFiles();
+
+	}
+
+	public long getContentCacheHits() {
+
+		return server.getContentCache() == null ? 0 : server.getContentCache().getHits();
+
+	}
+
+	public long getContentCacheMisses() {
+
+		return server.getContentCache() == null ? 0 : server.getContentCache().getMisses();
+
+	}
+
+	public long getContentCacheBytes() {
+
+		return server.getContentCache() == null ? 0 : server.getContentCache().getCachedBytes();
+
+	}
+
+	/**
+	 * Summarizes every metric on one line, as written to the log.
+	 * 
+	 * @return String storing snapshot of all metrics.
+	 */
+	public String snapshot() {
+
+		StringBuilder sb = new StringBuilder("Metrics: ");
+		sb.append(getActiveSessions()).append(" sessions, ");
+		sb.append(getConnectionsAccepted()).append(" accepted (");
+		sb.append(getUnrecognizedDevices()).append(" unrecognized), ");
+		sb.append(getBytesSent()).append(" bytes sent (");
+		sb.append(String.format("%.0f", getBytesPerSecond())).append(" bytes/s), ");
+		sb.append(getTransfersCompleted()).append(" transfers, ");
+		sb.append(getQueuedFiles()).append(" files queued, queue wait ").append(getQueueWait());
+		sb.append(", last catalog scan ").append(getLastCatalogScanMillis()).append(" ms");
+		sb.append(", content cache ").append(getContentCacheHits()).append(" hits, ");
+		sb.append(getContentCacheMisses()).append(" misses, ").append(getContentCacheBytes()).append(" bytes");
+		for (String command : getCommandLatencies()) {
+			sb.append("; ").append(command);
+		}
+		return sb.toString();
+
+	}
+
+	/**
+	 * Average rate of passed-in number of bytes since passed-in time.
+	 * 
+	 * @param bytes
+	 *            Long storing number of bytes.
+	 * @param since
+	 *            Long storing System.nanoTime the bytes were counted from.
+	 * @return Double storing bytes per second.
+	 */
+	private static double rate(long bytes, long since) {
+
+		long elapsed = System.nanoTime() - since;
+		return elapsed <= 0 ? 0 : bytes * 1e9 / elapsed;
+
+	}
+
+}
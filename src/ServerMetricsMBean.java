@@ -0,0 +1,128 @@
+/**
+ * Management interface of ServerMetrics, as seen through JMX under
+ * ServerMetrics.OBJECT_NAME. Latencies are summarized as text so they can be
+ * read from any JMX console.
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * Time since PC Server started.
+	 * 
+	 * @return Long storing seconds since PC Server started.
+	 */
+	long getUptimeSeconds();
+
+	/**
+	 * Connections accepted from Android Servers.
+	 * 
+	 * @return Long storing number of connections accepted.
+	 */
+	long getConnectionsAccepted();
+
+	/**
+	 * Connections from devices whose address did not match UDA.
+	 * 
+	 * @return Long storing number of connections from devices other than UDA.
+	 */
+	long getUnrecognizedDevices();
+
+	/**
+	 * Sessions currently being served.
+	 * 
+	 * @return Int storing number of sessions being served.
+	 */
+	int getActiveSessions();
+
+	/**
+	 * File bytes sent to all Android Servers.
+	 * 
+	 * @return Long storing number of file bytes sent to all Android Servers.
+	 */
+	long getBytesSent();
+
+	/**
+	 * Average rate at which file bytes are sent.
+	 * 
+	 * @return Double storing file bytes sent per second, averaged since PC
+	 *         Server started.
+	 */
+	double getBytesPerSecond();
+
+	/**
+	 * Transfers completed by all sessions.
+	 * 
+	 * @return Long storing number of files, ranges, deltas and archives sent.
+	 */
+	long getTransfersCompleted();
+
+	/**
+	 * Files currently queued by all sessions.
+	 * 
+	 * @return Int storing number of files queued across all sessions.
+	 */
+	int getQueuedFiles();
+
+	/**
+	 * Bytes currently queued by all sessions.
+	 * 
+	 * @return Long storing number of bytes queued across all sessions.
+	 */
+	long getQueuedBytes();
+
+	/**
+	 * Time queued files waited before being sent.
+	 * 
+	 * @return String storing summary of how long queued files waited to be sent.
+	 */
+	String getQueueWait();
+
+	/**
+	 * Latency of every command seen, from request until its response was sent.
+	 * 
+	 * @return String array storing latency summary of every command seen.
+	 */
+	String[] getCommandLatencies();
+
+	/**
+	 * Bytes sent by every session being served.
+	 * 
+	 * @return String array storing bytes sent and rate of every session.
+	 */
+	String[] getSessions();
+
+	/**
+	 * Duration of the last full scan of TLD.
+	 * 
+	 * @return Long storing milliseconds the last full catalog scan took.
+	 */
+	long getLastCatalogScanMillis();
+
+	/**
+	 * Files found by the last full scan of TLD.
+	 * 
+	 * @return Int storing number of files found by the last full catalog scan.
+	 */
+	int getLastCatalogScanFiles();
+
+	/**
+	 * Files sent from the content cache rather than read from disk.
+	 * 
+	 * @return Long storing number of content cache hits.
+	 */
+	long getContentCacheHits();
+
+	/**
+	 * Files small enough to be cached which had to be read from disk.
+	 * 
+	 * @return Long storing number of content cache misses.
+	 */
+	long getContentCacheMisses();
+
+	/**
+	 * Memory held by the content cache.
+	 * 
+	 * @return Long storing bytes of file contents currently cached.
+	 */
+	long getContentCacheBytes();
+
+}
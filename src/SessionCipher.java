@@ -0,0 +1,268 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key of an encrypted session, agreed once per connection with ECDH on P-256
+ * and expanded with HKDF-SHA256 into an AES-256 key and a nonce prefix for
+ * each direction, under different labels, so frames sent by PC Server and
+ * frames sent by the Android Server never share a key and nonce. Frames are
+ * sealed one at a time with AES-GCM, each under a fresh 12-byte nonce made of
+ * the sending direction's nonce prefix and a sequence number sent in front of
+ * the ciphertext.
+ * Sequence numbers count up from 0 in the order frames are written, and the
+ * receiver rejects any frame which is not the next one, so frames cannot be
+ * replayed, dropped or reordered. The whole frame header (version, type,
+ * flags, stream id and length) is authenticated along with the payload.
+ * 
+ * Cipher instances are not thread-safe, so the FrameWriter and FrameDecoder of
+ * a connection each keep their own, created once with newCipher and
+ * reinitialized for every frame. The JVM runs AES and
+ * GHASH through AES-NI and carry-less multiply instructions where available.
+ */
+public class SessionCipher {
+
+	// Algorithms used to agree on, derive, and use the session key.
+	public static String KEY_ALGORITHM = "EC";
+	public static String CURVE = "secp256r1";
+	public static String KEY_AGREEMENT = "ECDH";
+	public static String KDF_MAC = "HmacSHA256";
+	public static String TRANSFORMATION = "AES/GCM/NoPadding";
+
+	// Context mixed into the key of each direction, so neither is reused elsewhere.
+	private static byte[] SERVER_TO_CLIENT = "droidtooth session v1 server to client".getBytes();
+	private static byte[] CLIENT_TO_SERVER = "droidtooth session v1 client to server".getBytes();
+
+	// Sizes of the AES key, nonce, sequence number and authentication tag.
+	public static int KEY_LENGTH = 32;
+	public static int NONCE_PREFIX_LENGTH = 4;
+	public static int SEQUENCE_LENGTH = 8;
+	public static int TAG_LENGTH = 16;
+
+	// Bytes a sealed payload adds to the plaintext.
+	public static int OVERHEAD = SEQUENCE_LENGTH + TAG_LENGTH;
+
+	// AES key and first bytes of every nonce of the frames this side sends, and of
+	// the frames it receives.
+	private SecretKeySpec sendKey;
+	private byte[] sendNoncePrefix;
+	private SecretKeySpec receiveKey;
+	private byte[] receiveNoncePrefix;
+	private AtomicLong nextSequence = new AtomicLong(); // Last bytes of the next nonce sent.
+
+	/**
+	 * Generates a key pair for one key agreement.
+	 * 
+	 * @return KeyPair storing a new P-256 key pair.
+	 * @throws GeneralSecurityException
+	 *             If P-256 is not supported.
+	 */
+	public static KeyPair generateKeyPair() throws GeneralSecurityException {
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+		generator.initialize(new ECGenParameterSpec(CURVE));
+		return generator.generateKeyPair();
+
+	}
+
+	/**
+	 * Agrees on the session keys with the peer. Both sides derive the same keys
+	 * from their own private key and the other side's public key, and each seals
+	 * with the key the other opens with.
+	 * 
+	 * @param ownKey
+	 *            PrivateKey storing this side's private key.
+	 * @param peerKey
+	 *            Byte array storing the peer's X.509 encoded public key.
+	 * @param server
+	 *            Boolean storing true on PC Server, false on the Android Server.
+	 * @throws GeneralSecurityException
+	 *             If the peer's key is malformed or not on P-256.
+	 */
+	public SessionCipher(PrivateKey ownKey, byte[] peerKey, boolean server) throws GeneralSecurityException {
+
+		PublicKey peer = KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(peerKey));
+		KeyAgreement agreement = KeyAgreement.getInstance(KEY_AGREEMENT);
+		agreement.init(ownKey);
+		agreement.doPhase(peer, true);
+		byte[] secret = agreement.generateSecret();
+
+		byte[] send = hkdf(secret, server ? SERVER_TO_CLIENT : CLIENT_TO_SERVER, KEY_LENGTH + NONCE_PREFIX_LENGTH);
+		byte[] receive = hkdf(secret, server ? CLIENT_TO_SERVER : SERVER_TO_CLIENT, KEY_LENGTH + NONCE_PREFIX_LENGTH);
+		sendKey = new SecretKeySpec(send, 0, KEY_LENGTH, "AES");
+		sendNoncePrefix = Arrays.copyOfRange(send, KEY_LENGTH, KEY_LENGTH + NONCE_PREFIX_LENGTH);
+		receiveKey = new SecretKeySpec(receive, 0, KEY_LENGTH, "AES");
+		receiveNoncePrefix = Arrays.copyOfRange(receive, KEY_LENGTH, KEY_LENGTH + NONCE_PREFIX_LENGTH);
+
+	}
+
+	/**
+	 * Creates a cipher to seal or open frames with. Each thread needs its own.
+	 * 
+	 * @return Cipher storing an uninitialized AES-GCM cipher.
+	 * @throws GeneralSecurityException
+	 *             If AES-GCM is not supported.
+	 */
+	public static Cipher newCipher() throws GeneralSecurityException {
+
+		return Cipher.getInstance(TRANSFORMATION);
+
+	}
+
+	/**
+	 * Seals passed-in body followed by passed-in trailer into output, which must
+	 * have room for their length plus OVERHEAD. Frames must be sealed in the order
+	 * they are written.
+	 * 
+	 * @param cipher
+	 *            Cipher of the caller, from newCipher.
+	 * @param header
+	 *            Byte array storing the header the frame is written with, its
+	 *            length already that of the sealed payload.
+	 * @param body
+	 *            Byte array storing the payload.
+	 * @param offset
+	 *            Int storing index of the first byte of the payload.
+	 * @param length
+	 *            Int storing length of the payload.
+	 * @param trailer
+	 *            Byte array storing bytes sealed after the payload, or null.
+	 * @param trailerLength
+	 *            Int storing number of trailer bytes.
+	 * @param output
+	 *            Byte array to write the sealed payload to.
+	 * @return Int storing length of the sealed payload.
+	 * @throws GeneralSecurityException
+	 *             If the payload cannot be sealed.
+	 */
+	public int seal(Cipher cipher, byte[] header, byte[] body, int offset, int length, byte[] trailer,
+			int trailerLength, byte[] output) throws GeneralSecurityException {
+
+		long sequence = nextSequence.getAndIncrement();
+		for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+			output[i] = (byte) (sequence >>> (56 - 8 * i));
+		}
+		cipher.init(Cipher.ENCRYPT_MODE, sendKey, nonce(sendNoncePrefix, output));
+		cipher.updateAAD(header, 0, WireProtocol.HEADER_SIZE);
+		int sealed = SEQUENCE_LENGTH + cipher.update(body, offset, length, output, SEQUENCE_LENGTH);
+		if (trailerLength > 0)
+			sealed += cipher.doFinal(trailer, 0, trailerLength, output, sealed);
+		else
+			sealed += cipher.doFinal(output, sealed);
+		return sealed;
+
+	}
+
+	/**
+	 * Opens a payload sealed by seal into output, which must have room for its
+	 * length less OVERHEAD. The caller checks the sequence number first.
+	 * 
+	 * @param cipher
+	 *            Cipher of the caller, from newCipher.
+	 * @param header
+	 *            Byte array storing the header the frame was read with.
+	 * @param input
+	 *            Byte array storing the sealed payload.
+	 * @param length
+	 *            Int storing length of the sealed payload.
+	 * @param output
+	 *            Byte array to write the plaintext to.
+	 * @return Int storing length of the plaintext.
+	 * @throws GeneralSecurityException
+	 *             If the payload was tampered with or sealed under another key.
+	 */
+	public int open(Cipher cipher, byte[] header, byte[] input, int length, byte[] output)
+			throws GeneralSecurityException {
+
+		cipher.init(Cipher.DECRYPT_MODE, receiveKey, nonce(receiveNoncePrefix, input));
+		cipher.updateAAD(header, 0, WireProtocol.HEADER_SIZE);
+		return cipher.doFinal(input, SEQUENCE_LENGTH, length - SEQUENCE_LENGTH, output, 0);
+
+	}
+
+	/**
+	 * Builds the nonce of the frame whose sequence number starts passed-in
+	 * sealed payload.
+	 * 
+	 * @param prefix
+	 *            Byte array storing nonce prefix of the frame's direction.
+	 * @param sealed
+	 *            Byte array storing the sealed payload.
+	 * @return GCMParameterSpec storing the nonce and tag length.
+	 */
+	private static GCMParameterSpec nonce(byte[] prefix, byte[] sealed) {
+
+		byte[] iv = new byte[NONCE_PREFIX_LENGTH + SEQUENCE_LENGTH];
+		System.arraycopy(prefix, 0, iv, 0, NONCE_PREFIX_LENGTH);
+		System.arraycopy(sealed, 0, iv, NONCE_PREFIX_LENGTH, SEQUENCE_LENGTH);
+		return new GCMParameterSpec(TAG_LENGTH * 8, iv);
+
+	}
+
+	/**
+	 * Decodes the sequence number at the start of a sealed payload.
+	 * 
+	 * @param sealed
+	 *            Byte array storing the sealed payload.
+	 * @return Long storing sequence number the payload was sealed under.
+	 */
+	public static long sequenceOf(byte[] sealed) {
+
+		long sequence = 0;
+		for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+			sequence = (sequence << 8) | (sealed[i] & 0xFF);
+		}
+		return sequence;
+
+	}
+
+	/**
+	 * Expands passed-in shared secret into passed-in number of key bytes with
+	 * HKDF-SHA256 (RFC 5869), using an empty salt.
+	 * 
+	 * @param secret
+	 *            Byte array storing the ECDH shared secret.
+	 * @param info
+	 *            Byte array storing the label of what the bytes are for.
+	 * @param length
+	 *            Int storing number of bytes to derive, at most 255 hashes.
+	 * @return Byte array storing the derived bytes.
+	 * @throws GeneralSecurityException
+	 *             If HMAC-SHA256 is not supported.
+	 */
+	private static byte[] hkdf(byte[] secret, byte[] info, int length) throws GeneralSecurityException {
+
+		Mac mac = Mac.getInstance(KDF_MAC);
+		mac.init(new SecretKeySpec(new byte[mac.getMacLength()], KDF_MAC));
+		byte[] pseudoRandomKey = mac.doFinal(secret);
+
+		mac.init(new SecretKeySpec(pseudoRandomKey, KDF_MAC));
+		byte[] derived = new byte[length];
+		byte[] block = new byte[0];
+		for (int i = 0, counter = 1; i < length; counter++) {
+			mac.update(block);
+			mac.update(info);
+			mac.update((byte) counter);
+			block = mac.doFinal();
+			int n = Math.min(block.length, length - i);
+			System.arraycopy(block, 0, derived, i, n);
+			i += n;
+		}
+		return derived;
+
+	}
+
+}
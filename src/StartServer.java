@@ -7,16 +7,14 @@ import java.io.IOException;
 import java.security.Key;
 import java.util.Base64;
 import java.util.Random;
-import java.util.logging.FileHandler;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 import javax.bluetooth.*;
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
-import javax.microedition.io.Connector;
-import javax.microedition.io.StreamConnection;
-import javax.microedition.io.StreamConnectionNotifier;
 import javax.swing.JFileChooser;
 
 /**
@@ -26,8 +24,6 @@ public class StartServer {
 	
 	// For error logging within StartServer.
 	private static Logger logger = Logger.getLogger("StartServerLog");
-	private static FileHandler fh;
-	private static SimpleFormatter sf;
 
 	// Files, file paths, and Strings representing both encrypted files.
 	private static File ENCRYPTED_TLD_FILE;
@@ -43,14 +39,55 @@ public class StartServer {
 
 	private static JFileChooser chooser; // File chooser for selected TLD.
 
+	// Transport used to reach Android Servers: "bluetooth" (default) or "tcp".
+	private static String TRANSPORT_NAME = ServerConfig.getString("droidtooth.transport", "bluetooth");
+	private static Transport transport;
+
+	// Milliseconds between checks that the Local Device's Bluetooth is on.
+	private static long BLUETOOTH_CHECK_INTERVAL = ServerConfig.getLong("droidtooth.bluetooth.checkInterval",
+			2000);
+
+	// Milliseconds waited before restarting PC Server, doubling after every quick
+	// failure up to the maximum, and the number of failed attempts in a row to
+	// open the server connection before giving up.
+	private static long RESTART_MIN_DELAY = ServerConfig.getLong("droidtooth.restart.minDelay", 1000);
+	private static long RESTART_MAX_DELAY = ServerConfig.getLong("droidtooth.restart.maxDelay", 60000);
+	private static int MAX_OPEN_FAILURES = ServerConfig.getInt("droidtooth.restart.maxOpenFailures", 10);
+
 	// Algorithm for encryption and decryption.
 	private static String ALGO = "AES";
 
+	// Private key and ciphers, read and built once when first needed.
+	private static Key key;
+	private static Cipher encryptCipher;
+	private static Cipher decryptCipher;
+
 	// Streams used for input and output.
 	private static FileWriter writer;
 	private static FileOutputStream writer2;
 	private static BufferedReader reader;
 
+	/**
+	 * Reads the private key from the key file the first time it is needed.
+	 * 
+	 * @return Key storing private key for encryption and decryption.
+	 * @throws IOException
+	 *             If the key file cannot be read.
+	 */
+	private static Key getKey() throws IOException {
+
+		if (key == null) {
+			reader = new BufferedReader(new FileReader(KEY_FILE));
+			try {
+				key = new SecretKeySpec(reader.readLine().getBytes(), ALGO);
+			} finally {
+				reader.close();
+			}
+		}
+		return key;
+
+	}
+
 	/**
 	 * Encrypts passed-in String.
 	 * 
@@ -58,17 +95,16 @@ public class StartServer {
 	 *            String to encrypt.
 	 * @return String storing encrypted data.
 	 */
-	public static String encrypt(String data) {
+	public static synchronized String encrypt(String data) {
 
 		byte[] encValue = null;
 		
 		try {
-			reader = new BufferedReader(new FileReader(KEY_FILE));
-			byte[] keyValue = reader.readLine().getBytes();
-			Key key = new SecretKeySpec(keyValue, ALGO);
-			Cipher c = Cipher.getInstance(ALGO);
-			c.init(Cipher.ENCRYPT_MODE, key);
-			encValue = c.doFinal(data.getBytes());
+			if (encryptCipher == null) {
+				encryptCipher = Cipher.getInstance(ALGO);
+				encryptCipher.init(Cipher.ENCRYPT_MODE, getKey());
+			}
+			encValue = encryptCipher.doFinal(data.getBytes());
 		} catch (Exception e) {
 			System.out.println("Error encrypting " + data + ": " + e + "\nExiting...");
 			logger.info("Error encrypting " + data + ": " + e);
@@ -86,18 +122,17 @@ public class StartServer {
 	 *            String to decrypt.
 	 * @return String storing decrypted data.
 	 */
-	public static String decrypt(String data) {
+	public static synchronized String decrypt(String data) {
 		
 		byte[] decValue = null;
 
 		try {
-			reader = new BufferedReader(new FileReader(KEY_FILE));
-			byte[] keyValue = reader.readLine().getBytes();
-			Key key = new SecretKeySpec(keyValue, ALGO);
-			Cipher c = Cipher.getInstance(ALGO);
-			c.init(Cipher.DECRYPT_MODE, key);
+			if (decryptCipher == null) {
+				decryptCipher = Cipher.getInstance(ALGO);
+				decryptCipher.init(Cipher.DECRYPT_MODE, getKey());
+			}
 			byte[] decodedValue = Base64.getDecoder().decode(data);
-			decValue = c.doFinal(decodedValue);
+			decValue = decryptCipher.doFinal(decodedValue);
 		} catch (Exception e) {
 			System.out.println("Error decrypting " + data + ": " + e + "\nExiting...");
 			logger.info("Error decrypting " + data + ": " + e);
@@ -179,16 +214,13 @@ public class StartServer {
 		if (!ENCRYPTED_UDA_FILE.exists()) {
 			System.out.println("UDA does not exist! Creating...");
 			System.out.println("Connecting your nearby Android Server to encrypt UDA details...");
-			UUID uuid = new UUID("1101", true); // Create a UUID for PC Server.
-			String connectionString = "btspp://localhost:" + uuid + ";name=PC Server"; // Create the service URL.
-			StreamConnectionNotifier streamNotifier = null;
-			StreamConnection connection = null;
+			TransportConnection connection = null;
 			try {
-				// Open server URL.
-				streamNotifier = (StreamConnectionNotifier) Connector.open(connectionString);
+				// Start listening.
+				transport.open();
 				// Wait for connection from Android Server.
 				System.out.println("PC Server started. Waiting for Android Server to connect...");
-				connection = streamNotifier.acceptAndOpen();
+				connection = transport.accept();
 			} catch (IOException e) {
 				System.out.println("Error opening connection: " + e);
 				logger.info("Error opening connection: " + e);
@@ -196,7 +228,7 @@ public class StartServer {
 			// Encrypt UDA.
 			String encryptedUDA = "";
 			try {
-				String udaDebugging = RemoteDevice.getRemoteDevice(connection).getBluetoothAddress();
+				String udaDebugging = transport.getDefaultPeerAddressProvider().getPeerAddress(connection);
 				System.out.println("Before encryption UDA: " + udaDebugging);
 				encryptedUDA = encrypt(udaDebugging);
 			} catch (IOException e) {
@@ -218,7 +250,7 @@ public class StartServer {
 			System.out.println("UDA file has been created");
 			try {
 				connection.close();
-				streamNotifier.close();
+				transport.close();
 			} catch (IOException e) {
 				System.out.println("Error closing connection: " + e);
 				logger.info("Error closing connection: " + e);
@@ -248,6 +280,24 @@ public class StartServer {
 
 	}
 
+	/**
+	 * Creates the transport selected by the droidtooth.transport property. The TCP
+	 * transport listens on droidtooth.tcp.host (the loopback address by default)
+	 * and droidtooth.tcp.port (1101 by default).
+	 * 
+	 * @return Transport to accept connections from.
+	 */
+	public static Transport createTransport() {
+
+		if (TRANSPORT_NAME.equalsIgnoreCase("tcp")) {
+			String host = ServerConfig.getString("droidtooth.tcp.host", null);
+			int port = ServerConfig.getInt("droidtooth.tcp.port", 1101);
+			return new TcpTransport(host, port);
+		}
+		return new BluetoothTransport();
+
+	}
+
 	/**
 	 * Attempts creating and starting PCServer.
 	 * 
@@ -257,11 +307,7 @@ public class StartServer {
 		
 		// Set up error logging.
 		try {
-			fh = new FileHandler("Logs\\StartServer.log");
-			logger.addHandler(fh);
-			logger.setUseParentHandlers(false);
-			sf = new SimpleFormatter();
-			fh.setFormatter(sf);
+			ServerLog.addFileHandler(logger, "StartServer");
 			logger.info("StartServer log started.");
 		} catch (IOException e) {
 			System.out.println("Error starting error logging: " + e);
@@ -270,40 +316,69 @@ public class StartServer {
 		// Welcome message.
 		System.out.println("CloudTooth File Transfer starting up...");
 
-		// Ensure that Bluetooth is on, else terminate program.
-		if (!LocalDevice.isPowerOn()) {
-			System.out.println("Bluetooth is off, turn on and re-execute program");
-			System.exit(0);
-		}
+		transport = createTransport();
+		boolean usingBluetooth = transport instanceof BluetoothTransport;
 
-		// Display PC Server Bluetooth Address and Device Name.
-		LocalDevice pcServer = null;
-		try {
-			pcServer = LocalDevice.getLocalDevice();
-		} catch (BluetoothStateException e) {
-			System.out.println("Error getting local device information: " + e + "\nExiting...");
-			logger.info("Error getting local device information: " + e);
-			System.exit(0);
+		if (usingBluetooth) {
+			// Ensure that Bluetooth is on, else terminate program.
+			if (!LocalDevice.isPowerOn()) {
+				System.out.println("Bluetooth is off, turn on and re-execute program");
+				System.exit(0);
+			}
+
+			// Display PC Server Bluetooth Address and Device Name.
+			LocalDevice pcServer = null;
+			try {
+				pcServer = LocalDevice.getLocalDevice();
+			} catch (BluetoothStateException e) {
+				System.out.println("Error getting local device information: " + e + "\nExiting...");
+				logger.info("Error getting local device information: " + e);
+				System.exit(0);
+			}
+			System.out.println("PC Server Bluetooth Address: " + pcServer.getBluetoothAddress());
+			System.out.println("PC Server Device Name: " + pcServer.getFriendlyName());
+			// Remind user to keep Bluetooth turned on
+			System.out.println("Make sure to keep your Bluetooth turned on");
+		} else {
+			System.out.println("Using " + TRANSPORT_NAME + " transport instead of Bluetooth");
 		}
-		System.out.println("PC Server Bluetooth Address: " + pcServer.getBluetoothAddress());
-		System.out.println("PC Server Device Name: " + pcServer.getFriendlyName());
-		// Remind user to keep Bluetooth turned on
-		System.out.println("Make sure to keep your Bluetooth turned on");
 
 		setUp(); // Run initial setup.
 
-		PCServer server = new PCServer(TLD, UDA); // Create PC Server object.
-		
+		PCServer server = new PCServer(TLD, UDA, transport); // Create PC Server object.
 
-		// Start thread to continuously check that (1) the Local Device's Bluetooth is
-		// on, and (2) the current state of PC Server.
-		Thread bluetoothThread = new Thread(new CheckBluetoothRunnable(server));
-		bluetoothThread.start();
-		System.out.println("CheckBluetoothRunnable thread starting up...");
+		// React to every change of PC Server's state and, when using Bluetooth,
+		// periodically check that the Local Device's Bluetooth is on.
+		CheckBluetoothRunnable checkBluetooth = new CheckBluetoothRunnable(server);
+		if (usingBluetooth) {
+			ScheduledExecutorService bluetoothChecker = Executors.newSingleThreadScheduledExecutor();
+			bluetoothChecker.scheduleWithFixedDelay(checkBluetooth, BLUETOOTH_CHECK_INTERVAL,
+					BLUETOOTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			System.out.println("CheckBluetoothRunnable scheduled...");
+		}
 
+		// Restart PC Server whenever it stops, waiting longer after every quick
+		// failure so a missing adapter or busy port does not spin.
+		long delay = RESTART_MIN_DELAY;
+		int openFailures = 0;
 		while (true) {
-			
-			server.begin(); // Start PC Server.
+			long started = System.currentTimeMillis();
+			if (server.begin()) { // Start PC Server.
+				openFailures = 0;
+			} else if (++openFailures >= MAX_OPEN_FAILURES) {
+				System.out.println("Could not open connection after " + openFailures + " attempts\nExiting...");
+				logger.info("Could not open connection after " + openFailures + " attempts");
+				System.exit(1);
+			}
+			if (System.currentTimeMillis() - started > RESTART_MAX_DELAY)
+				delay = RESTART_MIN_DELAY; // Ran long enough to not count as a quick failure.
+			System.out.println("Restarting PC Server in " + delay + " ms...");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			delay = Math.min(delay * 2, RESTART_MAX_DELAY);
 		}
 
 	}
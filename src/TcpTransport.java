@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashSet;
+
+/**
+ * Implementation of Transport which accepts TCP connections. Runs the same
+ * protocol as Bluetooth, so PC Server can be tested and benchmarked on machines
+ * without a Bluetooth adapter.
+ * 
+ * Unlike Bluetooth, TCP needs no pairing, so the transport listens on the
+ * loopback address unless told otherwise, and only serves devices which match
+ * the registered UDA or are listed in droidtooth.tcp.allowedPeers (the loopback
+ * addresses by default).
+ */
+public class TcpTransport implements Transport {
+
+	// Addresses of devices served even though they do not match the UDA.
+	private static String ALLOWED_PEERS = ServerConfig.getString("droidtooth.tcp.allowedPeers", "127.0.0.1,::1");
+
+	private String host; // Address to listen on; null for the loopback address.
+	private int port; // Port to listen on; 0 for any free port.
+	private ServerSocket serverSocket; // Open socket, if listening.
+	private HashSet<String> allowedPeers = new HashSet<String>();
+
+	/**
+	 * Creates a transport listening on passed-in address and port. Listening on
+	 * every address must be asked for explicitly, with "0.0.0.0" or "::".
+	 * 
+	 * @param listenHost
+	 *            String storing address to listen on; null for the loopback
+	 *            address.
+	 * @param listenPort
+	 *            Int storing port to listen on; 0 for any free port.
+	 */
+	public TcpTransport(String listenHost, int listenPort) {
+
+		host = listenHost;
+		port = listenPort;
+		for (String peer : ALLOWED_PEERS.split(",")) {
+			peer = peer.trim();
+			if (peer.equals(""))
+				continue;
+			try {
+				// Store addresses in the form connections report them in.
+				allowedPeers.add(InetAddress.getByName(peer).getHostAddress());
+			} catch (UnknownHostException e) {
+				ServerLog.console("Ignoring unknown allowed peer: %s", peer);
+			}
+		}
+
+	}
+
+	/**
+	 * Opens the server socket.
+	 * 
+	 * @throws IOException
+	 *             If the socket cannot be bound.
+	 */
+	public void open() throws IOException {
+
+		// Accepted sockets then have channels, which file contents can be handed to.
+		serverSocket = ServerSocketChannel.open().socket();
+		serverSocket.setReuseAddress(true);
+		InetSocketAddress address = host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+				: new InetSocketAddress(InetAddress.getByName(host), port);
+		serverSocket.bind(address);
+
+	}
+
+	/**
+	 * Getter method for the port actually listened on.
+	 * 
+	 * @return Int storing bound port; -1 if not listening.
+	 */
+	public int getLocalPort() {
+
+		if (serverSocket == null)
+			return -1;
+		return serverSocket.getLocalPort();
+
+	}
+
+	/**
+	 * Waits for the next TCP connection.
+	 * 
+	 * @return TransportConnection storing the accepted connection.
+	 * @throws IOException
+	 *             If the socket fails or is closed while waiting.
+	 */
+	public TransportConnection accept() throws IOException {
+
+		Socket socket = serverSocket.getChannel().accept().socket();
+		socket.setTcpNoDelay(true);
+		return new Connection(socket);
+
+	}
+
+	/**
+	 * Closes the server socket.
+	 * 
+	 * @throws IOException
+	 *             If the socket cannot be closed.
+	 */
+	public void close() throws IOException {
+
+		if (serverSocket != null)
+			serverSocket.close();
+		serverSocket = null;
+
+	}
+
+	/**
+	 * TCP connections are identified by the remote IP address.
+	 * 
+	 * @return PeerAddressProvider looking up remote IP addresses.
+	 */
+	public PeerAddressProvider getDefaultPeerAddressProvider() {
+
+		return new AddressProvider();
+
+	}
+
+	/**
+	 * Anyone who can reach the port can connect over TCP, so only devices listed
+	 * in droidtooth.tcp.allowedPeers are served without matching the UDA.
+	 * 
+	 * @param peerAddress
+	 *            String storing remote IP address of the connection.
+	 * @return Boolean storing true if the address is allowed.
+	 */
+	public boolean acceptsUnrecognizedPeer(String peerAddress) {
+
+		return allowedPeers.contains(peerAddress);
+
+	}
+
+	/**
+	 * A single TCP connection.
+	 */
+	public static class Connection implements TransportConnection {
+
+		private Socket socket;
+
+		Connection(Socket acceptedSocket) {
+
+			socket = acceptedSocket;
+
+		}
+
+		/**
+		 * Getter method for private field socket.
+		 * 
+		 * @return Socket storing the underlying TCP connection.
+		 */
+		public Socket getSocket() {
+
+			return socket;
+
+		}
+
+		public InputStream openInputStream() throws IOException {
+
+			return socket.getInputStream();
+
+		}
+
+		public OutputStream openOutputStream() throws IOException {
+
+			return socket.getOutputStream();
+
+		}
+
+		public void close() throws IOException {
+
+			socket.close();
+
+		}
+
+	}
+
+	/**
+	 * Implementation of PeerAddressProvider which reports the remote IP address of
+	 * a TCP connection.
+	 */
+	public static class AddressProvider implements PeerAddressProvider {
+
+		public String getPeerAddress(TransportConnection connection) {
+
+			return ((Connection) connection).getSocket().getInetAddress().getHostAddress();
+
+		}
+
+	}
+
+}
@@ -0,0 +1,53 @@
+import java.io.IOException;
+
+/**
+ * Listening side of a connection between PC Server and Android Servers. The
+ * protocol only needs a pair of byte streams per connection, so it can run over
+ * Bluetooth RFCOMM, TCP or in-JVM pipes alike.
+ */
+public interface Transport {
+
+	/**
+	 * Starts listening for connections.
+	 * 
+	 * @throws IOException
+	 *             If the transport cannot listen.
+	 */
+	void open() throws IOException;
+
+	/**
+	 * Waits for the next connection.
+	 * 
+	 * @return TransportConnection storing the accepted connection.
+	 * @throws IOException
+	 *             If the transport fails or is closed while waiting.
+	 */
+	TransportConnection accept() throws IOException;
+
+	/**
+	 * Stops listening for connections. Connections already accepted stay open.
+	 * 
+	 * @throws IOException
+	 *             If the transport cannot be closed.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Provider of peer addresses used by default for connections of this
+	 * transport.
+	 * 
+	 * @return PeerAddressProvider for this transport's connections.
+	 */
+	PeerAddressProvider getDefaultPeerAddressProvider();
+
+	/**
+	 * Checks if a device whose address does not match the registered UDA may still
+	 * be served over this transport.
+	 * 
+	 * @param peerAddress
+	 *            String storing address of the connected device.
+	 * @return Boolean storing true if the connection may be served.
+	 */
+	boolean acceptsUnrecognizedPeer(String peerAddress);
+
+}
@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A single connection accepted by a Transport.
+ */
+public interface TransportConnection {
+
+	/**
+	 * Opens the stream of bytes sent by the Android Server.
+	 * 
+	 * @return InputStream storing bytes from the Android Server.
+	 * @throws IOException
+	 *             If the stream cannot be opened.
+	 */
+	InputStream openInputStream() throws IOException;
+
+	/**
+	 * Opens the stream of bytes sent to the Android Server.
+	 * 
+	 * @return OutputStream storing bytes to the Android Server.
+	 * @throws IOException
+	 *             If the stream cannot be opened.
+	 */
+	OutputStream openOutputStream() throws IOException;
+
+	/**
+	 * Closes the connection.
+	 * 
+	 * @throws IOException
+	 *             If the connection cannot be closed.
+	 */
+	void close() throws IOException;
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Constants of the binary framing protocol, which a session switches to when
+ * the Android Server sends "proto binary". Every frame is a 12-byte header
+ * followed by its payload, with all numbers big-endian:
+ * 
+ * <pre>
+ * byte  version    VERSION
+ * byte  type       one of the frame types below
+ * byte  flags      0 unless stated otherwise
+ * byte  reserved   0
+ * int   stream id  0 unless the frame answers a tagged request
+ * int   length     number of payload bytes that follow
+ * </pre>
+ * 
+ * Payloads of each frame type:
+ * 
+ * <pre>
+ * TEXT        UTF-8 text
+ * LISTING     int count, then per entry an unsigned short length and UTF-8 bytes
+ * FILE_BEGIN  long file size, or -1 if not known up front, then UTF-8 path
+ * FILE_DATA   raw file bytes, continuing the file begun on the same stream
+ * FILE_END    long file size, then UTF-8 path
+ * ERROR       UTF-8 text
+ * RANGE_BEGIN long file size, long last modified, long offset, long length,
+ *             then UTF-8 path; FILE_DATA frames of the range follow
+ * HASH        byte digest length, SHA-256 digest, then UTF-8 path
+ * NOT_MODIFIED UTF-8 path of a file the client already holds
+ * DELTA_BEGIN long file size, long last modified, int block size, int block
+ *             count, then UTF-8 path; FILE_DATA and DELTA_COPY frames follow
+ * DELTA_COPY  int index of first block, int number of consecutive blocks to
+ *             copy from the client's old copy
+ * KEY_EXCHANGE X.509 encoded P-256 public key of PC Server
+ * </pre>
+ * 
+ * FILE_DATA frames are sent with FLAG_CRC32C set, and their payload ends with
+ * an int storing the CRC32C of the chunk's file bytes. The exception is a
+ * session over TCP which is neither encrypted nor compressed: its chunks are
+ * handed straight from the file to the socket, without the flag or trailer,
+ * and rely on TCP's own checksums. If such a file shrinks partway through a
+ * chunk, the chunk is padded with zeros and the file ends with an ERROR frame
+ * instead of FILE_END. A client which loses the connection keeps
+ * the bytes of every verified or wholly received chunk and sends "resume
+ * offset path" to continue from the first byte it does not hold.
+ * 
+ * A client holding an old copy of a file sends "delta blockSize path",
+ * followed by one line "weak strong" per full block of its copy, in order,
+ * and a line "end". Weak is the RollingChecksum and strong the MD5 of the
+ * block, both in hex. The new file is rebuilt by appending FILE_DATA payloads
+ * and copied blocks in the order their frames arrive, then checked against
+ * the SHA-256 in the HASH frame sent after FILE_END.
+ * 
+ * A request line may be tagged as "#id request", with id a positive int, so
+ * the client can send further requests without waiting for its response.
+ * Tagged requests are served concurrently, and every frame answering one
+ * carries its id as the stream id, so the frames of different responses may
+ * be interleaved and responses complete in any order. Untagged requests are
+ * still answered in order on stream 0.
+ * 
+ * A client may encrypt the session by sending "encrypt key", where key is its
+ * X.509 encoded P-256 public key in base64. PC Server answers with a
+ * KEY_EXCHANGE frame, and both sides derive a key for each direction as
+ * described in SessionCipher. Every frame after the KEY_EXCHANGE frame is sent
+ * with FLAG_ENCRYPTED set, and its payload is a long sequence number followed
+ * by the AES-GCM ciphertext and tag of the payload it would otherwise have had,
+ * checksum included. The whole header is authenticated along with it, and
+ * sequence numbers count up from 0, so a frame which is not the next one is
+ * rejected, as is any frame without FLAG_ENCRYPTED once the session is keyed.
+ * Frames are opened before they are checked or inflated.
+ * 
+ * Encryption has two limits. The key exchange is not authenticated, so it
+ * only keeps out eavesdroppers; a device able to tamper with the connection
+ * while it is keyed could stand in the middle, and peers are only as trusted
+ * as the transport makes them (Bluetooth pairing, or the allowed TCP
+ * addresses). Only frames sent by PC Server are sealed: request lines sent by
+ * the Android Server, including file names, stay in plaintext.
+ * 
+ * Once compression is turned on, LISTING and FILE_DATA frames whose payload
+ * shrinks are sent with FLAG_DEFLATE set. The payload of such a frame is an
+ * int storing the uncompressed length followed by the zlib stream of the
+ * uncompressed payload, before any checksum. Every frame is compressed on its own, so each can be
+ * inflated without the frames before it.
+ */
+public class WireProtocol {
+
+	// Version written in every frame header.
+	public static byte VERSION = 1;
+
+	// Size of every frame header.
+	public static int HEADER_SIZE = 12;
+
+	// Largest payload a decoder accepts (64 MB).
+	public static int MAX_PAYLOAD = 67108864;
+
+	// Frame types.
+	public static byte TEXT = 1;
+	public static byte LISTING = 2;
+	public static byte FILE_BEGIN = 3;
+	public static byte FILE_DATA = 4;
+	public static byte FILE_END = 5;
+	public static byte ERROR = 6;
+	public static byte RANGE_BEGIN = 7;
+	public static byte HASH = 8;
+	public static byte NOT_MODIFIED = 9;
+	public static byte DELTA_BEGIN = 10;
+	public static byte DELTA_COPY = 11;
+	public static byte KEY_EXCHANGE = 12;
+
+	// Frame flags.
+	public static byte FLAG_DEFLATE = 1;
+	public static byte FLAG_CRC32C = 2;
+	public static byte FLAG_ENCRYPTED = 4;
+
+}
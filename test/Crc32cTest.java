@@ -0,0 +1,82 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+import org.junit.Test;
+
+/**
+ * Checks Crc32c, and the checksum Crc32c.create picks, against the CRC32C test
+ * vectors of RFC 3720.
+ */
+public class Crc32cTest {
+
+	private static byte[] DIGITS = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Checks passed-in checksum against every test vector.
+	 * 
+	 * @param checksum
+	 *            Checksum computing CRC32C.
+	 */
+	private static void assertVectors(Checksum checksum) {
+
+		byte[] zeros = new byte[32];
+		byte[] ones = new byte[32];
+		Arrays.fill(ones, (byte) 0xFF);
+		byte[] ascending = new byte[32];
+		byte[] descending = new byte[32];
+		for (int i = 0; i < 32; i++) {
+			ascending[i] = (byte) i;
+			descending[i] = (byte) (31 - i);
+		}
+
+		assertEquals(0xE3069283, Crc32c.of(checksum, DIGITS, 0, DIGITS.length));
+		assertEquals(0x8A9136AA, Crc32c.of(checksum, zeros, 0, zeros.length));
+		assertEquals(0x62A8AB43, Crc32c.of(checksum, ones, 0, ones.length));
+		assertEquals(0x46DD794E, Crc32c.of(checksum, ascending, 0, ascending.length));
+		assertEquals(0x113FDB5C, Crc32c.of(checksum, descending, 0, descending.length));
+		assertEquals(0, Crc32c.of(checksum, DIGITS, 0, 0));
+
+	}
+
+	@Test
+	public void fallbackMatchesVectors() {
+
+		assertVectors(new Crc32c());
+
+	}
+
+	@Test
+	public void createdChecksumMatchesVectors() {
+
+		assertVectors(Crc32c.create());
+
+	}
+
+	@Test
+	public void singleBytesMatchArrays() {
+
+		Crc32c checksum = new Crc32c();
+		for (byte b : DIGITS) {
+			checksum.update(b);
+		}
+		assertEquals(0xE3069283L, checksum.getValue());
+
+		checksum.reset();
+		checksum.update(DIGITS, 0, 4);
+		checksum.update(DIGITS, 4, DIGITS.length - 4);
+		assertEquals(0xE3069283L, checksum.getValue());
+
+	}
+
+	@Test
+	public void offsetIsHonoured() {
+
+		byte[] padded = "xx123456789yy".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(0xE3069283, Crc32c.of(new Crc32c(), padded, 2, DIGITS.length));
+
+	}
+
+}
@@ -0,0 +1,170 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Sends files with DeltaEncoder against signatures of an old copy, then
+ * rebuilds them from the frames as the Android Server would.
+ */
+public class DeltaEncoderTest {
+
+	private static int BLOCK_SIZE = 512;
+	private static int CHUNK_SIZE = 4096;
+	private static String NAME = "/tld/sub/file.bin";
+
+	private File file;
+	private DeltaEncoder encoder;
+
+	@After
+	public void deleteFile() {
+
+		if (file != null)
+			file.delete();
+
+	}
+
+	private static byte[] randomBytes(int length, long seed) {
+
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+
+	}
+
+	/**
+	 * Builds the signatures of every whole block of passed-in old copy.
+	 * 
+	 * @param old
+	 *            Byte array storing the old copy.
+	 * @return BlockSignatures storing its blocks.
+	 */
+	private static BlockSignatures signaturesOf(byte[] old) throws Exception {
+
+		BlockSignatures signatures = new BlockSignatures(BLOCK_SIZE);
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		for (int off = 0; off + BLOCK_SIZE <= old.length; off += BLOCK_SIZE) {
+			md5.update(old, off, BLOCK_SIZE);
+			signatures.add(RollingChecksum.of(old, off, BLOCK_SIZE), md5.digest());
+		}
+		return signatures;
+
+	}
+
+	/**
+	 * Sends passed-in new contents against passed-in old copy, and rebuilds them
+	 * from the frames sent.
+	 * 
+	 * @param old
+	 *            Byte array storing the old copy.
+	 * @param contents
+	 *            Byte array storing the new contents.
+	 * @return Byte array storing the rebuilt contents.
+	 */
+	private byte[] roundTrip(byte[] old, byte[] contents) throws Exception {
+
+		file = File.createTempFile("delta", ".bin");
+		Files.write(file.toPath(), contents);
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		encoder = new DeltaEncoder(signaturesOf(old), new BinaryMessageWriter(wire), CHUNK_SIZE);
+		String hash = encoder.encode(file, NAME);
+
+		FrameDecoder in = new FrameDecoder(new ByteArrayInputStream(wire.toByteArray()));
+		assertTrue(in.next());
+		assertEquals(WireProtocol.DELTA_BEGIN, in.getType());
+		assertEquals(NAME, in.getFileName());
+		assertEquals(contents.length, in.getFileSize());
+		assertEquals(BLOCK_SIZE, in.getBlockSize());
+		assertEquals(old.length / BLOCK_SIZE, in.getBlockCount());
+
+		ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+		while (true) {
+			assertTrue(in.next());
+			if (in.getType() == WireProtocol.FILE_DATA) {
+				assertTrue(in.getLength() <= CHUNK_SIZE);
+				rebuilt.write(in.getPayload(), 0, in.getLength());
+			} else if (in.getType() == WireProtocol.DELTA_COPY) {
+				rebuilt.write(old, in.getFirstBlock() * BLOCK_SIZE, in.getBlockCount() * BLOCK_SIZE);
+			} else {
+				break;
+			}
+		}
+		assertEquals(WireProtocol.FILE_END, in.getType());
+		assertTrue(in.next());
+		assertEquals(WireProtocol.HASH, in.getType());
+		assertEquals(hash, in.getHash());
+		assertFalse(in.next());
+
+		byte[] result = rebuilt.toByteArray();
+		assertEquals(HashCache.toHex(MessageDigest.getInstance("SHA-256").digest(contents)), hash);
+		assertEquals(contents.length, encoder.getLiteralBytes() + encoder.getCopiedBytes());
+		return result;
+
+	}
+
+	@Test
+	public void rollingMatchesFreshChecksum() {
+
+		byte[] bytes = randomBytes(4 * BLOCK_SIZE, 1);
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(bytes, 0, BLOCK_SIZE);
+		for (int off = 0; off + BLOCK_SIZE < bytes.length; off++) {
+			assertEquals(RollingChecksum.of(bytes, off, BLOCK_SIZE), checksum.getValue());
+			checksum.roll(bytes[off], bytes[off + BLOCK_SIZE]);
+		}
+
+	}
+
+	@Test
+	public void unchangedFileIsAllCopies() throws Exception {
+
+		byte[] old = randomBytes(40 * BLOCK_SIZE, 2);
+		assertArrayEquals(old, roundTrip(old, old));
+		assertEquals(0, encoder.getLiteralBytes());
+
+	}
+
+	@Test
+	public void editedFileRoundTrips() throws Exception {
+
+		byte[] old = randomBytes(40 * BLOCK_SIZE + 100, 3);
+		byte[] contents = new byte[old.length + 300];
+		// Insert 300 bytes after block 5 and overwrite part of block 20.
+		System.arraycopy(old, 0, contents, 0, 5 * BLOCK_SIZE);
+		System.arraycopy(randomBytes(300, 4), 0, contents, 5 * BLOCK_SIZE, 300);
+		System.arraycopy(old, 5 * BLOCK_SIZE, contents, 5 * BLOCK_SIZE + 300, old.length - 5 * BLOCK_SIZE);
+		Arrays.fill(contents, 20 * BLOCK_SIZE + 10, 20 * BLOCK_SIZE + 20, (byte) 0);
+
+		assertArrayEquals(contents, roundTrip(old, contents));
+		assertTrue(encoder.getCopiedBytes() >= 35 * BLOCK_SIZE);
+
+	}
+
+	@Test
+	public void unrelatedFileIsAllLiterals() throws Exception {
+
+		byte[] contents = randomBytes(3 * CHUNK_SIZE + 7, 5);
+		assertArrayEquals(contents, roundTrip(randomBytes(10 * BLOCK_SIZE, 6), contents));
+		assertEquals(0, encoder.getCopiedBytes());
+
+	}
+
+	@Test
+	public void emptyFileRoundTrips() throws Exception {
+
+		assertArrayEquals(new byte[0], roundTrip(randomBytes(BLOCK_SIZE, 7), new byte[0]));
+
+	}
+
+}
@@ -0,0 +1,138 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Sends files straight from a FileChannelSender to a channel, as a plain binary
+ * session over TCP does, and reads the frames back.
+ */
+public class FileChannelSenderTest {
+
+	private static int CHUNK_SIZE = 4096;
+	private static String NAME = "/tld/sub/file.bin";
+
+	private File file;
+	private ByteArrayOutputStream wire = new ByteArrayOutputStream();
+	private BinaryMessageWriter writer = new BinaryMessageWriter(
+			new FrameWriter(wire, Channels.newChannel(wire)), 0);
+
+	@After
+	public void deleteFile() {
+
+		if (file != null)
+			file.delete();
+
+	}
+
+	private byte[] writeFile(int length) throws Exception {
+
+		byte[] contents = new byte[length];
+		new Random(length).nextBytes(contents);
+		file = File.createTempFile("sender", ".bin");
+		Files.write(file.toPath(), contents);
+		return contents;
+
+	}
+
+	@Test
+	public void transferredChunksRoundTrip() throws Exception {
+
+		byte[] contents = writeFile(3 * CHUNK_SIZE + 7);
+		FileChannelSender sender = new FileChannelSender(file);
+		assertTrue(writer.canTransfer());
+		int bytesSent;
+		while ((bytesSent = writer.transferFileChunk(NAME, sender, CHUNK_SIZE, contents.length)) > 0) {
+			assertTrue(bytesSent <= CHUNK_SIZE);
+		}
+		sender.close();
+
+		FrameDecoder in = new FrameDecoder(new ByteArrayInputStream(wire.toByteArray()));
+		ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+		while (in.next()) {
+			assertEquals(WireProtocol.FILE_DATA, in.getType());
+			assertEquals(0, in.getFlags());
+			rebuilt.write(in.getPayload(), 0, in.getLength());
+		}
+		assertArrayEquals(contents, rebuilt.toByteArray());
+
+	}
+
+	@Test
+	public void shrunkFileEndsEarly() throws Exception {
+
+		byte[] contents = writeFile(2 * CHUNK_SIZE);
+		FileChannelSender sender = new FileChannelSender(file);
+		RandomAccessFile shrink = new RandomAccessFile(file, "rw");
+		shrink.setLength(CHUNK_SIZE);
+		shrink.close();
+
+		assertEquals(CHUNK_SIZE, writer.transferFileChunk(NAME, sender, CHUNK_SIZE, contents.length));
+		assertEquals(0, writer.transferFileChunk(NAME, sender, CHUNK_SIZE, contents.length));
+		sender.close();
+
+	}
+
+	@Test
+	public void fileShrinkingMidChunkKeepsFramesInStep() throws Exception {
+
+		writeFile(2 * CHUNK_SIZE);
+		// Shrinks the file once the frame has been announced at its old size.
+		FileChannelSender shrinking = new FileChannelSender(file) {
+
+			public long transferTo(WritableByteChannel target, long maxLength) throws IOException {
+
+				RandomAccessFile shrink = new RandomAccessFile(file, "rw");
+				shrink.setLength(CHUNK_SIZE / 2);
+				shrink.close();
+				return super.transferTo(target, maxLength);
+
+			}
+
+		};
+		try {
+			writer.transferFileChunk(NAME, shrinking, CHUNK_SIZE, 2 * CHUNK_SIZE);
+			fail("Shrunk chunk was not reported");
+		} catch (FileChannelSender.TruncatedException e) {
+			// Expected: the chunk was padded.
+		}
+		shrinking.close();
+
+		FrameDecoder in = new FrameDecoder(new ByteArrayInputStream(wire.toByteArray()));
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FILE_DATA, in.getType());
+		assertEquals(CHUNK_SIZE, in.getLength());
+		assertFalse(in.next());
+
+	}
+
+	@Test
+	public void compressedSessionDoesNotTransfer() throws Exception {
+
+		writeFile(CHUNK_SIZE);
+		FrameWriter frames = new FrameWriter(wire, Channels.newChannel(wire));
+		frames.setCompression(true);
+		BinaryMessageWriter compressing = new BinaryMessageWriter(frames, 0);
+		FileChannelSender sender = new FileChannelSender(file);
+		assertFalse(compressing.canTransfer());
+		assertEquals(-1, compressing.transferFileChunk(NAME, sender, CHUNK_SIZE, CHUNK_SIZE));
+		assertEquals(0, sender.position());
+		sender.close();
+
+	}
+
+}
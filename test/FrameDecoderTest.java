@@ -0,0 +1,281 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips frames written by BinaryMessageWriter through FrameDecoder, with
+ * every combination of compression, checksum and encryption.
+ */
+public class FrameDecoderTest {
+
+	private static String NAME = "/tld/sub/file.bin";
+
+	private ByteArrayOutputStream wire = new ByteArrayOutputStream();
+	private BinaryMessageWriter writer = new BinaryMessageWriter(wire);
+
+	/**
+	 * Decodes everything written so far.
+	 * 
+	 * @return FrameDecoder reading the written frames.
+	 */
+	private FrameDecoder decoder() {
+
+		return new FrameDecoder(new ByteArrayInputStream(wire.toByteArray()));
+
+	}
+
+	/**
+	 * Keys the writer with a fresh key exchange, reading the KEY_EXCHANGE frame as
+	 * a client would. Only frames written afterwards are left on the wire.
+	 * 
+	 * @return SessionCipher storing the client's copy of the session key.
+	 */
+	private SessionCipher encrypt() throws Exception {
+
+		KeyPair server = SessionCipher.generateKeyPair();
+		KeyPair client = SessionCipher.generateKeyPair();
+		writer.writeKeyExchange(server.getPublic().getEncoded(),
+				new SessionCipher(server.getPrivate(), client.getPublic().getEncoded(), true));
+		FrameDecoder in = decoder();
+		assertTrue(in.next());
+		assertEquals(WireProtocol.KEY_EXCHANGE, in.getType());
+		assertEquals(0, in.getFlags());
+		wire.reset();
+		return new SessionCipher(client.getPrivate(), in.getPublicKey(), false);
+
+	}
+
+	private static byte[] randomBytes(int length) {
+
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+
+	}
+
+	private static byte[] payloadOf(FrameDecoder in) {
+
+		return Arrays.copyOf(in.getPayload(), in.getLength());
+
+	}
+
+	@Test
+	public void textRoundTrips() throws IOException {
+
+		writer.writeText("h\u00e9llo \u4e16\u754c");
+		FrameDecoder in = decoder();
+		assertTrue(in.next());
+		assertEquals(WireProtocol.TEXT, in.getType());
+		assertEquals(0, in.getFlags());
+		assertEquals("h\u00e9llo \u4e16\u754c", in.getText());
+		assertFalse(in.next());
+
+	}
+
+	@Test
+	public void listingRoundTrips() throws IOException {
+
+		ArrayList<String> entries = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			entries.add("/tld/sub/file" + i + ".txt");
+		}
+		writer.writeListing(entries);
+		writer.setCompression(true);
+		writer.writeListing(entries);
+
+		FrameDecoder in = decoder();
+		assertTrue(in.next());
+		assertEquals(0, in.getFlags());
+		assertEquals(entries, in.getEntries());
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FLAG_DEFLATE, in.getFlags());
+		assertEquals(entries, in.getEntries());
+
+	}
+
+	@Test
+	public void fileRoundTripsWithChecksum() throws IOException {
+
+		byte[] chunk = randomBytes(10000);
+		writer.writeFileBegin(NAME, chunk.length);
+		writer.writeFileChunk(NAME, chunk, chunk.length, chunk.length);
+		writer.writeFileEnd(NAME, chunk.length);
+
+		FrameDecoder in = decoder();
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FILE_BEGIN, in.getType());
+		assertEquals(chunk.length, in.getFileSize());
+		assertEquals(NAME, in.getFileName());
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FILE_DATA, in.getType());
+		assertEquals(WireProtocol.FLAG_CRC32C, in.getFlags());
+		assertArrayEquals(chunk, payloadOf(in));
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FILE_END, in.getType());
+		assertEquals(NAME, in.getFileName());
+
+	}
+
+	@Test
+	public void compressedChunkRoundTripsWithChecksum() throws IOException {
+
+		byte[] chunk = new byte[20000];
+		Arrays.fill(chunk, 5000, 6000, (byte) 7);
+		writer.setCompression(true);
+		writer.writeFileChunk(NAME, chunk, chunk.length, chunk.length);
+
+		FrameDecoder in = decoder();
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FLAG_DEFLATE | WireProtocol.FLAG_CRC32C, in.getFlags());
+		assertArrayEquals(chunk, payloadOf(in));
+
+	}
+
+	@Test
+	public void corruptedChunkIsRejected() throws IOException {
+
+		writer.writeFileChunk(NAME, randomBytes(100), 100, 100);
+		byte[] frame = wire.toByteArray();
+		frame[WireProtocol.HEADER_SIZE + 50] ^= 1;
+
+		FrameDecoder in = new FrameDecoder(new ByteArrayInputStream(frame));
+		try {
+			in.next();
+			fail("Corrupted chunk was accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+		}
+
+	}
+
+	@Test
+	public void encryptedFramesRoundTrip() throws Exception {
+
+		SessionCipher clientKey = encrypt();
+		byte[] random = randomBytes(5000);
+		byte[] zeros = new byte[5000];
+		writer.writeText("secret");
+		writer.writeFileChunk(NAME, random, random.length, random.length);
+		writer.setCompression(true);
+		writer.writeListing(Arrays.asList("/tld/a", "/tld/a", "/tld/a", "/tld/a", "/tld/a", "/tld/a"));
+		writer.writeFileChunk(NAME, zeros, zeros.length, zeros.length);
+
+		FrameDecoder in = decoder();
+		in.setSessionCipher(clientKey);
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FLAG_ENCRYPTED, in.getFlags());
+		assertEquals("secret", in.getText());
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FLAG_ENCRYPTED | WireProtocol.FLAG_CRC32C, in.getFlags());
+		assertArrayEquals(random, payloadOf(in));
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FLAG_ENCRYPTED | WireProtocol.FLAG_DEFLATE, in.getFlags());
+		assertEquals(6, in.getEntries().size());
+		assertTrue(in.next());
+		assertEquals(WireProtocol.FLAG_ENCRYPTED | WireProtocol.FLAG_DEFLATE | WireProtocol.FLAG_CRC32C,
+				in.getFlags());
+		assertArrayEquals(zeros, payloadOf(in));
+		assertFalse(in.next());
+
+	}
+
+	@Test
+	public void replayedFrameIsRejected() throws Exception {
+
+		SessionCipher clientKey = encrypt();
+		writer.writeText("once");
+		byte[] frame = wire.toByteArray();
+		wire.write(frame);
+
+		FrameDecoder in = decoder();
+		in.setSessionCipher(clientKey);
+		assertTrue(in.next());
+		assertEquals("once", in.getText());
+		try {
+			in.next();
+			fail("Replayed frame was accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("out of sequence"));
+		}
+
+	}
+
+	@Test
+	public void plaintextFrameAfterKeyIsRejected() throws Exception {
+
+		SessionCipher clientKey = encrypt();
+		writer.writeText("secret");
+		byte[] sealed = wire.toByteArray();
+		wire.reset();
+		new BinaryMessageWriter(wire).writeText("injected");
+		wire.write(sealed);
+
+		FrameDecoder in = decoder();
+		in.setSessionCipher(clientKey);
+		try {
+			in.next();
+			fail("Plaintext frame was accepted in an encrypted session");
+		} catch (IOException e) {
+			assertEquals("Unencrypted frame of stream 0 after key exchange", e.getMessage());
+		}
+
+	}
+
+	@Test
+	public void encryptedFrameBeforeKeyIsRejected() throws Exception {
+
+		encrypt();
+		writer.writeText("secret");
+		try {
+			decoder().next();
+			fail("Encrypted frame was opened without a key");
+		} catch (IOException e) {
+			assertEquals("Encrypted frame before key exchange", e.getMessage());
+		}
+
+	}
+
+	@Test
+	public void oversizedListingIsAnError() throws IOException {
+
+		int maxPayload = WireProtocol.MAX_PAYLOAD;
+		WireProtocol.MAX_PAYLOAD = 1024;
+		try {
+			ArrayList<String> entries = new ArrayList<String>();
+			for (int i = 0; i < 100; i++) {
+				entries.add("/tld/sub/file" + i + ".txt");
+			}
+			writer.writeListing(entries);
+		} finally {
+			WireProtocol.MAX_PAYLOAD = maxPayload;
+		}
+
+		FrameDecoder in = decoder();
+		assertTrue(in.next());
+		assertEquals(WireProtocol.ERROR, in.getType());
+		assertTrue(in.getText(), in.getText().contains("too large"));
+		assertFalse(in.next());
+
+	}
+
+	@Test(expected = CharacterCodingException.class)
+	public void malformedTextIsReported() throws IOException {
+
+		writer.writeText("lone \ud800 surrogate");
+
+	}
+
+}
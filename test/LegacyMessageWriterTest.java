@@ -0,0 +1,124 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import cloudtoothpackage.CloudToothMessage;
+
+/**
+ * Reads back the CloudToothMessages LegacyMessageWriter sends for a file, as a
+ * single message and in chunks.
+ */
+public class LegacyMessageWriterTest {
+
+	private static String NAME = "/tld/sub/file.bin";
+
+	private ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+	/**
+	 * Sends passed-in contents in chunks of passed-in size.
+	 * 
+	 * @param writer
+	 *            LegacyMessageWriter to send with.
+	 * @param contents
+	 *            Byte array storing contents of the file.
+	 * @param chunkSize
+	 *            Int storing size of every chunk.
+	 */
+	private static void sendFile(LegacyMessageWriter writer, byte[] contents, int chunkSize) throws Exception {
+
+		writer.writeFileBegin(NAME, contents.length);
+		for (int off = 0; off < contents.length; off += chunkSize) {
+			byte[] chunk = Arrays.copyOfRange(contents, off, Math.min(off + chunkSize, contents.length));
+			writer.writeFileChunk(NAME, chunk, chunk.length, contents.length);
+		}
+		writer.writeFileEnd(NAME, contents.length);
+
+	}
+
+	/**
+	 * Reads every message written so far.
+	 * 
+	 * @return ArrayList<CloudToothMessage> storing the messages in order.
+	 */
+	private ArrayList<CloudToothMessage> messages() throws Exception {
+
+		ArrayList<CloudToothMessage> messages = new ArrayList<CloudToothMessage>();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(wire.toByteArray()));
+		try {
+			while (true) {
+				messages.add((CloudToothMessage) in.readObject());
+			}
+		} catch (EOFException e) {
+			return messages;
+		}
+
+	}
+
+	@Test
+	public void fileIsOneMessageByDefault() throws Exception {
+
+		byte[] contents = new byte[10000];
+		Arrays.fill(contents, (byte) 3);
+		sendFile(new LegacyMessageWriter(wire), contents, 4096);
+
+		ArrayList<CloudToothMessage> messages = messages();
+		assertEquals(2, messages.size());
+		assertEquals(CloudToothMessage.FILE_BEGIN, messages.get(0).getMessageType());
+		assertArrayEquals(contents, messages.get(0).getFileMessage().getFileBytes());
+		assertEquals(CloudToothMessage.FILE_END, messages.get(1).getMessageType());
+
+	}
+
+	@Test
+	public void chunksFollowFileBeginAsContinuations() throws Exception {
+
+		byte[] contents = new byte[10000];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) i;
+		}
+		LegacyMessageWriter writer = new LegacyMessageWriter(wire);
+		writer.setChunked(true);
+		sendFile(writer, contents, 4096);
+		sendFile(writer, contents, 4096);
+
+		ArrayList<CloudToothMessage> messages = messages();
+		assertEquals(8, messages.size());
+		for (int file = 0; file < 2; file++) {
+			ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+			for (int i = 0; i < 3; i++) {
+				CloudToothMessage message = messages.get(file * 4 + i);
+				assertEquals(i == 0 ? CloudToothMessage.FILE_BEGIN : CloudToothMessage.FILE_CONTINUATION,
+						message.getMessageType());
+				assertEquals(contents.length, message.getFileMessage().getFileSize());
+				rebuilt.write(message.getFileMessage().getFileBytes());
+			}
+			assertArrayEquals(contents, rebuilt.toByteArray());
+			assertEquals(CloudToothMessage.FILE_END, messages.get(file * 4 + 3).getMessageType());
+		}
+
+	}
+
+	@Test
+	public void emptyChunkedFileStillBegins() throws Exception {
+
+		LegacyMessageWriter writer = new LegacyMessageWriter(wire);
+		writer.setChunked(true);
+		sendFile(writer, new byte[0], 4096);
+
+		ArrayList<CloudToothMessage> messages = messages();
+		assertEquals(2, messages.size());
+		assertEquals(CloudToothMessage.FILE_BEGIN, messages.get(0).getMessageType());
+		assertEquals(0, messages.get(0).getFileMessage().getFileBytes().length);
+		assertEquals(CloudToothMessage.FILE_END, messages.get(1).getMessageType());
+
+	}
+
+}
@@ -0,0 +1,210 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Seals payloads with one side's SessionCipher and opens them with the other's,
+ * checking that any change to the header, sequence number or payload is caught.
+ */
+public class SessionCipherTest {
+
+	private static byte[] BODY = "a payload worth protecting".getBytes();
+	private static byte[] TRAILER = { 1, 2, 3, 4 };
+
+	private SessionCipher server;
+	private SessionCipher client;
+	private Cipher cipher;
+
+	@Before
+	public void agreeKeys() throws GeneralSecurityException {
+
+		KeyPair serverKeys = SessionCipher.generateKeyPair();
+		KeyPair clientKeys = SessionCipher.generateKeyPair();
+		server = new SessionCipher(serverKeys.getPrivate(), clientKeys.getPublic().getEncoded(), true);
+		client = new SessionCipher(clientKeys.getPrivate(), serverKeys.getPublic().getEncoded(), false);
+		cipher = SessionCipher.newCipher();
+
+	}
+
+	/**
+	 * Builds the header of an encrypted TEXT frame on stream 7.
+	 * 
+	 * @param sealedLength
+	 *            Int storing length of the sealed payload.
+	 * @return Byte array storing the header.
+	 */
+	private static byte[] header(int sealedLength) {
+
+		ByteBuffer header = ByteBuffer.allocate(WireProtocol.HEADER_SIZE);
+		header.put(WireProtocol.VERSION);
+		header.put(WireProtocol.TEXT);
+		header.put(WireProtocol.FLAG_ENCRYPTED);
+		header.put((byte) 0);
+		header.putInt(7);
+		header.putInt(sealedLength);
+		return header.array();
+
+	}
+
+	/**
+	 * Seals BODY followed by TRAILER with the server's key.
+	 * 
+	 * @param header
+	 *            Byte array storing the header to seal under.
+	 * @return Byte array storing the sealed payload.
+	 */
+	private byte[] seal(byte[] header) throws GeneralSecurityException {
+
+		byte[] sealed = new byte[BODY.length + TRAILER.length + SessionCipher.OVERHEAD];
+		assertEquals(sealed.length,
+				server.seal(cipher, header, BODY, 0, BODY.length, TRAILER, TRAILER.length, sealed));
+		return sealed;
+
+	}
+
+	/**
+	 * Opens passed-in payload with the client's key.
+	 * 
+	 * @param header
+	 *            Byte array storing the header to open under.
+	 * @param sealed
+	 *            Byte array storing the sealed payload.
+	 * @return Byte array storing the plaintext.
+	 */
+	private byte[] open(byte[] header, byte[] sealed) throws GeneralSecurityException {
+
+		byte[] plain = new byte[sealed.length - SessionCipher.OVERHEAD];
+		int length = client.open(SessionCipher.newCipher(), header, sealed, sealed.length, plain);
+		return Arrays.copyOf(plain, length);
+
+	}
+
+	/**
+	 * Checks that passed-in payload does not open under passed-in header.
+	 * 
+	 * @param header
+	 *            Byte array storing the header to open under.
+	 * @param sealed
+	 *            Byte array storing the sealed payload.
+	 * @param what
+	 *            String storing what was tampered with.
+	 */
+	private void assertRejected(byte[] header, byte[] sealed, String what) {
+
+		try {
+			open(header, sealed);
+			fail("Tampered " + what + " was accepted");
+		} catch (GeneralSecurityException e) {
+			// Expected: the tag no longer matches.
+		}
+
+	}
+
+	@Test
+	public void sealedPayloadOpens() throws GeneralSecurityException {
+
+		int sealedLength = BODY.length + TRAILER.length + SessionCipher.OVERHEAD;
+		byte[] header = header(sealedLength);
+		byte[] sealed = seal(header);
+
+		byte[] expected = Arrays.copyOf(BODY, BODY.length + TRAILER.length);
+		System.arraycopy(TRAILER, 0, expected, BODY.length, TRAILER.length);
+		assertArrayEquals(expected, open(header, sealed));
+
+	}
+
+	@Test
+	public void sequenceNumbersCountFromZero() throws GeneralSecurityException {
+
+		byte[] header = header(BODY.length + TRAILER.length + SessionCipher.OVERHEAD);
+		assertEquals(0, SessionCipher.sequenceOf(seal(header)));
+		assertEquals(1, SessionCipher.sequenceOf(seal(header)));
+		byte[] third = seal(header);
+		assertEquals(2, SessionCipher.sequenceOf(third));
+		assertArrayEquals(BODY, Arrays.copyOf(open(header, third), BODY.length));
+
+	}
+
+	@Test
+	public void tamperedHeaderIsRejected() throws GeneralSecurityException {
+
+		byte[] header = header(BODY.length + TRAILER.length + SessionCipher.OVERHEAD);
+		byte[] sealed = seal(header);
+		for (int i = 0; i < WireProtocol.HEADER_SIZE; i++) {
+			byte[] tampered = header.clone();
+			tampered[i] ^= 1;
+			assertRejected(tampered, sealed, "header byte " + i);
+		}
+		// Untouched, it still opens.
+		open(header, sealed);
+
+	}
+
+	@Test
+	public void tamperedPayloadIsRejected() throws GeneralSecurityException {
+
+		byte[] header = header(BODY.length + TRAILER.length + SessionCipher.OVERHEAD);
+		byte[] sealed = seal(header);
+		for (int i = 0; i < sealed.length; i++) {
+			byte[] tampered = sealed.clone();
+			tampered[i] ^= 0x80;
+			assertRejected(header, tampered, "payload byte " + i);
+		}
+
+	}
+
+	@Test
+	public void eachDirectionHasItsOwnKey() throws GeneralSecurityException {
+
+		byte[] header = header(BODY.length + SessionCipher.OVERHEAD);
+		byte[] fromServer = new byte[BODY.length + SessionCipher.OVERHEAD];
+		server.seal(cipher, header, BODY, 0, BODY.length, null, 0, fromServer);
+		byte[] fromClient = new byte[BODY.length + SessionCipher.OVERHEAD];
+		client.seal(SessionCipher.newCipher(), header, BODY, 0, BODY.length, null, 0, fromClient);
+
+		// Both were sealed under sequence number 0, yet share neither key nor nonce.
+		assertEquals(SessionCipher.sequenceOf(fromServer), SessionCipher.sequenceOf(fromClient));
+		assertFalse(Arrays.equals(fromServer, fromClient));
+
+		byte[] plain = new byte[BODY.length];
+		assertEquals(BODY.length, server.open(SessionCipher.newCipher(), header, fromClient, fromClient.length, plain));
+		assertArrayEquals(BODY, plain);
+		try {
+			server.open(SessionCipher.newCipher(), header, fromServer, fromServer.length, plain);
+			fail("Payload reflected back to its sender was accepted");
+		} catch (GeneralSecurityException e) {
+			// Expected: it was sealed with the other direction's key.
+		}
+
+	}
+
+	@Test
+	public void otherKeyIsRejected() throws GeneralSecurityException {
+
+		byte[] header = header(BODY.length + TRAILER.length + SessionCipher.OVERHEAD);
+		byte[] sealed = seal(header);
+		KeyPair strangerKeys = SessionCipher.generateKeyPair();
+		SessionCipher stranger = new SessionCipher(strangerKeys.getPrivate(),
+				SessionCipher.generateKeyPair().getPublic().getEncoded(), false);
+		try {
+			stranger.open(SessionCipher.newCipher(), header, sealed, sealed.length,
+					new byte[sealed.length - SessionCipher.OVERHEAD]);
+			fail("Payload opened under another key");
+		} catch (GeneralSecurityException e) {
+			// Expected.
+		}
+
+	}
+
+}
@@ -0,0 +1,28 @@
+#!/bin/sh
+# Compiles PC Server and its unit tests, then runs the tests.
+#
+# Usage: JUNIT_LIB=/path/to/junit/jars test/run.sh [test classes]
+#
+# JUNIT_LIB must hold junit 4 and hamcrest-core. EXTRA_CP, if set, is put
+# first on the class path. With no test classes given, every test is run.
+set -e
+
+cd "$(dirname "$0")/.."
+
+if [ -z "$JUNIT_LIB" ]; then
+	echo "Set JUNIT_LIB to a directory holding the JUnit jars" >&2
+	exit 1
+fi
+
+JUNIT_CP=$(ls "$JUNIT_LIB"/*.jar | tr '\n' ':')
+LIB_CP=$(ls lib/*.jar | tr '\n' ':')
+CP="${EXTRA_CP:+$EXTRA_CP:}$LIB_CP$JUNIT_CP"
+
+rm -rf test/target
+mkdir -p test/target/classes
+javac -nowarn -d test/target/classes -cp "$CP" src/*.java test/*.java
+
+if [ $# -eq 0 ]; then
+	set -- $(cd test && ls *Test.java | sed 's/\.java$//')
+fi
+java -cp "test/target/classes:$CP" org.junit.runner.JUnitCore "$@"